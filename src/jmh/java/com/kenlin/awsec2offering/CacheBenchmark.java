@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The per-request cache path: building the key and getting a cached
+ * response, by one thread and by as many threads as there are processors,
+ * and hits on a full cache while another thread's puts evict from it.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+	@Param({ "100", "10000" })
+	public int						keys;
+
+	private Cache					cache;
+	private String[]				keyNames;
+	private OfferingResponse		response;
+	private final Cache.Loader		loader = new Cache.Loader() {
+		@Override
+		public OfferingResponse load() {
+			return response;
+		}
+	};
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int	next;
+
+		@Setup
+		public void setUp(ThreadParams threads) {
+			next = threads.getThreadIndex() * 7919;	// spread threads over the keys
+		}
+	}
+
+	/**
+	 * A cache at its bound, with a few hot keys, that every put of a cold
+	 * key evicts from.
+	 */
+	@State(Scope.Group)
+	public static class Full {
+		static final int	HOT = 100;
+		static final int	COLD = 10000;
+
+		Cache				cache;
+		String[]			hot = new String[HOT];
+		String[]			cold = new String[COLD];
+		int					next;
+
+		@Setup(Level.Trial)
+		public void setUp(CacheBenchmark benchmark) {
+			cache = new Cache(24 * 60 * 60 * 1000L, 0, 30000, 10 * HOT, Long.MAX_VALUE);
+			for (int i = 0; i < HOT; i++) {
+				hot[i] = "hot " + i;
+				cache.put(hot[i], benchmark.response);
+			}
+			for (int i = 0; i < COLD; i++)
+				cold[i] = "cold " + i;
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			cache.shutdown();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		cache = new Cache();
+		response = OfferingResponse.create(new ObjectMapper(), FakeCatalog.offerings(100), true);
+		keyNames = new String[keys];
+		for (int i = 0; i < keys; i++) {
+			keyNames[i] = App.createKey(FakeCatalog.ZONES[i % FakeCatalog.ZONES.length],
+					FakeCatalog.PRODUCTS[i % FakeCatalog.PRODUCTS.length], null,
+					FakeCatalog.INSTANCE_TYPES[i % FakeCatalog.INSTANCE_TYPES.length] + "," + i);
+			cache.put(keyNames[i], response);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cache.shutdown();
+	}
+
+	@Benchmark
+	public String createKey() {
+		return App.createKey("us-east-1a", "Linux/UNIX", "Heavy Utilization", "m1.small,m1.medium");
+	}
+
+	@Benchmark
+	public OfferingResponse get(Cursor cursor) throws Exception {
+		return cache.get(keyNames[cursor.next++ % keys], loader);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public OfferingResponse getContended(Cursor cursor) throws Exception {
+		return cache.get(keyNames[cursor.next++ % keys], loader);
+	}
+
+	@Benchmark
+	public OfferingResponse put(Cursor cursor) {
+		return cache.put(keyNames[cursor.next++ % keys], response);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public OfferingResponse putContended(Cursor cursor) {
+		return cache.put(keyNames[cursor.next++ % keys], response);
+	}
+
+	@Benchmark
+	@Group("evicting")
+	@GroupThreads(3)
+	public OfferingResponse evictingHit(Full full, Cursor cursor) throws Exception {
+		return full.cache.get(full.hot[cursor.next++ % Full.HOT], loader);
+	}
+
+	@Benchmark
+	@Group("evicting")
+	@GroupThreads(1)
+	public OfferingResponse evictingPut(Full full) {
+		return full.cache.put(full.cold[full.next++ % Full.COLD], response);
+	}
+}
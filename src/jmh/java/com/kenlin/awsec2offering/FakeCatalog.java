@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for EC2 in the benchmarks: a deterministic catalog of any size,
+ * spread over zones, products, offering types and instance types the way
+ * the real reserved catalog is.
+ */
+public class FakeCatalog {
+	public static final String[]	ZONES = {
+		"us-east-1a", "us-east-1b", "us-east-1c", "us-east-1d", "us-west-1a", "us-west-1b",
+		"us-west-2a", "us-west-2b", "eu-west-1a", "eu-west-1b", "ap-northeast-1a", "sa-east-1a",
+	};
+	public static final String[]	PRODUCTS = {
+		"Linux/UNIX", "Linux/UNIX (Amazon VPC)", "Windows", "Windows (Amazon VPC)",
+	};
+	public static final String[]	OFFERING_TYPES = {
+		"Heavy Utilization", "Medium Utilization", "Light Utilization",
+	};
+	public static final String[]	INSTANCE_TYPES = {
+		"t1.micro", "m1.small", "m1.medium", "m1.large", "m1.xlarge", "m3.xlarge", "m3.2xlarge",
+		"c1.medium", "c1.xlarge", "c3.large", "c3.xlarge", "m2.xlarge", "m2.2xlarge", "m2.4xlarge",
+	};
+
+	/**
+	 * @return n offerings; the same n always gives the same offerings.
+	 */
+	public static List<Offering> offerings(int n) {
+		List<Offering> offerings = new ArrayList<Offering>(n);
+		for (int i = 0; i < n; i++) {
+			Offering offering = new Offering();
+			offering.availabilityZone = ZONES[i % ZONES.length];
+			offering.productDescription = PRODUCTS[(i / ZONES.length) % PRODUCTS.length];
+			offering.offeringType = OFFERING_TYPES[(i / (ZONES.length * PRODUCTS.length)) % OFFERING_TYPES.length];
+			offering.instanceType = INSTANCE_TYPES[(i / (ZONES.length * PRODUCTS.length * OFFERING_TYPES.length)) % INSTANCE_TYPES.length];
+			offering.currencyCode = "USD";
+			offering.duration = i % 2 == 0 ? Offering.SECONDS_IN_YEAR : Offering.SECONDS_IN_3_YEARS;
+			offering.fixedPrice = 50.0f + (i % 997);
+			offering.hourlyPrice = 0.005 + (i % 89) / 1000.0;
+			offerings.add(offering);
+		}
+		return offerings;
+	}
+}
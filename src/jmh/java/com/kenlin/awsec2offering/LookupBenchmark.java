@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Finding the offerings for a query: the on-demand catalog lookup that
+ * replaced the addOnDemandOfferings filter loop, a scan of the prefetched
+ * reserved index, and building the index itself.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+	@Param({ "100", "1000", "10000", "100000" })
+	public int					offerings;
+
+	private OnDemandCatalog		onDemand;
+	private List<Offering>		list;
+	private OfferingIndex		index;
+	private OfferingIndex.Visitor	visitor;
+
+	@Setup(Level.Trial)
+	public void setUp(final Blackhole blackhole) throws IOException {
+		onDemand = new OnDemandCatalog(new ObjectMapper(), null);
+		onDemand.start(Long.MAX_VALUE);
+		list = FakeCatalog.offerings(offerings);
+		index = new OfferingIndex(list);
+		visitor = new OfferingIndex.Visitor() {
+			@Override
+			public void visit(OfferingTable table, int[] rows) {
+				for (int row : rows)
+					blackhole.consume(table.getHourlyPrice(row));
+			}
+		};
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		onDemand.stop();
+	}
+
+	@Benchmark
+	public List<Offering> onDemandFind() {
+		return onDemand.find("us-east-1a", "Linux/UNIX", "m1.small");
+	}
+
+	@Benchmark
+	public List<Offering> onDemandFindWildcard() {
+		return onDemand.find("us-east-1a", null, null);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public List<Offering> onDemandFindContended() {
+		return onDemand.find("us-east-1a", "Linux/UNIX", "m1.small");
+	}
+
+	@Benchmark
+	public int reservedScan() throws IOException {
+		return index.scan("us-east-1a", "Linux/UNIX", null, "m1.small", visitor);
+	}
+
+	@Benchmark
+	public int reservedScanWildcard() throws IOException {
+		return index.scan(null, null, null, "m1.small", visitor);
+	}
+
+	@Benchmark
+	public OfferingIndex buildIndex() {
+		return new OfferingIndex(list);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Turning a response's offerings into JSON: the original tree of
+ * Offering.toJsonNode()s, streaming from Offerings and from an
+ * OfferingTable, and building a cacheable OfferingResponse.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+	@Param({ "100", "1000", "10000", "100000" })
+	public int				offerings;
+
+	private ObjectMapper	mapper;
+	private List<Offering>	list;
+	private OfferingTable	table;
+	private OutputStream	sink;
+
+	@Setup(Level.Trial)
+	public void setUp(final Blackhole blackhole) {
+		mapper = new ObjectMapper();
+		list = FakeCatalog.offerings(offerings);
+		table = OfferingTable.create(list);
+		sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				blackhole.consume(b);
+			}
+		};
+	}
+
+	@Benchmark
+	public void toJsonNode() throws IOException {
+		ObjectNode root = mapper.createObjectNode();
+		ArrayNode array = root.putArray(App.ARRAYNAME);
+		for (Offering offering : list)
+			array.add(offering.toJsonNode());
+		mapper.writeValue(sink, root);
+	}
+
+	@Benchmark
+	public void streamOfferings() throws IOException {
+		JsonGenerator gen = OfferingResponse.createGenerator(mapper, sink);
+		OfferingResponse.writeStart(gen);
+		for (Offering offering : list)
+			offering.writeJson(gen);
+		OfferingResponse.writeEnd(gen);
+	}
+
+	@Benchmark
+	public void streamTable() throws IOException {
+		JsonGenerator gen = OfferingResponse.createGenerator(mapper, sink);
+		OfferingResponse.writeStart(gen);
+		for (int row = 0; row < table.size(); row++)
+			table.writeJson(row, gen);
+		OfferingResponse.writeEnd(gen);
+	}
+
+	@Benchmark
+	public OfferingResponse createResponse() throws IOException {
+		return OfferingResponse.create(mapper, list, false);
+	}
+
+	@Benchmark
+	public OfferingResponse createGzipResponse() throws IOException {
+		return OfferingResponse.create(mapper, list, true);
+	}
+}
@@ -32,41 +32,65 @@
  */
 package com.kenlin.awsec2offering;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeReservedInstancesOfferingsRequest;
-import com.amazonaws.services.ec2.model.DescribeReservedInstancesOfferingsResult;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.OfferingTypeValues;
 import com.amazonaws.services.ec2.model.RIProductDescription;
-import com.amazonaws.services.ec2.model.ReservedInstancesOffering;
-import com.amazonaws.services.ec2.model.Tenancy;
-import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 @Controller
-public class App implements InitializingBean {
-	public static final String	ONDEMAND_URL ="https://raw2.github.com/kenklin/awsec2offering/master/src/main/resources/aws-ec2-ondemand.json";
-	
+public class App implements InitializingBean, DisposableBean {
+	private static final Log	log = LogFactory.getLog(App.class);
+
 	// URI components
 	public static final String	AVAILABILITYZONE_DEFAULT	= "us-east-1a";
 	public static final String	PRODUCTDESCRIPTION_DEFAULT	= "Linux/UNIX";
@@ -85,13 +109,201 @@ public class App implements InitializingBean {
 
 	// JSON output
 	public static final String	ARRAYNAME = "ec2offerings";
+	public static final String	JSON_CONTENTTYPE = "application/json;charset=UTF-8";
+	public static final String	SMILE_CONTENTTYPE = "application/x-jackson-smile";	// binary JSON
+	public static final String	NDJSON_MEDIATYPE = "application/x-ndjson";	// one offering per line
+	public static final String	NDJSON_CONTENTTYPE = NDJSON_MEDIATYPE + ";charset=UTF-8";
+	public static final String	NDJSON_ERROR = "error";		// a last {"error":"..."} line if a stream fails
+	public static final String	BATCH_RESULTS = "results";	// {"results":{"<id>":{"ec2offerings":[...]}}}
+	public static final String	BATCH_ERROR = "error";		// {"results":{"<id>":{"error":"..."}}}
+	public static final String	COST_MONTHS = "months";
+	public static final String	COST_UTILIZATION = "utilization";
+	public static final String	COST_RANKINGS = "rankings";
+	public static final String	COST_TOTAL = "totalCost";
+	public static final String	COST_BREAKEVEN = "breakEvenMonth";
+	public static final String	COST_OFFERING = "offering";
+	public static final String	CHANGES = "changes";	// {"version":...,"changes":[<CatalogDelta>...]}
+	public static final String	CHANGES_RESET = "reset";	// true if the changes since a version aren't known
+
+	// Snapshot sections
+	public static final String	RESERVED_SECTION = "reserved";	// followed by " " and the region, if any
+	public static final String	CACHE_SECTION_PREFIX = "cache ";	// followed by the cache key
 
-	// Class data members
-	private static Cache		cache = new Cache();
-	
-	// Instance data members
-	private AmazonEC2Client		ec2 = null;
+	// Shared cache keys, besides cache keys
+	public static final String	SHARED_RESERVED_PREFIX = "reserved ";	// followed by the region
+
+	// Instance data members, shared by all requests once afterPropertiesSet() has run
+	private final Map<String, AmazonEC2Client>	ec2 = new LinkedHashMap<String, AmazonEC2Client>();	// by region
 	private ObjectMapper		mapper = null;
+	private RegionalReservedOfferingSource	reservedSource = null;
+	private OnDemandCatalog		onDemandCatalog = null;
+	private final Map<String, Cache>	caches = new LinkedHashMap<String, Cache>();	// by region
+	private final Map<String, ReservedCatalog>	reservedCatalogs = new LinkedHashMap<String, ReservedCatalog>();	// by region, if prefetching
+	private ThreadPoolExecutor	fetcher = null;
+	private ThreadPoolExecutor	loader = null;		// runs cache misses for async requests
+	private ThreadPoolExecutor	streamer = null;	// writes streamed responses to their clients
+	private OfferingResponse	emptyResponse = null;
+	private SharedTier			sharedTier = null;	// null unless sharing
+	private ScheduledExecutorService	snapshotter = null;	// null unless snapshotting
+	private HotKeys				hotKeys = null;		// null unless warming
+	private ThreadPoolExecutor	warmer = null;		// loads hot keys ahead of demand
+	private ScheduledExecutorService	warmScheduler = null;
+	private final Queue<ChangeWaiter>	changeWaiters = new ConcurrentLinkedQueue<ChangeWaiter>();
+
+	// Metrics, see /awsec2offering/metrics.  Recording one is a single atomic add.
+	private final Metrics				metrics = new Metrics();
+	private final Metrics.Gauge			inFlight = metrics.gauge("awsec2offering_requests_in_flight",
+			"Offering requests being handled.");
+	private final Metrics.Histogram		requestSeconds = metrics.histogram("awsec2offering_request_seconds",
+			"Offering request latency.", 1e-9);
+	private final Metrics.Counter		requestErrors = metrics.counter("awsec2offering_request_errors_total",
+			"Offering requests that failed.");
+	private final Metrics.Counter		notModified = metrics.counter("awsec2offering_not_modified_total",
+			"Offering requests answered 304 Not Modified.");
+	private final Metrics.Counter		asyncRequests = metrics.counter("awsec2offering_async_requests_total",
+			"Offering requests that waited, without a thread, for a cache miss to load.");
+	private final Metrics.Counter		asyncTimeouts = metrics.counter("awsec2offering_async_timeouts_total",
+			"Offering requests answered with a fallback after async.timeoutMillis.");
+	private final Metrics.Counter		streamOverflows = metrics.counter("awsec2offering_stream_overflows_total",
+			"Streamed responses dropped because the client fell more than stream.maxBuffered offerings behind.");
+	private final Metrics.Histogram		batchQueries = metrics.histogram("awsec2offering_batch_queries",
+			"Queries per batch request.", 1);
+	private final Metrics.Histogram		batchSubQueries = metrics.histogram("awsec2offering_batch_subqueries",
+			"Distinct single instance type queries per batch request, after de-duplication.", 1);
+	private final Metrics.Histogram		responseOfferings = metrics.histogram("awsec2offering_response_offerings",
+			"Offerings per response.", 1);
+	private final Metrics.Histogram		responseBytes = metrics.histogram("awsec2offering_response_bytes",
+			"Bytes per cached response body, as sent.", 1);
+	private final Metrics.Histogram		ec2CallSeconds = metrics.histogram("awsec2offering_ec2_call_seconds",
+			"Latency of each describeReservedInstancesOfferings call, including rate limiting and retries.", 1e-9);
+	private final Metrics.Counter		ec2CallErrors = metrics.counter("awsec2offering_ec2_call_errors_total",
+			"describeReservedInstancesOfferings calls that failed after any retries.");
+	private final Metrics.Histogram		ec2Pages = metrics.histogram("awsec2offering_ec2_pages",
+			"Pages fetched per reserved offering query.", 1);
+	private final Metrics.Histogram		onDemandLoadSeconds = metrics.histogram("awsec2offering_ondemand_load_seconds",
+			"Latency of each on-demand catalog load.", 1e-9);
+
+	// Configuration, see awsec2offering.properties
+	@Value("${awsec2offering.regions:us-east-1,us-west-1,us-west-2,eu-west-1,ap-southeast-1,ap-southeast-2,ap-northeast-1,sa-east-1}")
+	private String				regions = "us-east-1,us-west-1,us-west-2,eu-west-1,ap-southeast-1,ap-southeast-2,ap-northeast-1,sa-east-1";
+	@Value("${awsec2offering.ec2.maxConnections:50}")
+	private int					maxConnections = 50;
+	@Value("${awsec2offering.ec2.connectionTimeout:10000}")
+	private int					connectionTimeout = 10000;	// millis
+	@Value("${awsec2offering.ec2.socketTimeout:30000}")
+	private int					socketTimeout = 30000;		// millis
+	@Value("${awsec2offering.ec2.maxConcurrentCalls:10}")
+	private int					maxConcurrentCalls = 10;
+	@Value("${awsec2offering.ec2.selfCheck:true}")
+	private boolean				selfCheck = true;
+	@Value("${awsec2offering.ec2.selfCheckMillis:15000}")
+	private long				selfCheckTimeout = 15000;	// for all regions together
+	@Value("${awsec2offering.ec2.source:ec2}")
+	private String				source = "ec2";				// or "replay"
+	@Value("${awsec2offering.replay.file:}")
+	private String				replayFile = "";
+	@Value("${awsec2offering.replay.pageSize:100}")
+	private int					replayPageSize = 100;
+	@Value("${awsec2offering.replay.latencyMillis:200}")
+	private long				replayLatency = 200;
+	@Value("${awsec2offering.replay.jitterMillis:100}")
+	private long				replayJitter = 100;
+	@Value("${awsec2offering.replay.throttleRate:0.0}")
+	private double				replayThrottleRate = 0.0;
+	@Value("${awsec2offering.ec2.callsPerSecond:10}")
+	private double				callsPerSecond = 10;
+	@Value("${awsec2offering.ec2.burst:20}")
+	private int					burst = 20;
+	@Value("${awsec2offering.ec2.maxRetries:4}")
+	private int					maxRetries = 4;
+	@Value("${awsec2offering.ec2.backoffBaseMillis:100}")
+	private long				backoffBase = 100;
+	@Value("${awsec2offering.ec2.backoffMaxMillis:5000}")
+	private long				backoffMax = 5000;
+	@Value("${awsec2offering.ec2.breakerFailures:5}")
+	private int					breakerFailures = 5;
+	@Value("${awsec2offering.ec2.breakerOpenMillis:30000}")
+	private long				breakerOpen = 30000;
+	@Value("${awsec2offering.cache.ttlMillis:86400000}")
+	private long				cacheTTL = 86400000;		// a day
+	@Value("${awsec2offering.cache.maxStaleMillis:604800000}")
+	private long				cacheMaxStale = 604800000;	// a week past the TTL
+	@Value("${awsec2offering.cache.maxWaitMillis:30000}")
+	private long				cacheMaxWait = 30000;		// for another request's load of the same key
+	@Value("${awsec2offering.cache.maxEntries:10000}")
+	private int					cacheMaxEntries = 10000;
+	@Value("${awsec2offering.cache.maxOfferings:2000000}")
+	private long				cacheMaxOfferings = 2000000;
+	@Value("${awsec2offering.ondemand.file:}")
+	private String				onDemandFile = "";			// empty means the bundled catalog
+	@Value("${awsec2offering.ondemand.reloadSeconds:60}")
+	private long				onDemandReloadSeconds = 60;
+	@Value("${awsec2offering.http.gzip:true}")
+	private boolean				gzip = true;				// keep gzipped copies of cached responses
+	@Value("${awsec2offering.http.maxAgeSeconds:3600}")
+	private long				maxAge = 3600;				// Cache-Control max-age
+	@Value("${awsec2offering.fetch.threads:16}")
+	private int					fetchThreads = 16;
+	@Value("${awsec2offering.fetch.queue:256}")
+	private int					fetchQueue = 256;
+	@Value("${awsec2offering.fetch.deadlineMillis:20000}")
+	private long				fetchDeadline = 20000;		// per request
+	@Value("${awsec2offering.async.threads:8}")
+	private int					asyncThreads = 8;
+	@Value("${awsec2offering.async.queue:1000}")
+	private int					asyncQueue = 1000;
+	@Value("${awsec2offering.async.timeoutMillis:25000}")
+	private long				asyncTimeout = 25000;		// then answer with a fallback
+	@Value("${awsec2offering.stream.timeoutMillis:300000}")
+	private long				streamTimeout = 300000;		// then end the stream with an error
+	@Value("${awsec2offering.stream.threads:8}")
+	private int					streamThreads = 8;
+	@Value("${awsec2offering.stream.maxBuffered:10000}")
+	private int					streamMaxBuffered = 10000;	// offerings, then drop the client
+	@Value("${awsec2offering.batch.maxQueries:100}")
+	private int					batchMaxQueries = 100;
+	@Value("${awsec2offering.cost.maxTop:100}")
+	private int					costMaxTop = 100;
+	@Value("${awsec2offering.view.maxLimit:1000}")
+	private int					viewMaxLimit = 1000;
+	@Value("${awsec2offering.changes.maxHistory:100}")
+	private int					changesMaxHistory = 100;
+	@Value("${awsec2offering.changes.timeoutMillis:25000}")
+	private long				changesTimeout = 25000;		// long-poll
+	@Value("${awsec2offering.prefetch.enabled:false}")
+	private boolean				prefetch = false;
+	@Value("${awsec2offering.prefetch.intervalMillis:86400000}")
+	private long				prefetchInterval = 86400000;	// a day
+	@Value("${awsec2offering.warm.enabled:true}")
+	private boolean				warm = true;
+	@Value("${awsec2offering.warm.trackedKeys:1000}")
+	private int					warmTrackedKeys = 1000;
+	@Value("${awsec2offering.warm.topKeys:50}")
+	private int					warmTopKeys = 50;
+	@Value("${awsec2offering.warm.intervalMillis:60000}")
+	private long				warmInterval = 60000;		// a minute
+	@Value("${awsec2offering.warm.aheadMillis:300000}")
+	private long				warmAhead = 300000;			// before the TTL
+	@Value("${awsec2offering.warm.threads:1}")
+	private int					warmThreads = 1;
+	@Value("${awsec2offering.warm.queue:100}")
+	private int					warmQueue = 100;
+	@Value("${awsec2offering.warm.file:}")
+	private String				warmFile = "";				// empty means not persisted
+	@Value("${awsec2offering.snapshot.file:}")
+	private String				snapshotFile = "";			// empty means no snapshot
+	@Value("${awsec2offering.snapshot.intervalMillis:3600000}")
+	private long				snapshotInterval = 3600000;	// an hour
+	@Value("${awsec2offering.snapshot.maxAgeMillis:604800000}")
+	private long				snapshotMaxAge = 604800000;	// a week
+	@Value("${awsec2offering.shared.dir:}")
+	private String				sharedDir = "";				// empty means not shared
+	@Value("${awsec2offering.shared.owner:}")
+	private String				sharedOwner = "";			// empty means pid@host
+	@Value("${awsec2offering.shared.leaseMillis:300000}")
+	private long				sharedLease = 300000;
+	@Value("${awsec2offering.shared.maxWaitMillis:20000}")
+	private long				sharedMaxWait = 20000;
 
 	/**
 	 * A URI-appropriate EC2 product description parser.
@@ -151,163 +363,1834 @@ public class App implements InitializingBean {
 
 	public static void addCORSHeaders(HttpServletResponse resp) {
 		resp.addHeader("Access-Control-Allow-Origin", "*");
-		resp.addHeader("Access-Control-Allow-Methods", "GET");
+		resp.addHeader("Access-Control-Allow-Methods", "GET, POST");
 		resp.addHeader("Access-Control-Allow-Headers", "Content-Type");
 	}
 
 	public App() {
+	}
+
+	/**
+	 * Builds the EC2 client and JSON mapper shared by every request.  Both are
+	 * thread-safe, so Spring's singleton App is used directly by the request
+	 * mappings instead of constructing a new App (and connection pool) per call.
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
 		// e.g., C:\apache-tomcat-7.0.42\bin\setenv.bat
 		// set "JRE_HOME=%ProgramFiles%\Java\jre6"
 		// set "JAVA_HOME=%ProgramFiles%\Java\jre6"
 		// set "AWS_ACCESS_KEY_ID=xxx"
 		// set "AWS_SECRET_KEY=xxxxxxxxx"
 		// exit /b 01
-		ec2 = new AmazonEC2Client();	// 1) Env var, 2) Java system prop, 3) EC2 metadata
 		mapper = new ObjectMapper();
+		List<String> regionNames = new ArrayList<String>();
+		for (String region : regions.split(SEPARATOR)) {
+			if (!region.trim().isEmpty())
+				regionNames.add(region.trim());
+		}
+		if (regionNames.isEmpty())
+			throw new IllegalArgumentException("awsec2offering.regions is empty");
+
+		// Each region has its own client, and its own rate limit and circuit
+		// breaker, so a throttled or failing region doesn't slow the others
+		Map<String, ReservedOfferingSource> sources = new LinkedHashMap<String, ReservedOfferingSource>();
+		if (source.equals("replay")) {
+			if (replayFile.isEmpty())
+				throw new IllegalArgumentException("awsec2offering.replay.file is required by the replay source");
+			GuardedReservedOfferingSource replay = guard(new ReplayReservedOfferingSource(
+					ReplayReservedOfferingSource.load(mapper, new File(replayFile)),
+					replayPageSize, replayLatency, replayJitter, replayThrottleRate));
+			replay.register(metrics, "awsec2offering_ec2");
+			for (String region : regionNames)
+				sources.put(region, replay);	// one recording of every region
+		} else if (source.equals("ec2")) {
+			ClientConfiguration config = new ClientConfiguration()
+					.withMaxConnections(maxConnections)
+					.withConnectionTimeout(connectionTimeout)
+					.withSocketTimeout(socketTimeout)
+					.withMaxErrorRetry(0);		// retried by GuardedReservedOfferingSource
+			for (String region : regionNames) {
+				AmazonEC2Client client = new AmazonEC2Client(config);	// 1) Env var, 2) Java system prop, 3) EC2 metadata
+				client.setEndpoint("ec2." + region + ".amazonaws.com");
+				ec2.put(region, client);
+				GuardedReservedOfferingSource guarded = guard(new Ec2ReservedOfferingSource(client, maxConcurrentCalls));
+				guarded.register(metrics.labeled("region", region), "awsec2offering_ec2");
+				sources.put(region, guarded);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown awsec2offering.ec2.source " + source);
+		}
+		reservedSource = new RegionalReservedOfferingSource(sources);
+
+		final OnDemandSource onDemandSource = new JsonOnDemandSource(mapper,
+				onDemandFile.isEmpty() ? null : new File(onDemandFile));
+		onDemandCatalog = new OnDemandCatalog(new OnDemandSource() {
+			@Override
+			public long getLastModified() {
+				return onDemandSource.getLastModified();
+			}
+
+			@Override
+			public List<Offering> load() throws IOException {
+				long start = System.nanoTime();
+				try {
+					return onDemandSource.load();
+				} finally {
+					onDemandLoadSeconds.observe(System.nanoTime() - start);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return onDemandSource.toString();
+			}
+		});
+		onDemandCatalog.start(onDemandReloadSeconds);
+
+		// With a shared cache, nodes take each other's loads rather than
+		// each calling EC2 for the same keys
+		if (!sharedDir.isEmpty()) {
+			sharedTier = new SharedTier(new FileSharedCache(new File(sharedDir),
+					sharedOwner.isEmpty() ? null : sharedOwner, sharedLease), sharedMaxWait);
+			sharedTier.register(metrics, "awsec2offering_shared");
+			log.info("shared cache: " + sharedTier);
+		}
+
+		// One cache per region, each with its own refresh threads
+		for (String region : regionNames) {
+			Cache cache = new Cache(cacheTTL, cacheMaxStale, cacheMaxWait, cacheMaxEntries, cacheMaxOfferings);
+			cache.register(metrics.labeled("region", region), "awsec2offering_cache");
+			if (sharedTier != null)
+				cache.setShared(sharedTier, mapper, gzip);
+			caches.put(region, cache);
+		}
+
+		// Cached responses include on-demand offerings, so none is served
+		// once they are reloaded, and none keeps its ETag
+		onDemandCatalog.addListener(new OnDemandCatalog.Listener() {
+			@Override
+			public void reloaded(long version) {
+				for (Cache cache : caches.values())
+					cache.invalidate();
+			}
+		});
+
+		// When the queue is full, the requesting thread runs the fetch itself
+		fetcher = new ThreadPoolExecutor(fetchThreads, fetchThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(fetchQueue),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "offering-fetcher");
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		fetcher.allowCoreThreadTimeOut(true);
+
+		// Cache misses are loaded here while their requests wait without a
+		// thread; when the queue is full, they fall back immediately
+		loader = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(asyncQueue),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "offering-loader");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		loader.allowCoreThreadTimeOut(true);
+
+		// Streams are written here, so that a slow client holds up neither
+		// a loader thread nor the load it shares with other requests
+		streamer = new ThreadPoolExecutor(streamThreads, streamThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "stream-writer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		streamer.allowCoreThreadTimeOut(true);
+		emptyResponse = OfferingResponse.create(mapper, new ArrayList<Offering>(), false);
+
+		if (prefetch) {
+			// Each region's catalog is refreshed on its own thread
+			for (final String region : regionNames) {
+				final ReservedCatalog catalog = new ReservedCatalog(new Callable<List<Offering>>() {
+					@Override
+					public List<Offering> call() throws InterruptedException {
+						return sweepRegion(region);
+					}
+				}, changesMaxHistory);
+				catalog.addListener(new ReservedCatalog.Listener() {
+					@Override
+					public void changed(CatalogDelta delta) {
+						for (ChangeWaiter waiter : changeWaiters) {
+							if (waiter.catalog == catalog)
+								waiter.answer();
+						}
+					}
+				});
+				reservedCatalogs.put(region, catalog);
+			}
+		}
+
+		if (!snapshotFile.isEmpty()) {
+			restoreSnapshot(new File(snapshotFile));
+			snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "snapshot-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			snapshotter.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					saveSnapshot(new File(snapshotFile));
+				}
+			}, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+		}
+
+		// Before warming, so that no saved hot key of a prefetched region is
+		// loaded live while its catalog's first sweep is under way
+		for (ReservedCatalog catalog : reservedCatalogs.values())
+			catalog.start(prefetchInterval);
+
+		if (warm) {
+			hotKeys = new HotKeys(warmTrackedKeys);
+			// Warming runs at low priority, one load at a time by default,
+			// and drops what doesn't fit in its queue
+			warmer = new ThreadPoolExecutor(warmThreads, warmThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(warmQueue),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "cache-warmer");
+							t.setDaemon(true);
+							t.setPriority(Thread.MIN_PRIORITY);
+							return t;
+						}
+					});
+			warmer.allowCoreThreadTimeOut(true);
+			if (!warmFile.isEmpty())
+				rewarm(new File(warmFile));
+			warmScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "cache-warm-scheduler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			warmScheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					warmHotKeys();
+				}
+			}, warmInterval, warmInterval, TimeUnit.MILLISECONDS);
+			metrics.gauge("awsec2offering_hot_keys", "Keys whose access frequency is tracked for warming.", new Metrics.Value() {
+				@Override
+				public long get() {
+					return hotKeys.size();
+				}
+			});
+			metrics.gauge("awsec2offering_warm_queue", "Warming loads waiting for a thread.", new Metrics.Value() {
+				@Override
+				public long get() {
+					return warmer.getQueue().size();
+				}
+			});
+		}
+
+		metrics.gauge("awsec2offering_ondemand_offerings", "On-demand offerings in the catalog.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return onDemandCatalog.size();
+			}
+		});
+		metrics.gauge("awsec2offering_reserved_offerings", "Prefetched reserved offerings.", new Metrics.Value() {
+			@Override
+			public long get() {
+				long offerings = 0;
+				for (ReservedCatalog catalog : reservedCatalogs.values()) {
+					OfferingIndex index = catalog.getIndex();
+					if (index != null)
+						offerings += index.size();
+				}
+				return offerings;
+			}
+		});
+		metrics.gauge("awsec2offering_fetch_queue", "Reserved offering fetches waiting for a thread.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return fetcher.getQueue().size();
+			}
+		});
+
+		if (selfCheck && !ec2.isEmpty())
+			selfCheck();
 	}
 
 	@Override
-	public void afterPropertiesSet() throws Exception {
+	public void destroy() throws Exception {
+		if (snapshotter != null) {
+			snapshotter.shutdownNow();
+			saveSnapshot(new File(snapshotFile));
+		}
+		for (ReservedCatalog catalog : reservedCatalogs.values())
+			catalog.stop();
+		if (warmScheduler != null) {
+			warmScheduler.shutdownNow();
+			if (!warmFile.isEmpty())
+				saveHotKeys(new File(warmFile));
+		}
+		if (warmer != null)
+			warmer.shutdownNow();
+		if (loader != null)
+			loader.shutdownNow();
+		if (streamer != null)
+			streamer.shutdownNow();
+		if (fetcher != null)
+			fetcher.shutdownNow();
+		for (Cache cache : caches.values())
+			cache.shutdown();
+		if (onDemandCatalog != null)
+			onDemandCatalog.stop();
+		for (AmazonEC2Client client : ec2.values())
+			client.shutdown();
 	}
 
-	private OfferingArray readOnDemandOfferings() throws JsonParseException, JsonMappingException, IOException {
-		URL url = new URL(ONDEMAND_URL);
-		return mapper.readValue(url, OfferingArray.class);
+	/**
+	 * Serves the offerings saved by saveSnapshot(), if any, until they are
+	 * refreshed from EC2.  Restored cache entries keep their load times, so
+	 * the cache refreshes those past their TTL in the background as usual.
+	 * A missing, corrupt or too old snapshot is ignored, leaving a cold start.
+	 */
+	private void restoreSnapshot(File file) {
+		try {
+			long start = System.currentTimeMillis();
+			Snapshot snapshot = Snapshot.read(file, snapshotMaxAge);
+			if (snapshot == null)
+				return;
+			int restored = 0;
+			for (Snapshot.Section section : snapshot.getSections()) {
+				String name = section.getName();
+				if (name.equals(RESERVED_SECTION) || name.startsWith(RESERVED_SECTION + " ")) {
+					// Snapshots from before regions hold the default region's catalog
+					ReservedCatalog catalog = reservedCatalogs.get(name.equals(RESERVED_SECTION)
+							? OfferingQuery.getRegion(AVAILABILITYZONE_DEFAULT)
+							: name.substring(RESERVED_SECTION.length() + 1));
+					if (catalog != null)
+						catalog.restore(new OfferingIndex(section.getTable(), section.getLoaded()));
+				} else if (name.startsWith(CACHE_SECTION_PREFIX)) {
+					String key = name.substring(CACHE_SECTION_PREFIX.length());
+					Cache cache = caches.get(getRegionOfKey(key));
+					if (cache != null)
+						cache.put(key, OfferingResponse.create(mapper, section.getTable(), gzip), section.getLoaded());
+				}
+				restored += section.getTable().size();
+			}
+			log.info("restored: " + restored + " offerings from " + file + " in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e) {
+			log.warn("snapshot ignored: " + e.getMessage());
+		}
 	}
-	
-	private void addOnDemandOfferings(ArrayNode array,
-		String availabilityZone, String productDescription, String instanceType)
-	{
+
+	/**
+	 * Saves the prefetched reserved catalog and the cached responses, for
+	 * restoreSnapshot() after a restart.
+	 */
+	private void saveSnapshot(File file) {
 		try {
-			OfferingArray offerings = readOnDemandOfferings();
-			for (Offering offering : offerings.ec2offerings) {
-				if ((availabilityZone != null && !availabilityZone.equals(offering.availabilityZone))
-					|| (productDescription != null && !productDescription.equals(offering.productDescription))
-					|| (instanceType != null && !instanceType.equals(offering.instanceType)))
-					continue;
-				array.add(offering.toJsonNode());
-			}
-		} catch (JsonParseException e) {
-			e.printStackTrace();
-		} catch (JsonMappingException e) {
-			e.printStackTrace();
+			final Snapshot snapshot = new Snapshot();
+			for (Map.Entry<String, ReservedCatalog> catalog : reservedCatalogs.entrySet()) {
+				OfferingIndex index = catalog.getValue().getIndex();
+				if (index != null)
+					snapshot.add(RESERVED_SECTION + " " + catalog.getKey(), index.getCreated(), index.getTable());
+			}
+			for (Cache cache : caches.values()) {
+				cache.visit(new Cache.Visitor() {
+					@Override
+					public void visit(String key, OfferingResponse offerings, long loaded) {
+						snapshot.add(CACHE_SECTION_PREFIX + key, loaded, offerings.getTable());
+					}
+				});
+			}
+			snapshot.write(file);
+		} catch (Exception e) {
+			log.error("Cannot save snapshot " + file, e);
+		}
+	}
+
+	/**
+	 * Refreshes the hot keys that are about to expire, most frequently
+	 * requested first, then decays their counts.  Warming yields to live
+	 * requests: it stops as soon as live loads or fetches are queued, and the
+	 * remaining keys wait for the next run.
+	 */
+	private void warmHotKeys() {
+		try {
+			List<String> keys = hotKeys.top(warmTopKeys);
+			hotKeys.decay();
+			int warmed = 0;
+			for (String key : keys) {
+				if (!loader.getQueue().isEmpty() || !fetcher.getQueue().isEmpty())
+					break;
+				if (warm(key))
+					warmed++;
+			}
+			if (warmed > 0 && log.isDebugEnabled())
+				log.debug("warming: " + warmed + " of " + keys.size() + " hot keys");
+			if (!warmFile.isEmpty())
+				saveHotKeys(new File(warmFile), keys);
+		} catch (RuntimeException e) {
+			log.error("Cannot warm hot keys", e);	// and try again next time
+		}
+	}
+
+	/**
+	 * Loads key on the warmer if it isn't cached or expires within
+	 * warmAhead, unless its region is answered from a prefetched catalog,
+	 * even one whose first sweep hasn't finished yet.
+	 *
+	 * @return Whether a load was started.
+	 */
+	private boolean warm(String key) {
+		OfferingQuery query = OfferingQuery.fromKey(key);
+		if (query == null || !caches.containsKey(query.getRegion()) || reservedCatalogs.containsKey(query.getRegion()))
+			return false;
+		return getCache(query).warm(key, createLoader(query), warmAhead, warmer);
+	}
+
+	/**
+	 * Warms the hot keys saved by the last run, e.g. the ones a restored
+	 * snapshot didn't have or has too old, and counts them once each so
+	 * they stay candidates until live traffic ranks them.
+	 */
+	private void rewarm(File file) {
+		try {
+			List<String> keys = HotKeys.read(file);
+			int warmed = 0;
+			for (String key : keys) {
+				hotKeys.record(key);
+				if (warm(key))
+					warmed++;
+			}
+			log.info("warming: " + warmed + " of " + keys.size() + " saved hot keys");
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.warn("hot keys ignored: " + e.getMessage());
 		}
 	}
 
-	private void addReservedOfferings(ArrayNode array,
-			String availabilityZone, String productDescription, String offeringType, String instanceType)
-	{
-		DescribeReservedInstancesOfferingsRequest req = new DescribeReservedInstancesOfferingsRequest()
-				.withIncludeMarketplace(false).
-				withInstanceTenancy(Tenancy.Default); // Not Tenancy.Dedicated
-		if (availabilityZone != null)
-			req.setAvailabilityZone(availabilityZone);
-		if (productDescription != null)
-			req.setProductDescription(productDescription);
-		if (offeringType != null)
-			req.setOfferingType(offeringType);
-		if (instanceType != null)
-			req.setInstanceType(parseInstanceType(instanceType));
+	private void saveHotKeys(File file) {
+		saveHotKeys(file, hotKeys.top(warmTopKeys));
+	}
+
+	private void saveHotKeys(File file, List<String> keys) {
+		try {
+			HotKeys.write(file, keys);
+		} catch (IOException e) {
+			log.error("Cannot save hot keys " + file, e);
+		}
+	}
+
+	/**
+	 * Checks every region at once, and waits no more than selfCheckTimeout
+	 * for them all, so that startup doesn't take a timeout per region.
+	 */
+	private void selfCheck() {
+		ExecutorService checker = Executors.newFixedThreadPool(ec2.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ec2-self-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Callable<Object>> checks = new ArrayList<Callable<Object>>();
+			for (final Map.Entry<String, AmazonEC2Client> client : ec2.entrySet()) {
+				checks.add(Executors.callable(new Runnable() {
+					@Override
+					public void run() {
+						selfCheck(client.getKey(), client.getValue());
+					}
+				}));
+			}
+			int late = 0;
+			for (Future<Object> check : checker.invokeAll(checks, selfCheckTimeout, TimeUnit.MILLISECONDS)) {
+				if (check.isCancelled())
+					late++;
+			}
+			if (late > 0)
+				log.warn("self-check: " + late + " of " + ec2.size() + " regions didn't answer within " + selfCheckTimeout + "ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			checker.shutdownNow();
+		}
+	}
 
+	/**
+	 * Resolves credentials and a region's EC2 endpoint (and opens a pooled
+	 * connection) at startup, so the first user request doesn't pay for it.
+	 * A failure is reported but doesn't prevent the application from starting.
+	 */
+	private void selfCheck(String region, AmazonEC2Client client) {
+		try {
+			long start = System.currentTimeMillis();
+			int zones = 0;
+			for (AvailabilityZone zone : client.describeAvailabilityZones().getAvailabilityZones()) {
+				if (zone.getZoneName() != null)
+					zones++;
+			}
+			log.info("self-check: " + zones + " availability zones in " + region + " in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (AmazonClientException e) {
+			log.warn("self-check of " + region + " failed: " + e.getMessage());
+		}
+	}
+
+	private GuardedReservedOfferingSource guard(ReservedOfferingSource source) {
+		return new GuardedReservedOfferingSource(source,
+				new TokenBucket(callsPerSecond, burst), new CircuitBreaker(breakerFailures, breakerOpen),
+				maxRetries, backoffBase, backoffMax);
+	}
+
+	/**
+	 * @return The cache of region.
+	 * @throws IllegalArgumentException
+	 *             If region isn't one of the regions served.
+	 */
+	private Cache getCache(String region) {
+		Cache cache = caches.get(region);
+		if (cache == null)
+			throw new IllegalArgumentException("Unknown region " + region);
+		return cache;
+	}
+
+	private Cache getCache(OfferingQuery query) {
+		return getCache(query.getRegion());
+	}
+
+	/**
+	 * @return The region of a key made by createKey(), possibly with a
+	 *         suffix, from its availability zone, or null if it has none.
+	 */
+	static String getRegionOfKey(String key) {
+		int end = key.indexOf('\'', 1);
+		return key.startsWith("'") && end > 0 ? OfferingQuery.getRegion(key.substring(1, end)) : null;
+	}
+
+	/**
+	 * @return The prefetched catalog of query's region, or null if it isn't
+	 *         prefetched, or hasn't been fetched yet.
+	 */
+	private OfferingIndex getIndex(OfferingQuery query) {
+		ReservedCatalog catalog = reservedCatalogs.get(query.getRegion());
+		return catalog != null ? catalog.getIndex() : null;
+	}
+
+	/**
+	 * Sweeps all of region's reserved offerings, for its catalog, or takes
+	 * another node's sweep of them from the shared cache if it is less than
+	 * prefetchInterval old.
+	 */
+	private List<Offering> sweepRegion(String region) throws InterruptedException {
+		if (sharedTier == null)
+			return describeRegion(region);
+		String key = SHARED_RESERVED_PREFIX + region;
+		Snapshot.Section section = sharedTier.acquire(key, System.currentTimeMillis() - prefetchInterval);
+		if (section != null)
+			return section.getTable().asList();
+		try {
+			List<Offering> offerings = describeRegion(region);
+			sharedTier.put(key, OfferingTable.create(offerings), System.currentTimeMillis());
+			return offerings;
+		} finally {
+			sharedTier.release(key);
+		}
+	}
+
+	/**
+	 * Sweeps all of region's reserved offerings.
+	 */
+	private List<Offering> describeRegion(String region) {
+		List<Offering> offerings = describeReservedOfferings(reservedSource.getSource(region), null, null, null, null, null);
+		// A shared source, e.g. a replay, may answer for other regions too
+		for (Iterator<Offering> i = offerings.iterator(); i.hasNext(); ) {
+			if (!region.equals(OfferingQuery.getRegion(i.next().availabilityZone)))
+				i.remove();
+		}
+		return offerings;
+	}
+
+	/**
+	 * Receives offerings as they are fetched, e.g. to stream them to a
+	 * client before the last page arrives.
+	 */
+	private interface OfferingSink {
+		void offerings(List<Offering> offerings);
+
+		/** Called once every offering has been passed to offerings(). */
+		void end();
+	}
+
+	/**
+	 * Sweeps all pages of source's reserved offerings.  A null value matches
+	 * anything.
+	 *
+	 * @param sink
+	 *            Receives each page's offerings as it arrives, or null.
+	 */
+	private List<Offering> describeReservedOfferings(ReservedOfferingSource source,
+			String availabilityZone, String productDescription, String offeringType, String instanceType,
+			OfferingSink sink)
+	{
+		List<Offering> offerings = new ArrayList<Offering>();
 		String nextToken = null;
-		do {
-			DescribeReservedInstancesOfferingsResult res = ec2.describeReservedInstancesOfferings(req);
-			for (ReservedInstancesOffering o : res.getReservedInstancesOfferings()) {
-				Offering offering = new Offering(o);
+		int pages = 0;
+		try {
+			do {
+				ReservedOfferingSource.Page page;
+				long start = System.nanoTime();
 				try {
-					array.add(offering.toJsonNode());
-				} catch (JsonProcessingException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+					page = source.describe(availabilityZone, productDescription, offeringType, instanceType, nextToken);
+				} catch (RuntimeException e) {
+					ec2CallErrors.increment();
+					throw e;
+				} finally {
+					ec2CallSeconds.observe(System.nanoTime() - start);
 				}
-			}
-			nextToken = res.getNextToken();
-			req.withNextToken(nextToken);
-		} while (nextToken != null);
+				pages++;
+				offerings.addAll(page.getOfferings());
+				if (sink != null)
+					sink.offerings(page.getOfferings());
+				nextToken = page.getNextToken();
+			} while (nextToken != null);
+		} finally {
+			ec2Pages.observe(pages);
+		}
+		return offerings;
 	}
 
-	private String createKey(String availabilityZone, String productDescription, String offeringType, String instanceType) {
+	static String createKey(String availabilityZone, String productDescription, String offeringType, String instanceType) {
 		return "'" + availabilityZone + "' '"
 				+ productDescription + "' '"
 				+ offeringType + "' '"
 				+ instanceType + "'";
 	}
-	
+
+	/**
+	 * Fetches the reserved offerings for a single instance type query, on
+	 * the calling thread, after its on-demand offerings.
+	 *
+	 * @param sink
+	 *            Receives the on-demand offerings, and then each page of
+	 *            reserved offerings as it arrives, or null.
+	 */
+	private List<Offering> loadOfferings(OfferingQuery query, OfferingSink sink) {
+		List<Offering> onDemand = onDemandCatalog.find(
+				query.getAvailabilityZone(), query.getProductDescription(), query.getInstanceType());
+		if (sink != null)
+			sink.offerings(onDemand);
+		List<Offering> offerings = new ArrayList<Offering>(onDemand);
+		offerings.addAll(describeReservedOfferings(reservedSource, query.getAvailabilityZone(), query.getProductDescription(),
+				query.getOfferingType(), query.getInstanceType(), sink));
+		return offerings;
+	}
+
 	/**
-	 * Constructs the JSON object with an array of abridged EC2 reserved
-	 * instance offering objects.
-	 * 
-	 * @param availabilityZone
-	 *            The AWS availability zone to limit the retrievals to.
-	 * @param productDescription
-	 *            The EC2 product descriptions to limit the retrievals to.
-	 * @return
+	 * Assembles the offerings of a multiple instance type query, in instance
+	 * type order, from the cache entries of its single instance type parts,
+	 * which are looked up, and loaded if need be, concurrently.  So a new
+	 * combination of cached instance types costs no EC2 calls.  If any part
+	 * fails, or is still loading at the deadline, the load fails, with the
+	 * part's error, rather than returning (and caching) an incomplete result.
+	 *
+	 * A part still loading at the deadline isn't interrupted: its load may
+	 * be shared with other requests, and goes on to fill its cache entry.
 	 */
-	private JsonNode getOfferingsAsJsonNode(String availabilityZone, String productDescription, String offeringType, String instanceType)
-			throws JsonProcessingException, IOException
+	private OfferingResponse composeOfferings(OfferingQuery query) throws Exception {
+		final long deadline = System.currentTimeMillis() + fetchDeadline;
+		List<OfferingQuery> parts = query.split();
+		List<Future<OfferingResponse>> responses = new ArrayList<Future<OfferingResponse>>(parts.size());
+		try {
+			for (final OfferingQuery part : parts) {
+				responses.add(fetcher.submit(new Callable<OfferingResponse>() {
+					@Override
+					public OfferingResponse call() throws Exception {
+						return getCache(part).get(part.getKey(), createLoader(part));
+					}
+				}));
+			}
+
+			OfferingTable.Builder builder = new OfferingTable.Builder();
+			for (Future<OfferingResponse> response : responses) {
+				long remaining = deadline - System.currentTimeMillis();
+				OfferingTable table;
+				try {
+					table = response.get(Math.max(0, remaining), TimeUnit.MILLISECONDS).getTable();
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+				for (int row = 0; row < table.size(); row++)
+					builder.add(table, row);
+			}
+			return OfferingResponse.create(mapper, builder.build(), gzip);
+		} finally {
+			// Parts not yet started are dropped; started ones finish
+			for (Future<OfferingResponse> response : responses)
+				response.cancel(false);
+		}
+	}
+
+	/**
+	 * Counts a request for query towards the keys warmed at startup, if
+	 * warming is enabled.  The parts are what is fetched, so what is worth
+	 * warming.
+	 */
+	private void recordHotKeys(OfferingQuery query) {
+		if (hotKeys == null)
+			return;
+		for (OfferingQuery part : query.split())
+			hotKeys.record(part.getKey());
+	}
+
+	private Cache.Loader createLoader(OfferingQuery query) {
+		return createLoader(query, null);
+	}
+
+	/**
+	 * @param sink
+	 *            Receives the offerings of a single instance type query as
+	 *            they are fetched, or null.
+	 * @return A loader of query's offerings: fetched if it is for a single
+	 *         instance type, otherwise composed from its parts.
+	 */
+	private Cache.Loader createLoader(final OfferingQuery query, final OfferingSink sink) {
+		return new Cache.Loader() {
+			@Override
+			public OfferingResponse load() throws Exception {
+				if (!query.isSingle())
+					return composeOfferings(query);
+				List<Offering> offerings = loadOfferings(query, sink);
+				if (sink != null)
+					sink.end();
+				if (log.isDebugEnabled())
+					log.debug("live:   " + query);
+				return OfferingResponse.create(mapper, offerings, gzip);
+			}
+		};
+	}
+
+	/**
+	 * Writes loaded offerings to a response, e.g. as they are, or ranked by
+	 * cost.  A fallback may be empty or out of date, so mustn't be cached.
+	 */
+	private interface ResponseWriter {
+		void write(OfferingResponse offerings, boolean fallback) throws IOException;
+	}
+
+	private DeferredResult<Object> writeOfferingsAsync(OfferingQuery query,
+			final HttpServletRequest req, final HttpServletResponse resp)
+			throws IOException
 	{
-		productDescription = normalizeRIProductDescription(productDescription);	// e.g., "linux" -> "Linux/UNIX"
-		offeringType = normalizeOfferingType(offeringType);	// e.g., "heavy" -> "Heavy Utilization"
-		
-		String key = createKey(availabilityZone, productDescription, offeringType, instanceType);
-		ArrayNode array = cache.get(key);
-		
-		if (array != null) {
-//	        logger.audit(req.getRemoteAddr(), id, "cached");
-System.out.println("cached: " + key);
-		} else {
-			array = mapper.createArrayNode();
-			if (instanceType == null) {
+		recordHotKeys(query);
+		return writeAsync(getCache(query), query.getKey(), createLoader(query),
+				new ResponseWriter() {
+					@Override
+					public void write(OfferingResponse offerings, boolean fallback) throws IOException {
+						if (fallback)
+							writeFallbackResponse(offerings, req, resp);
+						else
+							writeOfferingResponse(offerings, req, resp);
+					}
+				});
+	}
+
+	/**
+	 * Answers from the cache on this thread if possible.  Otherwise the
+	 * offerings are loaded on the loader executor while the request waits
+	 * without a thread, and are written when they arrive, or after
+	 * asyncTimeout with a fallback.
+	 *
+	 * @return The pending result, or null if the response has been written.
+	 */
+	private DeferredResult<Object> writeAsync(Cache cache, String key, Cache.Loader loader, ResponseWriter writer)
+			throws IOException
+	{
+		OfferingResponse response = cache.getIfPresent(key, loader);
+		if (response != null) {
+			writer.write(response, false);
+			return null;
+		}
+
+		asyncRequests.increment();
+		DeferredResult<Object> result = new DeferredResult<Object>(asyncTimeout);
+		PendingRequest pending = new PendingRequest(cache, key, writer, result);
+		result.onTimeout(pending);
+		cache.load(key, loader, this.loader, pending);
+		return result;
+	}
+
+	/**
+	 * A request waiting for its offerings to load.  It is answered once,
+	 * by whichever comes first: the offerings, a failure, or the timeout.
+	 */
+	private class PendingRequest implements Cache.Callback, Runnable {
+		private final Cache						cache;
+		private final String					key;
+		private final ResponseWriter			writer;
+		private final DeferredResult<Object>	result;
+		private final AtomicBoolean				answered = new AtomicBoolean();
+
+		PendingRequest(Cache cache, String key, ResponseWriter writer, DeferredResult<Object> result) {
+			this.cache = cache;
+			this.key = key;
+			this.writer = writer;
+			this.result = result;
+		}
+
+		@Override
+		public void loaded(OfferingResponse offerings) {
+			answer(offerings, false);
+		}
+
+		@Override
+		public void failed(Exception e) {
+			requestErrors.increment();
+			log.error("Cannot load " + key, e);
+			answer(emptyResponse, true);
+		}
+
+		/** Called on timeout. */
+		@Override
+		public void run() {
+			asyncTimeouts.increment();
+			OfferingResponse last = cache.get(key);
+			answer(last != null ? last : emptyResponse, true);
+		}
+
+		private void answer(OfferingResponse offerings, boolean fallback) {
+			if (!answered.compareAndSet(false, true))
+				return;
+			try {
+				writer.write(offerings, fallback);
+			} catch (IOException e) {
+				log.warn("Cannot write offerings for " + key + ": " + e.getMessage());
+			}
+			result.setResult(null);	// already written
+		}
+	}
+
+	/**
+	 * Answers query as newline delimited JSON, one offering per line.  A
+	 * cold single instance type query is streamed as it is fetched: the
+	 * on-demand offerings first, and then each page of reserved offerings
+	 * as it arrives, so the client can start on them before the sweep ends.
+	 * The fetching thread writes each page before it fetches the next, so a
+	 * slow client slows the sweep rather than piling pages up in memory.
+	 * The whole result is still cached as usual.  Other queries are written
+	 * once they are loaded.
+	 *
+	 * @return The pending result, or null if the response has been written.
+	 */
+	private DeferredResult<Object> writeNdjsonAsync(OfferingQuery query, final HttpServletResponse resp)
+			throws IOException
+	{
+		recordHotKeys(query);
+		Cache cache = getCache(query);
+		String key = query.getKey();
+		if (!query.isSingle()) {
+			return writeAsync(cache, key, createLoader(query), new ResponseWriter() {
+				@Override
+				public void write(OfferingResponse offerings, boolean fallback) throws IOException {
+					writeNdjson(offerings.getTable(), resp);
+				}
+			});
+		}
+
+		OfferingResponse response = cache.getIfPresent(key, createLoader(query));
+		if (response != null) {
+			writeNdjson(response.getTable(), resp);
+			return null;
+		}
+
+		asyncRequests.increment();
+		DeferredResult<Object> result = new DeferredResult<Object>(streamTimeout);
+		StreamingRequest pending = new StreamingRequest(key, resp, result);
+		result.onTimeout(pending);
+		cache.load(key, createLoader(query, pending), this.loader, pending);
+		return result;
+	}
+
+	/**
+	 * A newline delimited JSON response that is written as its offerings
+	 * are fetched, if this request's loader is the one fetching them, or
+	 * all at once when they are loaded, e.g. by a load already in flight.
+	 * If the stream fails part way, it ends with an {"error":"..."} line.
+	 *
+	 * The load only queues each page, up to stream.maxBuffered offerings,
+	 * and never waits for the client: the queue is written by a streamer
+	 * thread, under its own lock.  A client that falls further behind, or
+	 * isn't answered within stream.timeoutMillis, is dropped, without
+	 * waiting for a write in progress, while the load goes on to fill the
+	 * cache for whoever else is waiting for it.
+	 */
+	private class StreamingRequest implements OfferingSink, Cache.Callback, Runnable {
+		private final String					key;
+		private final HttpServletResponse		resp;
+		private final DeferredResult<Object>	result;
+		private final ReentrantLock				writing = new ReentrantLock();	// held while writing to resp
+		private JsonGenerator					gen = null;		// guarded by writing, created by the first write
+		private final Queue<List<Offering>>		pages = new ArrayDeque<List<Offering>>();	// guarded by this
+		private int								buffered = 0;	// offerings in pages
+		private int								written = 0;	// offerings queued, in all
+		private boolean							ended = false;	// every offering was queued
+		private boolean							draining = false;	// a streamer thread is writing pages
+		private OfferingTable					lastTable = null;	// written after the pages, if any
+		private String							lastError = null;	// written last, if any
+		private volatile boolean				answered = false;	// nothing more is queued
+		private volatile boolean				dropped = false;	// nothing more is written
+
+		StreamingRequest(String key, HttpServletResponse resp, DeferredResult<Object> result) {
+			this.key = key;
+			this.resp = resp;
+			this.result = result;
+		}
+
+		@Override
+		public void offerings(List<Offering> offerings) {
+			synchronized (this) {
+				if (answered)
+					return;	// e.g. timed out, while the load goes on to fill the cache
+				if (buffered + offerings.size() <= streamMaxBuffered) {
+					pages.add(offerings);
+					buffered += offerings.size();
+					written += offerings.size();
+					drain();
+					return;
+				}
+			}
+			streamOverflows.increment();
+			drop("Client is too slow");
+		}
+
+		@Override
+		public synchronized void end() {
+			ended = true;
+		}
+
+		@Override
+		public void loaded(OfferingResponse offerings) {
+			synchronized (this) {
+				if (written == 0 && !ended)
+					finish(offerings.getTable(), null);	// loaded by another request, or taken from the shared cache
+				else
+					finish(null, ended ? null : "Cannot load offerings");	// a fallback to what was already streamed
+			}
+		}
+
+		@Override
+		public void failed(Exception e) {
+			requestErrors.increment();
+			log.error("Cannot load " + key, e);
+			synchronized (this) {
+				finish(null, "Cannot load offerings");
+			}
+		}
+
+		/** Called on timeout. */
+		@Override
+		public void run() {
+			asyncTimeouts.increment();
+			drop("Timed out loading offerings");
+		}
+
+		/**
+		 * Queues the end of the stream: table's offerings, if it isn't null,
+		 * then an error line, if error isn't null.  Called holding this.
+		 */
+		private void finish(OfferingTable table, String error) {
+			if (answered)
+				return;
+			answered = true;
+			lastTable = table;
+			lastError = error;
+			drain();
+		}
+
+		/** Starts writing the queue, unless it is being written.  Called holding this. */
+		private void drain() {
+			if (draining)
+				return;
+			draining = true;
+			try {
+				streamer.execute(new Runnable() {
+					@Override
+					public void run() {
+						write();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				draining = false;
+				answered = true;
+				dropped = true;
+				complete();
+			}
+		}
+
+		/**
+		 * Stops the stream, after an error line if it isn't being written
+		 * to, e.g. if the client is keeping up.  Never waits for a write.
+		 */
+		private void drop(String error) {
+			boolean stop;
+			synchronized (this) {
+				stop = !dropped;	// else it is being ended, or has failed
+				answered = true;
+				dropped = true;
+				pages.clear();
+				buffered = 0;
+			}
+			if (stop && writing.tryLock()) {
 				try {
-					addOnDemandOfferings(array, availabilityZone, productDescription, instanceType);
-					addReservedOfferings(array, availabilityZone, productDescription, offeringType, instanceType);
-				} catch (Exception e) {
-					e.printStackTrace();
+					writeEnd(error);
+				} finally {
+					writing.unlock();
 				}
+			}
+			complete();
+		}
+
+		/** Writes the queued pages, and then the end of the stream once it is queued. */
+		private void write() {
+			writing.lock();
+			try {
+				while (true) {
+					List<Offering> page;
+					synchronized (this) {
+						if (dropped) {
+							draining = false;
+							return;
+						}
+						page = pages.poll();
+						if (page == null && !answered) {
+							draining = false;
+							return;
+						}
+						if (page != null)
+							buffered -= page.size();
+					}
+					if (page == null)
+						break;
+					JsonGenerator gen = getGenerator();
+					for (Offering offering : page) {
+						offering.writeJson(gen);
+						gen.writeRaw('\n');
+					}
+					gen.flush();	// blocks while the client is behind, but only this thread
+				}
+
+				// Answered, and every page is written
+				OfferingTable table;
+				String error;
+				synchronized (this) {
+					table = lastTable;
+					error = lastError;
+					dropped = true;
+				}
+				if (table != null) {
+					JsonGenerator gen = getGenerator();
+					for (int row = 0; row < table.size() && !result.isSetOrExpired(); row++) {
+						table.writeJson(row, gen);
+						gen.writeRaw('\n');
+					}
+					written = table.size();
+				}
+				writeEnd(error);
+			} catch (IOException e) {
+				log.warn("Cannot stream offerings for " + key + ": " + e.getMessage());
+				synchronized (this) {
+					answered = true;
+					dropped = true;
+				}
+			} finally {
+				writing.unlock();
+			}
+			complete();
+		}
+
+		private JsonGenerator getGenerator() throws IOException {
+			if (gen == null) {
+				resp.setHeader("Cache-Control", "no-store");
+				resp.setContentType(NDJSON_CONTENTTYPE);
+				gen = OfferingResponse.createGenerator(mapper, resp.getOutputStream());
+			}
+			return gen;
+		}
+
+		/**
+		 * Ends the stream, after an error line if error isn't null.  Called
+		 * holding writing.
+		 */
+		private void writeEnd(String error) {
+			if (result.isSetOrExpired())
+				return;
+			try {
+				JsonGenerator gen = getGenerator();
+				if (error != null) {
+					gen.writeStartObject();
+					gen.writeStringField(NDJSON_ERROR, error);
+					gen.writeEndObject();
+					gen.writeRaw('\n');
+				}
+				gen.close();
+			} catch (IOException e) {
+				log.warn("Cannot end stream for " + key + ": " + e.getMessage());
+			}
+		}
+
+		private void complete() {
+			if (result.setResult(null))	// already written
+				responseOfferings.observe(written);
+		}
+	}
+
+	/**
+	 * Writes table as newline delimited JSON, one offering per line.
+	 */
+	private void writeNdjson(OfferingTable table, HttpServletResponse resp) throws IOException {
+		resp.setHeader("Cache-Control", "no-store");
+		resp.setContentType(NDJSON_CONTENTTYPE);
+		JsonGenerator gen = OfferingResponse.createGenerator(mapper, resp.getOutputStream());
+		for (int row = 0; row < table.size(); row++) {
+			table.writeJson(row, gen);
+			gen.writeRaw('\n');
+		}
+		gen.close();
+		responseOfferings.observe(table.size());
+	}
+
+	/**
+	 * Answers batch from the prefetched catalogs of its regions or the
+	 * caches on this thread if possible.  Otherwise its missing sub-queries
+	 * are loaded on the loader executor, and the batch is written when the
+	 * last arrives, or after asyncTimeout with whatever is available.
+	 *
+	 * @param smile
+	 *            Whether to answer in Smile rather than JSON.
+	 * @return The pending result, or null if the response has been written.
+	 */
+	private DeferredResult<Object> writeBatchAsync(BatchQuery batch, boolean smile, HttpServletResponse resp)
+			throws IOException
+	{
+		boolean indexed = true;
+		for (OfferingQuery sub : batch.getSubQueries()) {
+			if (getIndex(sub) == null)
+				indexed = false;
+		}
+		if (indexed) {
+			writeBatchResponse(batch, true, null, null, smile, resp);
+			return null;
+		}
+
+		Map<String, OfferingResponse> results = new ConcurrentHashMap<String, OfferingResponse>();
+		List<OfferingQuery> missing = new ArrayList<OfferingQuery>();
+		for (OfferingQuery sub : batch.getSubQueries()) {
+			recordHotKeys(sub);
+			OfferingResponse offerings = getCache(sub).getIfPresent(sub.getKey(), createLoader(sub));
+			if (offerings != null)
+				results.put(sub.getKey(), offerings);
+			else
+				missing.add(sub);
+		}
+		if (missing.isEmpty()) {
+			writeBatchResponse(batch, false, results, null, smile, resp);
+			return null;
+		}
+
+		asyncRequests.increment();
+		DeferredResult<Object> result = new DeferredResult<Object>(asyncTimeout);
+		PendingBatch pending = new PendingBatch(batch, results, missing.size(), smile, resp, result);
+		result.onTimeout(pending);
+		for (OfferingQuery sub : missing)
+			getCache(sub).load(sub.getKey(), createLoader(sub), this.loader, pending.callback(sub.getKey()));
+		return result;
+	}
+
+	/**
+	 * A batch waiting for its missing sub-queries to load.  It is answered
+	 * once, when the last of them arrives or fails, or on timeout.
+	 */
+	private class PendingBatch implements Runnable {
+		private final BatchQuery					batch;
+		private final Map<String, OfferingResponse>	results;	// by sub-query key
+		private final Map<String, String>			errors = new ConcurrentHashMap<String, String>();
+		private final AtomicInteger					remaining;
+		private final boolean						smile;
+		private final HttpServletResponse			resp;
+		private final DeferredResult<Object>		result;
+		private final AtomicBoolean					answered = new AtomicBoolean();
+
+		PendingBatch(BatchQuery batch, Map<String, OfferingResponse> results, int remaining,
+				boolean smile, HttpServletResponse resp, DeferredResult<Object> result)
+		{
+			this.batch = batch;
+			this.results = results;
+			this.remaining = new AtomicInteger(remaining);
+			this.smile = smile;
+			this.resp = resp;
+			this.result = result;
+		}
+
+		Cache.Callback callback(final String key) {
+			return new Cache.Callback() {
+				@Override
+				public void loaded(OfferingResponse offerings) {
+					results.put(key, offerings);
+					if (remaining.decrementAndGet() == 0)
+						answer();
+				}
+
+				@Override
+				public void failed(Exception e) {
+					log.error("Cannot load " + key, e);
+					errors.put(key, "Cannot load offerings");
+					if (remaining.decrementAndGet() == 0)
+						answer();
+				}
+			};
+		}
+
+		/** Called on timeout. */
+		@Override
+		public void run() {
+			asyncTimeouts.increment();
+			for (OfferingQuery sub : batch.getSubQueries()) {
+				if (!results.containsKey(sub.getKey()) && !errors.containsKey(sub.getKey())) {
+					OfferingResponse last = getCache(sub).get(sub.getKey());
+					if (last != null)
+						results.put(sub.getKey(), last);
+					else
+						errors.put(sub.getKey(), "Timed out loading offerings");
+				}
+			}
+			answer();
+		}
+
+		private void answer() {
+			if (!answered.compareAndSet(false, true))
+				return;
+			try {
+				writeBatchResponse(batch, false, results, errors, smile, resp);
+			} catch (IOException e) {
+				log.warn("Cannot write batch offerings: " + e.getMessage());
+			}
+			result.setResult(null);	// already written
+		}
+	}
+
+	/**
+	 * Streams the offerings of each of batch's queries, in instance type
+	 * order, either from their regions' indexes if indexed, or from the
+	 * sub-queries' results, in JSON or Smile.  A query that is invalid, or
+	 * any of whose sub-queries failed, gets an error instead of partial
+	 * offerings.  The response isn't cacheable, since POST responses aren't,
+	 * and may contain fallbacks.
+	 */
+	private void writeBatchResponse(BatchQuery batch, boolean indexed,
+			Map<String, OfferingResponse> results, Map<String, String> errors, boolean smile, HttpServletResponse resp)
+			throws IOException
+	{
+		resp.setHeader("Cache-Control", "no-store");
+		resp.setContentType(smile ? SMILE_CONTENTTYPE : JSON_CONTENTTYPE);
+		final JsonGenerator gen = smile
+				? OfferingResponse.createSmileGenerator(resp.getOutputStream())
+				: OfferingResponse.createGenerator(mapper, resp.getOutputStream());
+		OfferingIndex.Visitor writer = new OfferingIndex.Visitor() {
+			@Override
+			public void visit(OfferingTable table, int[] rows) throws IOException {
+				for (int row : rows)
+					table.writeJson(row, gen);
+			}
+		};
+		gen.writeStartObject();
+		gen.writeObjectFieldStart(BATCH_RESULTS);
+		for (BatchQuery.Query query : batch.getQueries()) {
+			gen.writeObjectFieldStart(query.getId());
+			String error = query.getError();
+			for (OfferingQuery sub : query.getSubQueries()) {
+				if (error == null && errors != null)
+					error = errors.get(sub.getKey());
+			}
+			if (error != null) {
+				gen.writeStringField(BATCH_ERROR, error);
 			} else {
-				// Google
-				// https://www.google.com/search?q=java+spring+pathvariable+encode
-				// http://stackoverflow.com/questions/9608711/spring-mvc-path-variables-encoding
-				for (String str : instanceType.split(SEPARATOR)) {
-					try {
-						addOnDemandOfferings(array, availabilityZone, productDescription, str);
-						addReservedOfferings(array, availabilityZone, productDescription, offeringType, str);
-					} catch (Exception e) {
-						e.printStackTrace();
+				gen.writeArrayFieldStart(ARRAYNAME);
+				int offerings = 0;
+				for (OfferingQuery sub : query.getSubQueries()) {
+					if (indexed) {
+						for (Offering offering : onDemandCatalog.find(sub.getAvailabilityZone(),
+								sub.getProductDescription(), sub.getInstanceType())) {
+							offering.writeJson(gen);
+							offerings++;
+						}
+						offerings += getIndex(sub).scan(sub.getAvailabilityZone(), sub.getProductDescription(),
+								sub.getOfferingType(), sub.getInstanceType(), writer);
+					} else {
+						OfferingTable table = results.get(sub.getKey()).getTable();
+						for (int row = 0; row < table.size(); row++)
+							table.writeJson(row, gen);
+						offerings += table.size();
 					}
 				}
+				gen.writeEndArray();
+				responseOfferings.observe(offerings);
+			}
+			gen.writeEndObject();
+		}
+		gen.writeEndObject();
+		gen.writeEndObject();
+		gen.close();
+	}
+
+	/**
+	 * @return The version of the prefetched reserved offerings for each of
+	 *         query's instance types, as OfferingIndex.getVersion().
+	 */
+	private static long getIndexVersion(OfferingIndex index, OfferingQuery query) {
+		long version = 1;
+		for (OfferingQuery part : query.split())
+			version = 31 * version + index.getVersion(part.getAvailabilityZone(), part.getProductDescription(),
+					part.getOfferingType(), part.getInstanceType());
+		return version;
+	}
+
+	/**
+	 * @return A loader of the on-demand and prefetched reserved offerings,
+	 *         in the same order as loadOfferings(), as a cacheable response.
+	 */
+	private Cache.Loader createIndexLoader(final OfferingIndex index, final OfferingQuery query) {
+		return new Cache.Loader() {
+			@Override
+			public OfferingResponse load() throws Exception {
+				return OfferingResponse.create(mapper, getIndexedOfferings(index, query), gzip);
+			}
+		};
+	}
+
+	/**
+	 * @return The on-demand and prefetched reserved offerings of query, in
+	 *         the same order as loadOfferings().
+	 */
+	private OfferingTable getIndexedOfferings(OfferingIndex index, OfferingQuery query) throws IOException {
+		final OfferingTable.Builder builder = new OfferingTable.Builder();
+		OfferingIndex.Visitor copier = new OfferingIndex.Visitor() {
+			@Override
+			public void visit(OfferingTable table, int[] rows) {
+				for (int row : rows)
+					builder.add(table, row);
+			}
+		};
+		for (OfferingQuery part : query.split()) {
+			builder.addAll(onDemandCatalog.find(part.getAvailabilityZone(), part.getProductDescription(),
+					part.getInstanceType()));
+			index.scan(part.getAvailabilityZone(), part.getProductDescription(), part.getOfferingType(),
+					part.getInstanceType(), copier);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Writes something derived from query's offerings, e.g. a cost ranking,
+	 * as writeAsync().  Prefetched offerings are cached per version, so that
+	 * whatever is derived from them and kept with the response, e.g. its
+	 * cost curves, is computed again only when they change.
+	 *
+	 * @return The pending result, or null if the response has been written.
+	 */
+	private DeferredResult<Object> writeDerivedAsync(OfferingQuery query, ResponseWriter writer) throws IOException {
+		String key = query.getKey();
+		OfferingIndex index = getIndex(query);
+		Cache.Loader loader = (index != null) ? createIndexLoader(index, query) : createLoader(query);
+		if (index != null)
+			key += " @" + Long.toHexString(getIndexVersion(index, query));
+		return writeAsync(getCache(query), key, loader, writer);
+	}
+
+	/**
+	 * Writes a view of offerings, as described by OfferingView, in JSON or
+	 * Smile.  Its sorted rows are kept with the cached response, so no
+	 * view re-queries EC2 or sorts the offerings again.  A cursor into
+	 * offerings that have since been reloaded gets 400 Bad Request.
+	 */
+	private void writeView(OfferingResponse offerings, boolean fallback, OfferingView view, boolean smile,
+			HttpServletResponse resp)
+			throws IOException
+	{
+		try {
+			view.check(offerings);
+		} catch (IllegalArgumentException e) {
+			sendError(resp, e, "get offerings");
+			return;
+		}
+		resp.setHeader("Cache-Control", fallback ? "no-store" : "public, max-age=" + maxAge);
+		resp.setHeader("Vary", "Accept, Accept-Encoding");
+		resp.setContentType(smile ? SMILE_CONTENTTYPE : JSON_CONTENTTYPE);
+		JsonGenerator gen = smile
+				? OfferingResponse.createSmileGenerator(resp.getOutputStream())
+				: OfferingResponse.createGenerator(mapper, resp.getOutputStream());
+		responseOfferings.observe(view.write(offerings, gen));
+	}
+
+	/**
+	 * Writes the top cheapest of offerings over months at utilization, with
+	 * their break-even months against on-demand ...
+	 *
+	 *	{"months":12,"utilization":1.0,"rankings":[{"totalCost":62.0,"breakEvenMonth":5,"offering":{...}},...]}
+	 *
+	 * The costs come from the offerings' CostCurves, which are computed once
+	 * per loaded response rather than per request.
+	 */
+	private void writeCostRanking(OfferingResponse offerings, boolean fallback,
+			int months, double utilization, int top, HttpServletResponse resp)
+			throws IOException
+	{
+		CostCurves curves = offerings.getCostCurves();
+		int[] rows = curves.rank(months, utilization, top);
+
+		resp.setHeader("Cache-Control", fallback ? "no-store" : "public, max-age=" + maxAge);
+		resp.setContentType(JSON_CONTENTTYPE);
+		JsonGenerator gen = OfferingResponse.createGenerator(mapper, resp.getOutputStream());
+		gen.writeStartObject();
+		gen.writeNumberField(COST_MONTHS, months);
+		gen.writeNumberField(COST_UTILIZATION, utilization);
+		gen.writeArrayFieldStart(COST_RANKINGS);
+		for (int row : rows) {
+			gen.writeStartObject();
+			gen.writeNumberField(COST_TOTAL, Math.round(curves.getCost(row, months, utilization) * 100) / 100.0);
+			int breakEven = curves.getBreakEvenMonth(row, utilization);
+			if (breakEven != CostCurves.NONE)
+				gen.writeNumberField(COST_BREAKEVEN, breakEven);
+			gen.writeFieldName(COST_OFFERING);
+			curves.getTable().writeJson(row, gen);
+			gen.writeEndObject();
+		}
+		gen.writeEndArray();
+		gen.writeEndObject();
+		gen.close();
+		responseOfferings.observe(rows.length);
+	}
+
+	/**
+	 * Streams the on-demand and prefetched reserved offerings, in the same
+	 * order as loadOfferings(), straight from the index to the response.
+	 * Nothing is built or cached per request, so memory use doesn't grow
+	 * with the size of the result.  The ETag is derived from the versions of
+	 * the matching index leaves and the on-demand catalog, so a 304 costs no
+	 * scan of the offerings, and survives refreshes that don't change them.
+	 */
+	private void writeIndexedOfferings(OfferingIndex index, OfferingQuery query,
+			HttpServletRequest req, HttpServletResponse resp)
+			throws IOException
+	{
+		boolean smile = acceptsSmile(req);
+		String etag = '"' + Long.toHexString(getIndexVersion(index, query))
+				+ '-' + Long.toHexString(onDemandCatalog.getVersion())
+				+ '-' + Integer.toHexString(query.hashCode())
+				+ (smile ? OfferingResponse.SMILE_ETAG_SUFFIX : "")
+				+ '"';
+		writeCacheHeaders(resp, etag);
+		if (OfferingResponse.matches(req.getHeader("If-None-Match"), etag)) {
+			notModified.increment();
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		resp.setContentType(smile ? SMILE_CONTENTTYPE : JSON_CONTENTTYPE);
+		final JsonGenerator gen = smile
+				? OfferingResponse.createSmileGenerator(resp.getOutputStream())
+				: OfferingResponse.createGenerator(mapper, resp.getOutputStream());
+		OfferingIndex.Visitor writer = new OfferingIndex.Visitor() {
+			@Override
+			public void visit(OfferingTable table, int[] rows) throws IOException {
+				for (int row : rows)
+					table.writeJson(row, gen);
+			}
+		};
+		OfferingResponse.writeStart(gen);
+		int offerings = 0;
+		for (OfferingQuery part : query.split()) {
+			for (Offering offering : onDemandCatalog.find(part.getAvailabilityZone(), part.getProductDescription(),
+					part.getInstanceType())) {
+				offering.writeJson(gen);
+				offerings++;
 			}
-System.out.println("live:   " + key);
-			cache.put(key, array);
+			offerings += index.scan(part.getAvailabilityZone(), part.getProductDescription(), part.getOfferingType(),
+					part.getInstanceType(), writer);
+		}
+		OfferingResponse.writeEnd(gen);
+		responseOfferings.observe(offerings);
+	}
+
+	/**
+	 * Sends response, or just 304 Not Modified if the request's
+	 * If-None-Match names the representation chosen.  The Smile copy is sent to clients that ask
+	 * for it, and otherwise the gzipped copy to clients that accept it.
+	 */
+	private void writeOfferingResponse(OfferingResponse response, HttpServletRequest req, HttpServletResponse resp)
+			throws IOException
+	{
+		boolean smile = acceptsSmile(req);
+		boolean gzip = !smile && response.getGzip() != null && acceptsGzip(req);
+		String etag = smile ? response.getSmileETag() : gzip ? response.getGzipETag() : response.getETag();
+		writeCacheHeaders(resp, etag);
+		if (OfferingResponse.matches(req.getHeader("If-None-Match"), etag)) {
+			notModified.increment();
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
 		}
-		
-		ObjectNode root = mapper.createObjectNode();
-		root.put(ARRAYNAME, array);
-		return root;
+
+		byte[] body = smile ? response.getSmile() : gzip ? response.getGzip() : response.getJson();
+		resp.setContentType(smile ? SMILE_CONTENTTYPE : JSON_CONTENTTYPE);
+		if (gzip)
+			resp.setHeader("Content-Encoding", "gzip");
+		resp.setContentLength(body.length);
+		resp.getOutputStream().write(body);
+		responseOfferings.observe(response.size());
+		responseBytes.observe(body.length);
+	}
+
+	/**
+	 * Sends response, which may be empty or out of date, without letting
+	 * clients or proxies cache it.
+	 */
+	private void writeFallbackResponse(OfferingResponse response, HttpServletRequest req, HttpServletResponse resp)
+			throws IOException
+	{
+		boolean smile = acceptsSmile(req);
+		byte[] body = smile ? response.getSmile() : response.getJson();
+		resp.setHeader("Cache-Control", "no-store");
+		resp.setContentType(smile ? SMILE_CONTENTTYPE : JSON_CONTENTTYPE);
+		resp.setContentLength(body.length);
+		resp.getOutputStream().write(body);
+	}
+
+	private void writeCacheHeaders(HttpServletResponse resp, String etag) {
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Cache-Control", "public, max-age=" + maxAge);
+		resp.setHeader("Vary", "Accept, Accept-Encoding");
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest req) {
+		String acceptEncoding = req.getHeader("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.contains("gzip");
+	}
+
+	private static boolean acceptsSmile(HttpServletRequest req) {
+		String accept = req.getHeader("Accept");
+		return accept != null && accept.contains(SMILE_CONTENTTYPE);
+	}
+
+	private static boolean acceptsNdjson(HttpServletRequest req) {
+		String accept = req.getHeader("Accept");
+		return accept != null && accept.contains(NDJSON_MEDIATYPE);
 	}
 
 	// e.g., http://localhost:8080/awsec2offering/awsec2offering/api/splat
 	// @see http://docs.spring.io/spring/docs/3.2.4.RELEASE/spring-framework-reference/html/mvc.html#mvc-config
 	// @see https://gist.github.com/kdonald/2012289/raw/363289ee8652823f770ef82f594e9a8f15048090/ExampleController.java
+	//
+	// Each mapping answers cache hits directly and returns null.  A miss
+	// returns a DeferredResult, freeing the servlet thread until the
+	// offerings are loaded and written; its result is then null, which
+	// @ResponseBody takes as already handled.
 	@RequestMapping(value = "/awsec2offering/api/{availabilityZone}/{productDescription}/{offeringType}/{instanceType}", method = RequestMethod.GET)
 	@ResponseBody
-	public JsonNode getOfferings(@PathVariable String availabilityZone, @PathVariable String productDescription, @PathVariable String offeringType, @PathVariable String instanceType,
-			HttpServletRequest req, HttpServletResponse resp)
+	public DeferredResult<Object> getOfferings(@PathVariable String availabilityZone, @PathVariable String productDescription, @PathVariable String offeringType, @PathVariable String instanceType,
+			HttpServletRequest req, final HttpServletResponse resp)
 	{
-		JsonNode json = null;
+		inFlight.increment();
+		final long start = System.nanoTime();
+		DeferredResult<Object> result = null;
 		try {
 			addCORSHeaders(resp);
 
-			App app = new App();
-			json = app.getOfferingsAsJsonNode(availabilityZone,
-					productDescription, offeringType, instanceType);
+			// e.g., ?hourlyPrice=..0.05&sort=fixedPrice&limit=20
+			final OfferingView view = OfferingView.parse(req.getParameterMap(), viewMaxLimit);
+
+			// e.g., "linux" -> "Linux/UNIX", "heavy" -> "Heavy Utilization",
+			// and "t1.micro,m1.small" -> "m1.small,t1.micro"
+			OfferingQuery query = OfferingQuery.create(availabilityZone, productDescription, offeringType, instanceType);
+
+			OfferingIndex index = getIndex(query);
+			boolean ndjson = acceptsNdjson(req);
+			if (!view.isEmpty()) {
+				final boolean smile = acceptsSmile(req);
+				result = writeDerivedAsync(query, new ResponseWriter() {
+					@Override
+					public void write(OfferingResponse offerings, boolean fallback) throws IOException {
+						writeView(offerings, fallback, view, smile, resp);
+					}
+				});
+			} else if (index != null && ndjson)
+				writeNdjson(getIndexedOfferings(index, query), resp);
+			else if (index != null)
+				writeIndexedOfferings(index, query, req, resp);
+			else if (ndjson)
+				result = writeNdjsonAsync(query, resp);
+			else
+				result = writeOfferingsAsync(query, req, resp);
 		} catch (Exception e) {
-			e.printStackTrace();
+			sendError(resp, e, "get offerings");
+		}
+		return completed(result, start);
+	}
+
+	/**
+	 * Answers a request that failed before it was answered: 400 Bad Request
+	 * if it is invalid, e.g. for an unknown region or product description,
+	 * and otherwise 500 Internal Server Error.
+	 */
+	private void sendError(HttpServletResponse resp, Exception e, String what) {
+		requestErrors.increment();
+		boolean invalid = e instanceof IllegalArgumentException;
+		if (!invalid)
+			log.error("Cannot " + what, e);
+		try {
+			if (!resp.isCommitted()) {
+				resp.sendError(invalid ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+						invalid ? e.getMessage() : null);
+			}
+		} catch (IOException e2) {
+			log.warn("Cannot reject request to " + what + ": " + e2.getMessage());
 		}
-		return json;
+	}
+
+	/**
+	 * Records a request started at start (System.nanoTime()) as no longer in
+	 * flight, now, or when result completes if it is pending.
+	 *
+	 * @return result
+	 */
+	private DeferredResult<Object> completed(DeferredResult<Object> result, final long start) {
+		if (result != null) {
+			result.onCompletion(new Runnable() {
+				@Override
+				public void run() {
+					inFlight.decrement();
+					requestSeconds.observe(System.nanoTime() - start);
+				}
+			});
+		} else {
+			inFlight.decrement();
+			requestSeconds.observe(System.nanoTime() - start);
+		}
+		return result;
+	}
+
+	/**
+	 * Answers a batch of queries, as described by BatchQuery, in a single
+	 * response keyed by query ID ...
+	 *
+	 *	{"results":{"a":{"ec2offerings":[...]},"b":{"error":"..."}}}
+	 *
+	 * Each distinct single instance type sub-query is looked up once, and
+	 * cache misses are loaded concurrently while the request waits without
+	 * a thread.
+	 */
+	@RequestMapping(value = "/awsec2offering/api/batch", method = RequestMethod.POST)
+	@ResponseBody
+	public DeferredResult<Object> postBatch(HttpServletRequest req, HttpServletResponse resp) {
+		inFlight.increment();
+		final long start = System.nanoTime();
+		DeferredResult<Object> result = null;
+		try {
+			addCORSHeaders(resp);
+
+			BatchQuery batch;
+			try {
+				batch = BatchQuery.parse(mapper.readTree(req.getInputStream()), batchMaxQueries, caches.keySet());
+			} catch (JsonProcessingException e) {
+				throw new IllegalArgumentException("Malformed batch: " + e.getOriginalMessage());
+			}
+			batchQueries.observe(batch.getQueries().size());
+			batchSubQueries.observe(batch.getSubQueries().size());
+			result = writeBatchAsync(batch, acceptsSmile(req), resp);
+		} catch (Exception e) {
+			sendError(resp, e, "get batch offerings");
+		}
+		return completed(result, start);
+	}
+
+	/**
+	 * Ranks the offerings of a query by their total cost over the next
+	 * months, when in use for the utilization fraction of the time, and
+	 * answers the top cheapest with their break-even months against
+	 * on-demand.
+	 *
+	 * e.g., /awsec2offering/cost/us-east-1a/linux?instanceType=m1.small,m1.medium&months=18&utilization=0.5&top=3
+	 */
+	@RequestMapping(value = "/awsec2offering/cost/{availabilityZone}/{productDescription}", method = RequestMethod.GET)
+	@ResponseBody
+	public DeferredResult<Object> getCostRanking(@PathVariable String availabilityZone, @PathVariable String productDescription,
+			@RequestParam(value = "offeringType", required = false) String offeringType,
+			@RequestParam(value = "instanceType", required = false) String instanceType,
+			@RequestParam(value = "months", defaultValue = "12") final int months,
+			@RequestParam(value = "utilization", defaultValue = "1") final double utilization,
+			@RequestParam(value = "top", defaultValue = "10") final int top,
+			HttpServletRequest req, final HttpServletResponse resp)
+	{
+		inFlight.increment();
+		final long start = System.nanoTime();
+		DeferredResult<Object> result = null;
+		try {
+			addCORSHeaders(resp);
+			if (months < 1 || months > CostCurves.MONTHS)
+				throw new IllegalArgumentException("months must be from 1 to " + CostCurves.MONTHS);
+			if (!(utilization >= 0 && utilization <= 1))
+				throw new IllegalArgumentException("utilization must be from 0 to 1");
+			if (top < 1 || top > costMaxTop)
+				throw new IllegalArgumentException("top must be from 1 to " + costMaxTop);
+
+			OfferingQuery query = OfferingQuery.create(availabilityZone, productDescription, offeringType, instanceType);
+			result = writeDerivedAsync(query, new ResponseWriter() {
+				@Override
+				public void write(OfferingResponse offerings, boolean fallback) throws IOException {
+					writeCostRanking(offerings, fallback, months, utilization, top, resp);
+				}
+			});
+		} catch (Exception e) {
+			sendError(resp, e, "rank offerings");
+		}
+		return completed(result, start);
+	}
+
+	/**
+	 * A region's prefetched reserved catalog's change feed, by default the
+	 * default availability zone's region.  Answers the changes since
+	 * sinceVersion ...
+	 *
+	 *	{"version":...,"changes":[{"previousVersion":...,"version":...,"added":[...],"removed":[...],"repriced":[...]},...]}
+	 *
+	 * If sinceVersion is current, the request waits, without a thread, for
+	 * the next change or for changesTimeout.  If it is omitted, unknown, or
+	 * older than the changes kept, the answer is {"version":...,"reset":true,
+	 * "changes":[]}, and the client should fetch the offerings in full.
+	 */
+	@RequestMapping(value = "/awsec2offering/changes", method = RequestMethod.GET)
+	@ResponseBody
+	public DeferredResult<Object> getChanges(@RequestParam(value = "sinceVersion", required = false) Long sinceVersion,
+			@RequestParam(value = "region", required = false) String region,
+			HttpServletResponse resp)
+	{
+		inFlight.increment();
+		final long start = System.nanoTime();
+		DeferredResult<Object> result = null;
+		try {
+			addCORSHeaders(resp);
+			ReservedCatalog catalog = reservedCatalogs.get(region != null
+					? region : OfferingQuery.getRegion(AVAILABILITYZONE_DEFAULT));
+			if (catalog == null) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+						"The change feed needs awsec2offering.prefetch.enabled and a region served");
+			} else if (sinceVersion == null || sinceVersion.longValue() != catalog.getVersion()) {
+				writeChanges(catalog, sinceVersion, resp);
+			} else {
+				asyncRequests.increment();
+				result = new DeferredResult<Object>(changesTimeout);
+				ChangeWaiter waiter = new ChangeWaiter(catalog, sinceVersion.longValue(), resp, result);
+				result.onTimeout(waiter);
+				changeWaiters.add(waiter);
+				if (catalog.getVersion() != sinceVersion.longValue())
+					waiter.answer();	// changed before the waiter was added
+			}
+		} catch (Exception e) {
+			sendError(resp, e, "get changes");
+		}
+		return completed(result, start);
+	}
+
+	/**
+	 * A change feed request waiting for the catalog to change.  It is
+	 * answered once, on the next change or on timeout, with whatever
+	 * changes there are then.
+	 */
+	private class ChangeWaiter implements Runnable {
+		final ReservedCatalog					catalog;
+		private final long						sinceVersion;
+		private final HttpServletResponse		resp;
+		private final DeferredResult<Object>	result;
+		private final AtomicBoolean				answered = new AtomicBoolean();
+
+		ChangeWaiter(ReservedCatalog catalog, long sinceVersion, HttpServletResponse resp, DeferredResult<Object> result) {
+			this.catalog = catalog;
+			this.sinceVersion = sinceVersion;
+			this.resp = resp;
+			this.result = result;
+		}
+
+		/** Called on timeout. */
+		@Override
+		public void run() {
+			answer();
+		}
+
+		void answer() {
+			if (!answered.compareAndSet(false, true))
+				return;
+			changeWaiters.remove(this);
+			try {
+				writeChanges(catalog, Long.valueOf(sinceVersion), resp);
+			} catch (IOException e) {
+				log.warn("Cannot write changes: " + e.getMessage());
+			}
+			result.setResult(null);	// already written
+		}
+	}
+
+	private void writeChanges(ReservedCatalog catalog, Long sinceVersion, HttpServletResponse resp) throws IOException {
+		long version = catalog.getVersion();
+		List<CatalogDelta> changes = (sinceVersion != null) ? catalog.getChangesSince(sinceVersion.longValue()) : null;
+		resp.setHeader("Cache-Control", "no-store");
+		resp.setContentType(JSON_CONTENTTYPE);
+		JsonGenerator gen = OfferingResponse.createGenerator(mapper, resp.getOutputStream());
+		gen.writeStartObject();
+		gen.writeNumberField(CatalogDelta.VERSION, changes != null && !changes.isEmpty()
+				? changes.get(changes.size() - 1).getVersion() : version);
+		if (changes == null)
+			gen.writeBooleanField(CHANGES_RESET, true);
+		gen.writeArrayFieldStart(CHANGES);
+		if (changes != null) {
+			for (CatalogDelta delta : changes)
+				delta.writeJson(gen);
+		}
+		gen.writeEndArray();
+		gen.writeEndObject();
+		gen.close();
+	}
+
+	/**
+	 * Cache, EC2, catalog and request metrics, in the Prometheus text
+	 * exposition format.
+	 */
+	@RequestMapping(value = "/awsec2offering/metrics", method = RequestMethod.GET)
+	public void getMetrics(HttpServletResponse resp) throws IOException {
+		byte[] body = metrics.write().getBytes("UTF-8");
+		resp.setContentType(Metrics.CONTENT_TYPE);
+		resp.setContentLength(body.length);
+		resp.getOutputStream().write(body);
 	}
 
 /* THIS DOESN'T HELP :(
@@ -322,7 +2205,7 @@ System.out.println("live:   " + key);
 
 	@RequestMapping(value = "/awsec2offering/api/{availabilityZone}/{productDescription}/{offeringType}", method = RequestMethod.GET)
 	@ResponseBody
-	public JsonNode getOfferings(@PathVariable String availabilityZone, @PathVariable String productDescription, @PathVariable String offeringType,
+	public DeferredResult<Object> getOfferings(@PathVariable String availabilityZone, @PathVariable String productDescription, @PathVariable String offeringType,
 			HttpServletRequest req, HttpServletResponse resp)
 	{
 		return getOfferings(availabilityZone, productDescription, offeringType, null, req, resp);
@@ -330,7 +2213,7 @@ System.out.println("live:   " + key);
 
 	@RequestMapping(value = "/awsec2offering/api/{availabilityZone}/{productDescription}", method = RequestMethod.GET)
 	@ResponseBody
-	public JsonNode getOfferings(@PathVariable String availabilityZone, @PathVariable String productDescription,
+	public DeferredResult<Object> getOfferings(@PathVariable String availabilityZone, @PathVariable String productDescription,
 			HttpServletRequest req, HttpServletResponse resp)
 	{
 		return getOfferings(availabilityZone, productDescription, null, null, req, resp);
@@ -338,7 +2221,7 @@ System.out.println("live:   " + key);
 
 	@RequestMapping(value = "/awsec2offering/api/{availabilityZone}", method = RequestMethod.GET)
 	@ResponseBody
-	public JsonNode getOfferings(@PathVariable String availabilityZone,
+	public DeferredResult<Object> getOfferings(@PathVariable String availabilityZone,
 			HttpServletRequest req, HttpServletResponse resp)
 	{
 		return getOfferings(availabilityZone, PRODUCTDESCRIPTION_DEFAULT, null, null, req, resp);
@@ -346,7 +2229,7 @@ System.out.println("live:   " + key);
 
 	@RequestMapping(value = "/awsec2offering/api/", method = RequestMethod.GET)
 	@ResponseBody
-	public JsonNode getAllOfferings(HttpServletRequest req, HttpServletResponse resp)
+	public DeferredResult<Object> getAllOfferings(HttpServletRequest req, HttpServletResponse resp)
 	{
 		return getOfferings(AVAILABILITYZONE_DEFAULT, PRODUCTDESCRIPTION_DEFAULT, null, null, req, resp);
 	}
@@ -359,7 +2242,7 @@ System.out.println("live:   " + key);
 	// fire!  
 	@RequestMapping(method=RequestMethod.GET)
 	@ResponseBody
-	public JsonNode klugeForSingleBeanstalkWAR(HttpServletRequest req, HttpServletResponse resp) {
+	public DeferredResult<Object> klugeForSingleBeanstalkWAR(HttpServletRequest req, HttpServletResponse resp) {
 //System.out.println("in klugeForSingleBeanstalkWAR - getPathInfo = " + req.getPathInfo());
 		final int start = 1;		// e.g., path == "/api/us-east-1a"
 		String parts[] = req.getPathInfo().split("/");
@@ -376,15 +2259,14 @@ System.out.println("live:   " + key);
 	}
 
 	public static void main(String[] args) throws Exception {
-		String availabilityZone = AVAILABILITYZONE_DEFAULT;
-		String productDescription = PRODUCTDESCRIPTION_DEFAULT;
-		String offeringType = HEAVY_PREFIX;
-		String instanceType = "t1.micro,m1.small";
+		OfferingQuery query = OfferingQuery.create(AVAILABILITYZONE_DEFAULT, PRODUCTDESCRIPTION_DEFAULT,
+				HEAVY_PREFIX, "t1.micro,m1.small");
 
 		App app = new App();
+		app.afterPropertiesSet();
 		try {
-			JsonNode json = app.getOfferingsAsJsonNode(availabilityZone, productDescription, offeringType, instanceType);
-			System.out.println(json);
+			OfferingResponse response = app.getCache(query).get(query.getKey(), app.createLoader(query));
+			System.out.println(new String(response.getJson(), "UTF-8"));
 		} catch (AmazonServiceException ase) {
 			ase.printStackTrace();
 		} catch (AmazonClientException ace) {
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A batch of offering queries, each named by an ID.  The queries are
+ * parsed into OfferingQuerys as the GET mappings do, and split into one
+ * single instance type sub-query each, so that a sub-query shared by
+ * several queries is fetched only once.
+ *
+ * The batch is a JSON object like this ...
+ *
+ *	{"queries":[
+ *	 {"id":"a","availabilityZone":"us-east-1a","productDescription":"linux","offeringType":"heavy","instanceType":"t1.micro,m1.small"}
+ *	,{"id":"b","availabilityZone":"us-east-1b"}
+ *	]}
+ *
+ * where omitted fields take the same defaults as the GET mappings.
+ */
+public class BatchQuery {
+	public static final String	QUERIES = "queries";
+	public static final String	ID = "id";
+	public static final String	AVAILABILITYZONE = "availabilityZone";
+	public static final String	PRODUCTDESCRIPTION = "productDescription";
+	public static final String	OFFERINGTYPE = "offeringType";
+	public static final String	INSTANCETYPE = "instanceType";
+
+	/**
+	 * One query of the batch, answered by its sub-queries' offerings in
+	 * instance type order, or by an error if it is invalid.
+	 */
+	public static class Query {
+		private final String			id;
+		private final List<OfferingQuery>	subQueries;
+		private final String			error;		// null if valid
+
+		Query(String id, List<OfferingQuery> subQueries, String error) {
+			this.id = id;
+			this.subQueries = subQueries;
+			this.error = error;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public List<OfferingQuery> getSubQueries() {
+			return subQueries;
+		}
+
+		/** @return Why the query is invalid, or null if it is valid. */
+		public String getError() {
+			return error;
+		}
+	}
+
+	private final List<Query>				queries;
+	private final Map<String, OfferingQuery>		subQueries;	// by key, in first use order
+
+	private BatchQuery(List<Query> queries, Map<String, OfferingQuery> subQueries) {
+		this.queries = queries;
+		this.subQueries = subQueries;
+	}
+
+	/**
+	 * Parses and normalizes a batch.  A query with an unrecognized product
+	 * description or offering type is kept, with an error, so that the rest
+	 * of the batch is still answered.
+	 *
+	 * @param maxQueries
+	 *            The most queries allowed in a batch.
+	 * @throws IllegalArgumentException
+	 *             If the batch is malformed, too large, or repeats an ID.
+	 */
+	public static BatchQuery parse(JsonNode batch, int maxQueries) {
+		return parse(batch, maxQueries, null);
+	}
+
+	/**
+	 * Parses and normalizes a batch, as parse(batch, maxQueries) does.  A
+	 * query whose availability zone isn't in one of regions is also kept,
+	 * with an error.
+	 *
+	 * @param regions
+	 *            The regions served, or null for any.
+	 */
+	public static BatchQuery parse(JsonNode batch, int maxQueries, Set<String> regions) {
+		JsonNode array = batch != null ? batch.get(QUERIES) : null;
+		if (array == null || !array.isArray())
+			throw new IllegalArgumentException("Expected {\"" + QUERIES + "\":[...]}");
+		if (array.size() > maxQueries)
+			throw new IllegalArgumentException("More than " + maxQueries + " queries");
+
+		List<Query> queries = new ArrayList<Query>(array.size());
+		Map<String, OfferingQuery> subQueries = new LinkedHashMap<String, OfferingQuery>();
+		Set<String> ids = new HashSet<String>();
+		for (int i = 0; i < array.size(); i++) {
+			JsonNode query = array.get(i);
+			if (!query.isObject())
+				throw new IllegalArgumentException("Query " + i + " is not an object");
+			String id = text(query, ID, Integer.toString(i));
+			if (!ids.add(id))
+				throw new IllegalArgumentException("Duplicate query id " + id);
+
+			List<OfferingQuery> parts;
+			try {
+				OfferingQuery whole = OfferingQuery.create(
+						text(query, AVAILABILITYZONE, App.AVAILABILITYZONE_DEFAULT),
+						text(query, PRODUCTDESCRIPTION, App.PRODUCTDESCRIPTION_DEFAULT),
+						text(query, OFFERINGTYPE, App.OFFERINGTYPE_DEFAULT),
+						text(query, INSTANCETYPE, App.INSTANCETYPE_DEFAULT));
+				if (regions != null && !regions.contains(whole.getRegion()))
+					throw new IllegalArgumentException("Unknown region " + whole.getRegion());
+				parts = new ArrayList<OfferingQuery>();
+				for (OfferingQuery part : whole.split()) {
+					OfferingQuery shared = subQueries.get(part.getKey());
+					if (shared == null) {
+						shared = part;
+						subQueries.put(part.getKey(), part);
+					}
+					parts.add(shared);
+				}
+			} catch (IllegalArgumentException e) {
+				queries.add(new Query(id, Collections.<OfferingQuery>emptyList(), e.getMessage()));
+				continue;
+			}
+			queries.add(new Query(id, parts, null));
+		}
+		return new BatchQuery(queries, subQueries);
+	}
+
+	private static String text(JsonNode query, String field, String defaultValue) {
+		JsonNode value = query.get(field);
+		if (value == null || value.isNull())
+			return defaultValue;
+		String text = value.asText().trim();
+		return text.isEmpty() ? defaultValue : text;
+	}
+
+	public List<Query> getQueries() {
+		return Collections.unmodifiableList(queries);
+	}
+
+	/** @return The distinct sub-queries of the valid queries. */
+	public Collection<OfferingQuery> getSubQueries() {
+		return Collections.unmodifiableCollection(subQueries.values());
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * Copyright 2014 Ken K. Lin. All Rights Reserved.
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -15,35 +15,715 @@
  */
 package com.kenlin.awsec2offering;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+/**
+ * Caches serialized offering responses by key.  Each entry expires a TTL after it was loaded,
+ * after which it is still served (stale) while a background refresh replaces
+ * it, so only the very first load of a key makes callers wait.  Concurrent
+ * misses for the same key are coalesced into a single load whose result all
+ * of the callers share.  The cache is bounded by entry count and by weight
+ * (the number of offerings held), evicting entries that haven't been served
+ * recently, as approximated by the CLOCK algorithm.
+ *
+ * With a SharedTier, this is the first level of a two level cache: a load
+ * takes another node's newer copy of the key from the shared cache if there
+ * is one, and otherwise shares the offerings it loads with the other nodes.
+ */
 public class Cache {
 	private static final long						MILLIS_IN_DAY = 1000 * 60 * 60 * 24;
+	private static final long						MAXWAIT_DEFAULT = 1000 * 30;
+	private static final int						REFRESH_THREADS = 2;
+	private static final int						REFRESH_QUEUE = 1000;
+
+	/**
+	 * Loads the offerings for a key that isn't cached.
+	 */
+	public interface Loader {
+		OfferingResponse load() throws Exception;
+	}
+
+	/**
+	 * Receives the offerings for a key loaded by load().
+	 */
+	public interface Callback {
+		void loaded(OfferingResponse offerings);
+
+		/** Called instead of loaded() if the load failed and there is nothing to fall back to. */
+		void failed(Exception e);
+	}
+
+	/**
+	 * Receives each cached entry, e.g. to persist the cache.
+	 */
+	public interface Visitor {
+		void visit(String key, OfferingResponse offerings, long loaded) throws IOException;
+	}
+
+	private static class Entry {
+		final OfferingResponse	offerings;
+		final long			loaded;		// millis
+		final int			weight;
+		final long			generation;	// of the cache when its load started
+		volatile boolean	referenced;	// served since eviction last passed it over
+
+		Entry(OfferingResponse offerings, long loaded, long generation) {
+			this.offerings = offerings;
+			this.loaded = loaded;
+			this.weight = 1 + offerings.size();
+			this.generation = generation;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry>	cache = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<String, Load>	loading = new ConcurrentHashMap<String, Load>();
+	private final LinkedHashMap<String, Entry>		clock = new LinkedHashMap<String, Entry>();	// oldest first, guarded by itself
+	private final AtomicLong						weight = new AtomicLong();
+	private final AtomicLong						generation = new AtomicLong();	// bumped by invalidate()
+	private volatile long							invalidated = 0;	// millis
 
-	private ConcurrentHashMap<String, ArrayNode>	cache = null;
-	private	long									oldest = 0;
 	private long									ttl = MILLIS_IN_DAY;
-	
+	private long									maxStale = 7 * MILLIS_IN_DAY;
+	private long									maxWait = MAXWAIT_DEFAULT;
+	private int										maxEntries = Integer.MAX_VALUE;
+	private long									maxWeight = Long.MAX_VALUE;
+	private ThreadPoolExecutor						refresher = null;
+	private volatile SharedTier						shared = null;
+	private ObjectMapper							sharedMapper = null;
+	private boolean									sharedGzip = false;
+
+	private final AtomicLong						hits = new AtomicLong();
+	private final AtomicLong						staleHits = new AtomicLong();
+	private final AtomicLong						misses = new AtomicLong();
+	private final AtomicLong						loads = new AtomicLong();
+	private final AtomicLong						loadFailures = new AtomicLong();
+	private final AtomicLong						coalesced = new AtomicLong();
+	private final AtomicLong						timeouts = new AtomicLong();
+	private final AtomicLong						fallbacks = new AtomicLong();
+	private final AtomicLong						refreshes = new AtomicLong();
+	private final AtomicLong						unchanged = new AtomicLong();
+	private final AtomicLong						warms = new AtomicLong();
+	private final AtomicLong						evictions = new AtomicLong();
+
 	public Cache() {
-		cache = new ConcurrentHashMap<String, ArrayNode>();
-	}
-	
-	public ArrayNode get(String key) {
-		if (System.currentTimeMillis() > (oldest + ttl)) {
-			cache.clear();
-			oldest = 0;
-			return null;
-		} else {
-			ArrayNode offerings = cache.get(key);
+		this(MILLIS_IN_DAY, MAXWAIT_DEFAULT);
+	}
+
+	/**
+	 * @param maxWait
+	 *            How long, in milliseconds, a caller waits for another
+	 *            caller's load of the same key before falling back.
+	 */
+	public Cache(long ttl, long maxWait) {
+		this(ttl, 7 * MILLIS_IN_DAY, maxWait, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param ttl
+	 *            Milliseconds after which an entry is refreshed.
+	 * @param maxStale
+	 *            Milliseconds past its TTL that an entry may still be served
+	 *            while it is refreshed.  Older entries are reloaded in the
+	 *            foreground.
+	 * @param maxWait
+	 *            How long, in milliseconds, a caller waits for another
+	 *            caller's load of the same key before falling back.
+	 * @param maxEntries
+	 *            The maximum number of keys.
+	 * @param maxWeight
+	 *            The maximum number of offerings across all keys.
+	 */
+	public Cache(long ttl, long maxStale, long maxWait, int maxEntries, long maxWeight) {
+		this.ttl = ttl;
+		this.maxStale = maxStale;
+		this.maxWait = maxWait;
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.refresher = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "cache-refresher");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.refresher.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Loads keys through shared from now on.
+	 *
+	 * @param mapper
+	 *            Serializes the offerings taken from the shared cache.
+	 * @param gzip
+	 *            Whether to also keep them gzipped, as OfferingResponse.create().
+	 */
+	public void setShared(SharedTier shared, ObjectMapper mapper, boolean gzip) {
+		this.sharedMapper = mapper;
+		this.sharedGzip = gzip;
+		this.shared = shared;
+	}
+
+	public void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	/**
+	 * @return The cached offerings for key, fresh or stale, without loading
+	 *         or refreshing them.
+	 */
+	public OfferingResponse get(String key) {
+		Entry entry = cache.get(key);
+		return entry != null ? entry.offerings : null;
+	}
+
+	/**
+	 * Returns the cached offerings for key, loading them if necessary.
+	 *
+	 * An entry past its TTL is returned as is while the loader refreshes it
+	 * in the background.  Otherwise only one caller runs the loader for a
+	 * given key; the others wait up to maxWait for its result.  If that load
+	 * fails or takes too long, a waiter falls back to the key's last
+	 * offerings, if there are any.
+	 */
+	public OfferingResponse get(String key, Loader loader) throws Exception {
+		Entry entry = cache.get(key);
+		OfferingResponse offerings = serve(key, entry, loader);
+		if (offerings != null)
 			return offerings;
+
+		misses.incrementAndGet();
+		Load load = new Load(key, loader);
+		Load inflight = loading.putIfAbsent(key, load);
+		if (inflight == null) {
+			try {
+				load.run();
+				return load.get();
+			} catch (ExecutionException e) {
+				return fallback(entry, rethrow(e));
+			}
+		}
+
+		coalesced.incrementAndGet();
+		try {
+			return inflight.get(maxWait, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			timeouts.incrementAndGet();
+			return fallback(entry, e);
+		} catch (ExecutionException e) {
+			return fallback(entry, rethrow(e));
+		}
+	}
+
+	/**
+	 * Returns the cached offerings for key if they can be served without
+	 * waiting, refreshing them in the background if they are past their TTL,
+	 * as get() does.
+	 *
+	 * @return The offerings, or null if they must be loaded, e.g. by load().
+	 */
+	public OfferingResponse getIfPresent(String key, Loader loader) {
+		return serve(key, cache.get(key), loader);
+	}
+
+	/**
+	 * Loads the offerings for key on executor, or joins the load of key
+	 * already in flight, without waiting for it.  The offerings are passed
+	 * to callback, on the loading thread, or on the calling thread if they
+	 * are already available.  If the load fails, callback gets the key's
+	 * last offerings, if there are any.
+	 */
+	public void load(String key, Loader loader, Executor executor, Callback callback) {
+		Entry entry = cache.get(key);
+		OfferingResponse offerings = serve(key, entry, loader);
+		if (offerings != null) {
+			callback.loaded(offerings);	// loaded since the caller looked
+			return;
+		}
+
+		misses.incrementAndGet();
+		Load load = new Load(key, loader);
+		Load inflight = loading.putIfAbsent(key, load);
+		if (inflight == null) {
+			inflight = load;
+			try {
+				executor.execute(load);
+			} catch (RejectedExecutionException e) {
+				loading.remove(key, load);
+				notify(callback, entry, e);
+				return;
+			}
+		} else {
+			coalesced.incrementAndGet();
+		}
+		inflight.addCallback(callback, entry);
+	}
+
+	/**
+	 * Loads key on executor, without a caller, if it isn't cached or will
+	 * be past its TTL within ahead milliseconds, unless it is already being
+	 * loaded, so that the next caller finds it fresh.
+	 *
+	 * @return Whether a load was started.
+	 */
+	public boolean warm(String key, Loader loader, long ahead, Executor executor) {
+		Entry entry = cache.get(key);
+		if (entry != null && entry.generation == generation.get()
+				&& System.currentTimeMillis() - entry.loaded < ttl - ahead)
+			return false;
+		Load load = new Load(key, loader);
+		if (loading.putIfAbsent(key, load) != null)
+			return false;
+		try {
+			executor.execute(load);
+		} catch (RejectedExecutionException e) {
+			loading.remove(key, load);
+			return false;
+		}
+		warms.incrementAndGet();
+		return true;
+	}
+
+	public OfferingResponse put(String key, OfferingResponse offerings) {
+		return put(key, offerings, System.currentTimeMillis());
+	}
+
+	/**
+	 * Caches offerings that were loaded earlier, e.g. restored from a
+	 * Snapshot, so that they age, and are refreshed, from when they were
+	 * actually loaded.
+	 *
+	 * @param loaded
+	 *            When, in millis, offerings were loaded.
+	 */
+	public OfferingResponse put(String key, OfferingResponse offerings, long loaded) {
+		return put(key, new Entry(offerings, loaded, generation.get()));
+	}
+
+	/**
+	 * Makes every entry, and every load in flight, too old to serve, e.g.
+	 * because offerings that they include have changed.  Each entry is
+	 * loaded again when it is next asked for, and until then is only fallen
+	 * back to if that load fails.
+	 */
+	public void invalidate() {
+		invalidated = System.currentTimeMillis();
+		generation.incrementAndGet();
+		loading.clear();	// so that no caller joins a load of the old offerings
+	}
+
+	private OfferingResponse put(String key, Entry entry) {
+		Entry previous;
+		synchronized (clock) {
+			previous = cache.get(key);
+			if (previous != null && previous.generation > entry.generation)
+				return previous.offerings;	// loaded before an invalidate() that a newer load followed
+			cache.put(key, entry);
+			clock.remove(key);
+			clock.put(key, entry);
+			weight.addAndGet(entry.weight - (previous != null ? previous.weight : 0));
+			evict();
+		}
+		return previous != null ? previous.offerings : null;
+	}
+
+	/**
+	 * Passes every entry to visitor, in no particular order, except those
+	 * made too old to serve by invalidate().
+	 */
+	public void visit(Visitor visitor) throws IOException {
+		long current = generation.get();
+		for (Map.Entry<String, Entry> e : cache.entrySet()) {
+			if (e.getValue().generation == current)
+				visitor.visit(e.getKey(), e.getValue().offerings, e.getValue().loaded);
+		}
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getWeight() {
+		return weight.get();
+	}
+
+	/** @return The number of callers served a fresh entry. */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/** @return The number of callers served an expired entry being refreshed. */
+	public long getStaleHitCount() {
+		return staleHits.get();
+	}
+
+	/** @return The number of callers that had to wait for a load. */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** @return The number of loads and refreshes run. */
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	/** @return The number of loads and refreshes that failed. */
+	public long getLoadFailureCount() {
+		return loadFailures.get();
+	}
+
+	/** @return The number of callers that shared another caller's load. */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/** @return The number of callers that gave up waiting for a load. */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/** @return The number of callers served a key's last offerings after a failed or slow load. */
+	public long getFallbackCount() {
+		return fallbacks.get();
+	}
+
+	/** @return The number of background refreshes started. */
+	public long getRefreshCount() {
+		return refreshes.get();
+	}
+
+	/** @return The number of loads and refreshes whose offerings hadn't changed. */
+	public long getUnchangedCount() {
+		return unchanged.get();
+	}
+
+	/** @return The number of loads started by warm(). */
+	public long getWarmCount() {
+		return warms.get();
+	}
+
+	/** @return The number of entries evicted to stay within maxEntries and maxWeight. */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Exposes the cache's counters and size as metrics named prefix_...
+	 */
+	public void register(Metrics metrics, String prefix) {
+		metrics.counter(prefix + "_hits_total", "Callers served a fresh entry.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getHitCount();
+			}
+		});
+		metrics.counter(prefix + "_stale_hits_total", "Callers served an expired entry being refreshed.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getStaleHitCount();
+			}
+		});
+		metrics.counter(prefix + "_misses_total", "Callers that had to wait for a load.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getMissCount();
+			}
+		});
+		metrics.counter(prefix + "_loads_total", "Loads and refreshes run.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getLoadCount();
+			}
+		});
+		metrics.counter(prefix + "_load_failures_total", "Loads and refreshes that failed.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getLoadFailureCount();
+			}
+		});
+		metrics.counter(prefix + "_coalesced_total", "Callers that shared another caller's load.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getCoalescedCount();
+			}
+		});
+		metrics.counter(prefix + "_timeouts_total", "Callers that gave up waiting for a load.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getTimeoutCount();
+			}
+		});
+		metrics.counter(prefix + "_fallbacks_total", "Callers served a key's last offerings after a failed or slow load.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getFallbackCount();
+			}
+		});
+		metrics.counter(prefix + "_refreshes_total", "Background refreshes started.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getRefreshCount();
+			}
+		});
+		metrics.counter(prefix + "_unchanged_total", "Loads and refreshes whose offerings hadn't changed.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getUnchangedCount();
+			}
+		});
+		metrics.counter(prefix + "_warms_total", "Loads started ahead of demand to keep hot keys fresh.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getWarmCount();
+			}
+		});
+		metrics.counter(prefix + "_evictions_total", "Entries evicted to stay within bounds.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getEvictionCount();
+			}
+		});
+		metrics.gauge(prefix + "_entries", "Cached keys.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return size();
+			}
+		});
+		metrics.gauge(prefix + "_weight", "Cached offerings, plus one per key.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getWeight();
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return "entries=" + size() + " weight=" + getWeight()
+				+ " hits=" + getHitCount() + " staleHits=" + getStaleHitCount()
+				+ " misses=" + getMissCount() + " loads=" + getLoadCount()
+				+ " loadFailures=" + getLoadFailureCount() + " coalesced=" + getCoalescedCount()
+				+ " timeouts=" + getTimeoutCount() + " fallbacks=" + getFallbackCount()
+				+ " refreshes=" + getRefreshCount() + " unchanged=" + getUnchangedCount()
+				+ " warms=" + getWarmCount() + " evictions=" + getEvictionCount();
+	}
+
+	/**
+	 * A load of key that caches its result and then stops being the key's
+	 * in-flight load.
+	 */
+	private class Load extends FutureTask<OfferingResponse> {
+		private final String			key;
+		private final List<Callback>	callbacks = new ArrayList<Callback>(1);
+		private final List<Entry>		entries = new ArrayList<Entry>(1);	// to fall back to, per callback
+
+		Load(String key, Loader loader) {
+			this(key, loader, generation.get());
+		}
+
+		private Load(final String key, final Loader loader, final long loadGeneration) {
+			super(new Callable<OfferingResponse>() {
+				@Override
+				public OfferingResponse call() throws Exception {
+					loads.incrementAndGet();
+					try {
+						Entry current = cache.get(key);
+						long loaded = System.currentTimeMillis();
+						OfferingResponse offerings = null;
+						SharedTier shared = Cache.this.shared;
+						if (shared != null) {
+							// Another node's copy will do if it is newer than ours,
+							// and than the last invalidate()
+							long since = Math.max(loaded - ttl, invalidated);
+							if (current != null && current.generation == loadGeneration)
+								since = Math.max(since, current.loaded);
+							Snapshot.Section section = shared.acquire(key, since);
+							if (section != null) {
+								offerings = OfferingResponse.create(sharedMapper, section.getTable(), sharedGzip);
+								loaded = section.getLoaded();
+							}
+						}
+						if (offerings == null) {
+							try {
+								offerings = loader.load();
+								loaded = System.currentTimeMillis();
+								if (shared != null)
+									shared.put(key, offerings.getTable(), loaded);
+							} finally {
+								if (shared != null)
+									shared.release(key);
+							}
+						}
+						current = cache.get(key);
+						if (current != null && current.offerings.getETag().equals(offerings.getETag())) {
+							// Keep serving the same response, so its ETag,
+							// gzipped copy and cost curves stay in place
+							offerings = current.offerings;
+							unchanged.incrementAndGet();
+						}
+						put(key, new Entry(offerings, loaded, loadGeneration));
+						return offerings;
+					} catch (Exception e) {
+						loadFailures.incrementAndGet();
+						throw e;
+					}
+				}
+			});
+			this.key = key;
+		}
+
+		/**
+		 * Passes the result to callback once the load is done, or now if it
+		 * already is.
+		 */
+		void addCallback(Callback callback, Entry fallback) {
+			synchronized (this) {
+				if (!isDone()) {
+					callbacks.add(callback);
+					entries.add(fallback);
+					return;
+				}
+			}
+			notify(callback, fallback);
+		}
+
+		@Override
+		protected void done() {
+			loading.remove(key, this);
+			List<Callback> callbacks;
+			List<Entry> entries;
+			synchronized (this) {
+				callbacks = new ArrayList<Callback>(this.callbacks);
+				entries = new ArrayList<Entry>(this.entries);
+				this.callbacks.clear();
+				this.entries.clear();
+			}
+			for (int i = 0; i < callbacks.size(); i++)
+				notify(callbacks.get(i), entries.get(i));
+		}
+
+		private void notify(Callback callback, Entry fallback) {
+			OfferingResponse offerings;
+			try {
+				offerings = get();
+			} catch (ExecutionException e) {
+				Cache.this.notify(callback, fallback, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				return;
+			} catch (Exception e) {
+				Cache.this.notify(callback, fallback, e);	// cancelled
+				return;
+			}
+			callback.loaded(offerings);
 		}
 	}
-	
-	public ArrayNode put(String key, ArrayNode offerings) {
-		if (oldest == 0)
-			oldest = System.currentTimeMillis();
-		return cache.put(key, offerings);
+
+	/**
+	 * Tells callback that a load failed, falling back to entry if there is
+	 * one.
+	 */
+	private void notify(Callback callback, Entry entry, Exception e) {
+		if (entry != null) {
+			fallbacks.incrementAndGet();
+			callback.loaded(entry.offerings);
+		} else {
+			callback.failed(e);
+		}
+	}
+
+	/**
+	 * @return entry's offerings if they can be served as is, refreshing them
+	 *         if they are past their TTL, or null if they must be loaded,
+	 *         e.g. since invalidate().
+	 */
+	private OfferingResponse serve(String key, Entry entry, Loader loader) {
+		if (entry != null && entry.generation == generation.get()) {
+			if (!entry.referenced)
+				entry.referenced = true;	// no lock, and no write once marked
+			long age = System.currentTimeMillis() - entry.loaded;
+			if (age <= ttl) {
+				hits.incrementAndGet();
+				return entry.offerings;
+			} else if (age <= ttl + maxStale) {
+				staleHits.incrementAndGet();
+				refresh(key, loader);
+				return entry.offerings;
+			}
+		}
+		return null;
+	}
+
+	private void refresh(String key, Loader loader) {
+		Load load = new Load(key, loader);
+		if (loading.putIfAbsent(key, load) == null) {
+			try {
+				refresher.execute(load);
+				refreshes.incrementAndGet();
+			} catch (RejectedExecutionException e) {
+				// Too many refreshes queued; a later caller will try again
+				loading.remove(key, load);
+			}
+		}
+	}
+
+	/**
+	 * Evicts entries until the cache is within its bounds.  The oldest entry
+	 * is evicted unless it has been served since eviction last passed it
+	 * over, in which case it is moved to the end of clock and loses its
+	 * mark.  Hits only mark entries, so they never take clock's lock, and
+	 * each eviction is amortized O(1).  Called holding clock's lock.
+	 */
+	private void evict() {
+		int chances = clock.size();	// so that constant hits can't stop eviction
+		while ((cache.size() > maxEntries || weight.get() > maxWeight) && !clock.isEmpty()) {
+			Iterator<Map.Entry<String, Entry>> oldest = clock.entrySet().iterator();
+			Map.Entry<String, Entry> e = oldest.next();
+			oldest.remove();
+			Entry entry = e.getValue();
+			if (entry.referenced && chances-- > 0) {
+				entry.referenced = false;
+				clock.put(e.getKey(), entry);
+				continue;
+			}
+			cache.remove(e.getKey());
+			weight.addAndGet(-entry.weight);
+			evictions.incrementAndGet();
+		}
+	}
+
+	private OfferingResponse fallback(Entry entry, Exception e) throws Exception {
+		if (entry == null)
+			throw e;
+		fallbacks.incrementAndGet();
+		return entry.offerings;
+	}
+
+	private static Exception rethrow(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof Exception)
+			return (Exception) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return e;
 	}
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The differences between two versions of the reserved catalog: the
+ * offerings added, removed and repriced, each identified by its
+ * OfferingTable.getKey().
+ *
+ * Offerings that share a key (EC2 offerings that differ only in values
+ * that aren't kept, e.g. tenancy) are matched up by price.  If their
+ * number changes, all of them are reported as removed and added.
+ */
+public class CatalogDelta {
+	public static final String	VERSION = "version";
+	public static final String	PREVIOUSVERSION = "previousVersion";
+	public static final String	ADDED = "added";
+	public static final String	REMOVED = "removed";
+	public static final String	REPRICED = "repriced";
+
+	private final long			previousVersion;
+	private final long			version;
+	private final OfferingTable	added;
+	private final OfferingTable	removed;	// as they were
+	private final OfferingTable	repriced;	// as they are now
+
+	private CatalogDelta(long previousVersion, long version,
+			OfferingTable added, OfferingTable removed, OfferingTable repriced)
+	{
+		this.previousVersion = previousVersion;
+		this.version = version;
+		this.added = added;
+		this.removed = removed;
+		this.repriced = repriced;
+	}
+
+	/**
+	 * Compares the offerings of two versions of the catalog.
+	 */
+	public static CatalogDelta compute(OfferingTable previous, long previousVersion, OfferingTable current, long version) {
+		Map<String, List<Integer>> before = group(previous);
+		Map<String, List<Integer>> after = group(current);
+		OfferingTable.Builder added = new OfferingTable.Builder(1);
+		OfferingTable.Builder removed = new OfferingTable.Builder(1);
+		OfferingTable.Builder repriced = new OfferingTable.Builder(1);
+
+		for (Map.Entry<String, List<Integer>> e : after.entrySet()) {
+			List<Integer> now = e.getValue();
+			List<Integer> was = before.get(e.getKey());
+			if (was == null || was.size() != now.size()) {
+				for (Integer row : now)
+					added.add(current, row.intValue());
+				if (was != null) {
+					for (Integer row : was)
+						removed.add(previous, row.intValue());
+				}
+				continue;
+			}
+			for (int i = 0; i < now.size(); i++) {
+				if (!current.samePrices(now.get(i).intValue(), previous, was.get(i).intValue()))
+					repriced.add(current, now.get(i).intValue());
+			}
+		}
+		for (Map.Entry<String, List<Integer>> e : before.entrySet()) {
+			if (!after.containsKey(e.getKey())) {
+				for (Integer row : e.getValue())
+					removed.add(previous, row.intValue());
+			}
+		}
+		return new CatalogDelta(previousVersion, version, added.build(), removed.build(), repriced.build());
+	}
+
+	/**
+	 * @return table's rows by key, those with the same key in price order.
+	 */
+	private static Map<String, List<Integer>> group(final OfferingTable table) {
+		Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>(table.size() * 2);
+		for (int row = 0; row < table.size(); row++) {
+			String key = table.getKey(row);
+			List<Integer> rows = groups.get(key);
+			if (rows == null) {
+				rows = new ArrayList<Integer>(1);
+				groups.put(key, rows);
+			}
+			rows.add(Integer.valueOf(row));
+		}
+		Comparator<Integer> byPrice = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Float.compare(table.getFixedPrice(a.intValue()), table.getFixedPrice(b.intValue()));
+				return c != 0 ? c : Double.compare(table.getHourlyPrice(a.intValue()), table.getHourlyPrice(b.intValue()));
+			}
+		};
+		for (List<Integer> rows : groups.values()) {
+			if (rows.size() > 1)
+				Collections.sort(rows, byPrice);
+		}
+		return groups;
+	}
+
+	/** @return The catalog version this delta applies to. */
+	public long getPreviousVersion() {
+		return previousVersion;
+	}
+
+	/** @return The catalog version this delta produces. */
+	public long getVersion() {
+		return version;
+	}
+
+	public OfferingTable getAdded() {
+		return added;
+	}
+
+	/** @return The removed offerings, as they were. */
+	public OfferingTable getRemoved() {
+		return removed;
+	}
+
+	/** @return The repriced offerings, with their new prices. */
+	public OfferingTable getRepriced() {
+		return repriced;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** @return The number of offerings added, removed and repriced. */
+	public int size() {
+		return added.size() + removed.size() + repriced.size();
+	}
+
+	/**
+	 * Writes {"previousVersion":...,"version":...,"added":[...],"removed":[...],"repriced":[...]}
+	 */
+	public void writeJson(JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		gen.writeNumberField(PREVIOUSVERSION, previousVersion);
+		gen.writeNumberField(VERSION, version);
+		writeJson(gen, ADDED, added);
+		writeJson(gen, REMOVED, removed);
+		writeJson(gen, REPRICED, repriced);
+		gen.writeEndObject();
+	}
+
+	private static void writeJson(JsonGenerator gen, String name, OfferingTable table) throws IOException {
+		gen.writeArrayFieldStart(name);
+		for (int row = 0; row < table.size(); row++)
+			table.writeJson(row, gen);
+		gen.writeEndArray();
+	}
+
+	@Override
+	public String toString() {
+		return previousVersion + " -> " + version + ": " + added.size() + " added, "
+				+ removed.size() + " removed, " + repriced.size() + " repriced";
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+/**
+ * A circuit breaker.  After failureThreshold consecutive failures it opens,
+ * and calls are refused without being attempted for openMillis.  Then it
+ * is half-open: a single trial call is let through, and its outcome closes
+ * the breaker or opens it again.
+ */
+public class CircuitBreaker {
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final int		failureThreshold;
+	private final long		openNanos;
+	private State			state = State.CLOSED;
+	private int				failures = 0;		// consecutive
+	private long			opened = 0;			// nanos
+	private boolean			trial = false;		// a half-open trial call is in flight
+	private long			opens = 0;
+	private long			rejections = 0;
+
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openNanos = openMillis * 1000000;
+	}
+
+	/**
+	 * @return Whether a call may be attempted now.  If so, its outcome must
+	 *         be reported with success(), failure() or abandon().
+	 */
+	public synchronized boolean allow() {
+		if (state == State.OPEN && System.nanoTime() - opened >= openNanos)
+			state = State.HALF_OPEN;
+		if (state == State.CLOSED)
+			return true;
+		if (state == State.HALF_OPEN && !trial) {
+			trial = true;
+			return true;
+		}
+		rejections++;
+		return false;
+	}
+
+	public synchronized void success() {
+		failures = 0;
+		trial = false;
+		state = State.CLOSED;
+	}
+
+	public synchronized void failure() {
+		failures++;
+		trial = false;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+			state = State.OPEN;
+			opened = System.nanoTime();
+			opens++;
+		}
+	}
+
+	/**
+	 * Reports that an allowed call ended without telling whether the
+	 * upstream is healthy, e.g. because it was cancelled.
+	 */
+	public synchronized void abandon() {
+		trial = false;
+	}
+
+	public synchronized State getState() {
+		if (state == State.OPEN && System.nanoTime() - opened >= openNanos)
+			return State.HALF_OPEN;
+		return state;
+	}
+
+	/** @return The number of times the breaker has opened. */
+	public synchronized long getOpenCount() {
+		return opens;
+	}
+
+	/** @return The number of calls refused while the breaker was open. */
+	public synchronized long getRejectionCount() {
+		return rejections;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.OfferingTypeValues;
+
+/**
+ * The cumulative cost of each of an OfferingTable's offerings, month by
+ * month for up to MONTHS months, precomputed into primitive arrays so that
+ * offerings can be ranked by cost without creating any objects per row.
+ *
+ * An offering costs its fixed price at the start of each term of duration
+ * (an offering without a duration is never renewed), plus its hourly price
+ * for HOURS_IN_MONTH hours a month.  Heavy Utilization offerings are billed
+ * every hour; the others are billed only for the hours used, so the cost
+ * at month m and utilization u is committed[m] + u * m * usage.
+ */
+public class CostCurves {
+	public static final int		MONTHS = 36;
+	public static final int		NONE = -1;		// e.g., no break-even month
+
+	private static final int	STRIDE = MONTHS + 1;
+	private static final String	HEAVY = OfferingTypeValues.HeavyUtilization.toString();
+
+	private final OfferingTable	table;
+	private final float[]		committed;	// [row * STRIDE + month], billed regardless of use
+	private final float[]		usage;		// [row], billed per month of full use
+	private final int[]			onDemand;	// [row], the row's on-demand counterpart, or NONE
+
+	public CostCurves(OfferingTable table) {
+		int size = table.size();
+		this.table = table;
+		this.committed = new float[size * STRIDE];
+		this.usage = new float[size];
+		this.onDemand = new int[size];
+
+		for (int row = 0; row < size; row++) {
+			double fixedPrice = table.getFixedPrice(row);
+			double monthlyPrice = table.getHourlyPrice(row) * Offering.HOURS_IN_MONTH;
+			long termMonths = table.getDuration(row) / Offering.SECONDS_IN_MONTH;
+			boolean heavy = HEAVY.equals(table.getOfferingType(row));
+			usage[row] = heavy ? 0 : (float) monthlyPrice;
+			for (int month = 0; month <= MONTHS; month++) {
+				// 1 year term 1 = months 0-12, 1 year term 2 = months 13-24
+				long terms = (termMonths > 0 && month > 0) ? ((month - 1) / termMonths) + 1 : 1;
+				committed[row * STRIDE + month] = (float) (terms * fixedPrice + (heavy ? month * monthlyPrice : 0));
+			}
+		}
+
+		Map<String, Integer> onDemandRows = new HashMap<String, Integer>();
+		for (int row = 0; row < size; row++) {
+			if (isOnDemand(row) && !onDemandRows.containsKey(counterpartKey(row)))
+				onDemandRows.put(counterpartKey(row), Integer.valueOf(row));
+		}
+		for (int row = 0; row < size; row++) {
+			Integer other = isOnDemand(row) ? null : onDemandRows.get(counterpartKey(row));
+			onDemand[row] = other != null ? other.intValue() : NONE;
+		}
+	}
+
+	private boolean isOnDemand(int row) {
+		return Offering.OFFERINGTYPE_ONDEMAND.equals(table.getOfferingType(row));
+	}
+
+	private String counterpartKey(int row) {
+		return App.createKey(table.getAvailabilityZone(row), table.getProductDescription(row),
+				null, table.getInstanceType(row));
+	}
+
+	public OfferingTable getTable() {
+		return table;
+	}
+
+	/**
+	 * @param month
+	 *            From 0, i.e. just the first fixed price, to MONTHS.
+	 * @param utilization
+	 *            The fraction of hours used, from 0 to 1.
+	 * @return The total cost of row through month.
+	 */
+	public double getCost(int row, int month, double utilization) {
+		return committed[row * STRIDE + month] + utilization * month * usage[row];
+	}
+
+	/**
+	 * @return The first month, from 1 to MONTHS, in which row has cost no
+	 *         more than its on-demand counterpart, or NONE if it never does,
+	 *         or has no on-demand counterpart.
+	 */
+	public int getBreakEvenMonth(int row, double utilization) {
+		int other = onDemand[row];
+		if (other == NONE)
+			return NONE;
+		for (int month = 1; month <= MONTHS; month++) {
+			if (getCost(row, month, utilization) <= getCost(other, month, utilization))
+				return month;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Ranks the rows by total cost through months, in a single pass that
+	 * keeps just the top cheapest.  Equal costs keep row order.
+	 *
+	 * @return Up to top rows, cheapest first.
+	 */
+	public int[] rank(int months, double utilization, int top) {
+		if (months < 0 || months > MONTHS)
+			throw new IllegalArgumentException("months must be from 0 to " + MONTHS);
+		int[] rows = new int[Math.min(top, table.size())];
+		double[] costs = new double[rows.length];
+		int n = 0;
+		for (int row = 0; row < table.size() && rows.length > 0; row++) {
+			double cost = getCost(row, months, utilization);
+			if (n == rows.length && cost >= costs[n - 1])
+				continue;
+			int i = (n < rows.length) ? n++ : n - 1;
+			for (; i > 0 && costs[i - 1] > cost; i--) {
+				rows[i] = rows[i - 1];
+				costs[i] = costs[i - 1];
+			}
+			rows[i] = row;
+			costs[i] = cost;
+		}
+		return rows;
+	}
+}
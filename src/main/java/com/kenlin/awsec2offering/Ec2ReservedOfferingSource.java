@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeReservedInstancesOfferingsRequest;
+import com.amazonaws.services.ec2.model.DescribeReservedInstancesOfferingsResult;
+import com.amazonaws.services.ec2.model.ReservedInstancesOffering;
+import com.amazonaws.services.ec2.model.Tenancy;
+
+/**
+ * Reserved offerings from EC2 itself.  Non-marketplace, default tenancy
+ * offerings only.  At most maxConcurrentCalls calls are made at once, so
+ * that a burst of misses can't trip EC2's request throttling.
+ */
+public class Ec2ReservedOfferingSource implements ReservedOfferingSource {
+	private final AmazonEC2	ec2;
+	private final Semaphore	permits;
+
+	public Ec2ReservedOfferingSource(AmazonEC2 ec2, int maxConcurrentCalls) {
+		this.ec2 = ec2;
+		this.permits = new Semaphore(maxConcurrentCalls, true);
+	}
+
+	@Override
+	public Page describe(String availabilityZone, String productDescription, String offeringType, String instanceType,
+			String nextToken)
+	{
+		DescribeReservedInstancesOfferingsRequest req = new DescribeReservedInstancesOfferingsRequest()
+				.withIncludeMarketplace(false).
+				withInstanceTenancy(Tenancy.Default); // Not Tenancy.Dedicated
+		if (availabilityZone != null)
+			req.setAvailabilityZone(availabilityZone);
+		if (productDescription != null)
+			req.setProductDescription(productDescription);
+		if (offeringType != null)
+			req.setOfferingType(offeringType);
+		if (instanceType != null)
+			req.setInstanceType(App.parseInstanceType(instanceType));
+		if (nextToken != null)
+			req.setNextToken(nextToken);
+
+		DescribeReservedInstancesOfferingsResult res = describeReservedInstancesOfferings(req);
+		List<Offering> offerings = new ArrayList<Offering>(res.getReservedInstancesOfferings().size());
+		for (ReservedInstancesOffering o : res.getReservedInstancesOfferings())
+			offerings.add(new Offering(o));
+		return new Page(offerings, res.getNextToken());
+	}
+
+	private DescribeReservedInstancesOfferingsResult describeReservedInstancesOfferings(DescribeReservedInstancesOfferingsRequest req) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted waiting for an EC2 call permit", e);
+		}
+		try {
+			return ec2.describeReservedInstancesOfferings(req);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EC2";
+	}
+}
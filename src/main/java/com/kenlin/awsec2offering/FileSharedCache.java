@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A SharedCache in a directory, e.g. on a volume mounted by every node, or
+ * a local one for testing.  Each key is a file holding a single section
+ * Snapshot, named after a digest of the key, that is replaced atomically
+ * when the key is put.  Each key's lease is a record in a file beside it,
+ * read and written under a file lock: the holder, and when it expires.
+ *
+ * Expired leases are taken over, so a node that dies while loading only
+ * delays the others by the rest of its lease.
+ */
+public class FileSharedCache implements SharedCache {
+	private static final String		ENTRY_SUFFIX = ".aeos";
+	private static final String		LEASE_SUFFIX = ".lease";
+	private static final char[]		HEX = "0123456789abcdef".toCharArray();
+	private static final Charset	UTF8 = Charset.forName("UTF-8");
+
+	private final File				dir;
+	private final String			owner;
+	private final long				leaseMillis;
+
+	/**
+	 * @param owner
+	 *            This node's name in leases, unique among the nodes, or null
+	 *            for the JVM's "pid@host".
+	 * @param leaseMillis
+	 *            How long a lease lasts, i.e. longer than a load takes.
+	 */
+	public FileSharedCache(File dir, String owner, long leaseMillis) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		this.dir = dir;
+		this.owner = owner != null ? owner : ManagementFactory.getRuntimeMXBean().getName();
+		this.leaseMillis = leaseMillis;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Opens key's file once per call, and reads the offerings only if the
+	 * section's header shows they are newer than since.
+	 *
+	 * @return key's offerings, or null if there are none newer than since,
+	 *         or the file holds another key with the same digest.
+	 */
+	@Override
+	public Snapshot.Section get(String key, long since) throws IOException {
+		return Snapshot.readSection(file(key, ENTRY_SUFFIX), key, since);
+	}
+
+	@Override
+	public void put(String key, OfferingTable table, long loaded) throws IOException {
+		new Snapshot().add(key, loaded, table).write(file(key, ENTRY_SUFFIX));
+	}
+
+	@Override
+	public boolean tryLease(String key) throws IOException {
+		RandomAccessFile lease = openLease(key);
+		try {
+			// File locks are held by the whole JVM, so its threads take turns
+			synchronized (FileSharedCache.class) {
+				FileLock lock = lease.getChannel().lock();
+				try {
+					long now = System.currentTimeMillis();
+					if (lease.length() > 0) {
+						String holder = lease.readUTF();
+						long expires = lease.readLong();
+						if (!holder.equals(owner) && now < expires)
+							return false;
+					}
+					lease.seek(0);
+					lease.setLength(0);
+					lease.writeUTF(owner);
+					lease.writeLong(now + leaseMillis);
+					return true;
+				} finally {
+					lock.release();
+				}
+			}
+		} finally {
+			lease.close();
+		}
+	}
+
+	@Override
+	public void release(String key) throws IOException {
+		RandomAccessFile lease = openLease(key);
+		try {
+			synchronized (FileSharedCache.class) {
+				FileLock lock = lease.getChannel().lock();
+				try {
+					if (lease.length() > 0 && lease.readUTF().equals(owner))
+						lease.setLength(0);
+				} finally {
+					lock.release();
+				}
+			}
+		} finally {
+			lease.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return dir + " as " + owner;
+	}
+
+	private RandomAccessFile openLease(String key) throws IOException {
+		return new RandomAccessFile(file(key, LEASE_SUFFIX), "rw");
+	}
+
+	/**
+	 * @return key's file, named after a digest of key, since keys aren't
+	 *         valid file names.
+	 */
+	private File file(String key, String suffix) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+			StringBuilder name = new StringBuilder(2 * digest.length + suffix.length());
+			for (byte b : digest)
+				name.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+			return new File(dir, name.append(suffix).toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);	// every JRE has SHA-1
+		}
+	}
+}
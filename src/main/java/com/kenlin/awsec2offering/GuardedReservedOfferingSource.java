@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Protects a ReservedOfferingSource, and EC2 behind it, from being called
+ * harder than it allows.
+ *
+ * Every call first takes a token from a shared TokenBucket, whose rate is
+ * halved whenever a call is throttled and recovers as calls succeed.
+ * Throttled calls, server errors and network errors are retried after a
+ * jittered exponential backoff.  Calls that still fail trip a
+ * CircuitBreaker, and while it is open calls fail at once, so that the last
+ * good offerings are served instead of the API being hammered.
+ */
+public class GuardedReservedOfferingSource implements ReservedOfferingSource {
+	private final ReservedOfferingSource	source;
+	private final TokenBucket				limiter;
+	private final CircuitBreaker			breaker;
+	private final int						maxRetries;
+	private final long						backoffBaseMillis;
+	private final long						backoffMaxMillis;
+
+	private final AtomicLong				throttles = new AtomicLong();
+	private final AtomicLong				retries = new AtomicLong();
+
+	/**
+	 * @param maxRetries
+	 *            The most times a call is retried.
+	 * @param backoffBaseMillis
+	 *            The most time before the first retry; it doubles with each
+	 *            retry, up to backoffMaxMillis.
+	 */
+	public GuardedReservedOfferingSource(ReservedOfferingSource source, TokenBucket limiter, CircuitBreaker breaker,
+			int maxRetries, long backoffBaseMillis, long backoffMaxMillis)
+	{
+		this.source = source;
+		this.limiter = limiter;
+		this.breaker = breaker;
+		this.maxRetries = maxRetries;
+		this.backoffBaseMillis = backoffBaseMillis;
+		this.backoffMaxMillis = backoffMaxMillis;
+	}
+
+	@Override
+	public Page describe(String availabilityZone, String productDescription, String offeringType, String instanceType,
+			String nextToken)
+	{
+		if (!breaker.allow())
+			throw new AmazonClientException("Circuit breaker is open; not calling " + source);
+
+		for (int attempt = 0; ; attempt++) {
+			try {
+				limiter.acquire();
+				Page page = source.describe(availabilityZone, productDescription, offeringType, instanceType, nextToken);
+				limiter.increase();
+				breaker.success();
+				return page;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				breaker.abandon();
+				throw new AmazonClientException("Interrupted waiting to call " + source, e);
+			} catch (AmazonServiceException e) {
+				if (isThrottling(e)) {
+					throttles.incrementAndGet();
+					limiter.decrease();
+				} else if (e.getStatusCode() < 500) {
+					breaker.success();	// the request was bad, not the service
+					throw e;
+				}
+				if (attempt >= maxRetries) {
+					breaker.failure();
+					throw e;
+				}
+			} catch (AmazonClientException e) {
+				if (attempt >= maxRetries) {
+					breaker.failure();
+					throw e;
+				}
+			} catch (RuntimeException e) {
+				breaker.abandon();
+				throw e;
+			}
+
+			retries.incrementAndGet();
+			try {
+				TimeUnit.MILLISECONDS.sleep(getBackoff(attempt));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				breaker.abandon();
+				throw new AmazonClientException("Interrupted backing off from " + source, e);
+			}
+		}
+	}
+
+	/**
+	 * @return A random time, in millis, from 0 up to backoffBaseMillis x
+	 *         2^attempt or backoffMaxMillis, i.e. "full jitter", so that
+	 *         throttled callers don't retry in step.
+	 */
+	long getBackoff(int attempt) {
+		long max = Math.min(backoffMaxMillis, backoffBaseMillis << Math.min(attempt, 30));
+		return max > 0 ? ThreadLocalRandom.current().nextLong(max + 1) : 0;
+	}
+
+	static boolean isThrottling(AmazonServiceException e) {
+		String code = e.getErrorCode();
+		return "RequestLimitExceeded".equals(code) || "Throttling".equals(code)
+				|| "ThrottlingException".equals(code) || e.getStatusCode() == 429;
+	}
+
+	public TokenBucket getLimiter() {
+		return limiter;
+	}
+
+	public CircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	/** @return The number of calls throttled by the source. */
+	public long getThrottleCount() {
+		return throttles.get();
+	}
+
+	/** @return The number of calls retried. */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/**
+	 * Exposes the limiter, breaker and retry state as metrics named
+	 * prefix_...
+	 */
+	public void register(Metrics metrics, String prefix) {
+		metrics.gauge(prefix + "_limiter_rate_per_minute", "Calls per minute currently allowed by the rate limiter.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return Math.round(limiter.getRate() * 60);
+			}
+		});
+		metrics.gauge(prefix + "_limiter_tokens", "Calls that can be made now without waiting; negative if reserved ahead.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return (long) Math.floor(limiter.getTokens());
+			}
+		});
+		metrics.counter(prefix + "_limiter_waits_total", "Calls that waited for the rate limiter.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return limiter.getWaitCount();
+			}
+		});
+		metrics.counter(prefix + "_throttles_total", "Calls throttled by EC2.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getThrottleCount();
+			}
+		});
+		metrics.counter(prefix + "_retries_total", "Calls retried after a backoff.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getRetryCount();
+			}
+		});
+		metrics.gauge(prefix + "_breaker_state", "Circuit breaker state: 0 closed, 1 open, 2 half-open.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return breaker.getState().ordinal();
+			}
+		});
+		metrics.counter(prefix + "_breaker_opens_total", "Times the circuit breaker opened.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return breaker.getOpenCount();
+			}
+		});
+		metrics.counter(prefix + "_breaker_rejections_total", "Calls refused while the circuit breaker was open.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return breaker.getRejectionCount();
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate access counts of the most frequently requested keys, kept in
+ * a fixed number of counters with the space-saving algorithm: a key that
+ * isn't counted yet takes over the counter of the least counted key, and
+ * inherits its count, so a key that is really among the most frequent is
+ * never lost, and no count is ever too low.
+ *
+ * The counters are kept as a Stream-Summary: a list of buckets in count
+ * order, each holding the counters with its count, so that both finding
+ * the least counted key and counting an access take constant time.  The
+ * keys are split by hash into stripes, each a Stream-Summary of its own
+ * share of the counters under its own lock, so that concurrent requests
+ * rarely wait for each other.
+ *
+ * Counts are halved by decay(), so that the hot keys follow the traffic
+ * rather than its whole history.
+ */
+public class HotKeys {
+	private static final Charset	UTF8 = Charset.forName("UTF-8");
+	private static final int		MAX_STRIPES = 16;
+	private static final int		MIN_STRIPE_CAPACITY = 64;	// a stripe's guarantees need room
+
+	private final Stripe[]			stripes;
+
+	/**
+	 * @param capacity
+	 *            The number of keys counted.  The top n keys are reliable
+	 *            for n well below it.
+	 */
+	public HotKeys(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		int n = 1;
+		while (n * 2 <= MAX_STRIPES && capacity / (n * 2) >= MIN_STRIPE_CAPACITY)
+			n *= 2;
+		stripes = new Stripe[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new Stripe(capacity / n + (i < capacity % n ? 1 : 0));
+	}
+
+	private Stripe stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+	/**
+	 * Counts an access of key, in constant time, holding only the lock of
+	 * key's stripe.
+	 */
+	public void record(String key) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.record(key);
+		}
+	}
+
+	/** @return The approximate number of accesses of key, or 0 if it isn't counted. */
+	public long getCount(String key) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			Counter counter = stripe.counters.get(key);
+			return counter != null ? counter.bucket.count : 0;
+		}
+	}
+
+	/** @return Up to n keys, most frequently accessed first. */
+	public List<String> top(int n) {
+		final Map<String, Long> snapshot = new HashMap<String, Long>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (Counter counter : stripe.counters.values())
+					snapshot.put(counter.key, counter.bucket.count);
+			}
+		}
+		List<String> keys = new ArrayList<String>(snapshot.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int c = snapshot.get(b).compareTo(snapshot.get(a));
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+		return keys.size() > n ? new ArrayList<String>(keys.subList(0, n)) : keys;
+	}
+
+	/**
+	 * Halves every count, forgetting the keys that reach 0.
+	 */
+	public void decay() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.decay();
+			}
+		}
+	}
+
+	/** @return The number of keys counted. */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.counters.size();
+			}
+		}
+		return size;
+	}
+
+	/** @return The number of accesses recorded. */
+	public long getRecordCount() {
+		long records = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				records += stripe.records;
+			}
+		}
+		return records;
+	}
+
+	/** A key's counter, in its bucket's list. */
+	private static final class Counter {
+		String		key;		// changes when the counter is taken over
+		Bucket		bucket;
+		Counter		prev, next;
+
+		Counter(String key) {
+			this.key = key;
+		}
+	}
+
+	/** The counters with the same count, in the list of buckets in count order. */
+	private static final class Bucket {
+		long		count;
+		Counter		head;
+		Bucket		prev, next;
+
+		Bucket(long count) {
+			this.count = count;
+		}
+	}
+
+	/** A Stream-Summary of some of the keys.  Guarded by itself. */
+	private static final class Stripe {
+		final int					capacity;
+		final Map<String, Counter>	counters;
+		Bucket						min = null;		// the least counted keys, or null if none
+		long						records = 0;
+
+		Stripe(int capacity) {
+			this.capacity = capacity;
+			this.counters = new HashMap<String, Counter>(capacity * 2);
+		}
+
+		void record(String key) {
+			records++;
+			Counter counter = counters.get(key);
+			if (counter != null) {
+				increment(counter);
+			} else if (counters.size() < capacity) {
+				counter = new Counter(key);
+				counters.put(key, counter);
+				Bucket bucket = (min != null && min.count == 1) ? min : insertAfter(null, 1);
+				add(bucket, counter);
+			} else {
+				// Take over a least counted key's counter, and its count
+				counter = min.head;
+				counters.remove(counter.key);
+				counter.key = key;
+				counters.put(key, counter);
+				increment(counter);
+			}
+		}
+
+		private void increment(Counter counter) {
+			Bucket bucket = counter.bucket;
+			long count = bucket.count + 1;
+			if (bucket.head == counter && counter.next == null
+					&& (bucket.next == null || bucket.next.count != count)) {
+				bucket.count = count;	// alone in its bucket, which stays in order
+				return;
+			}
+			Bucket next = (bucket.next != null && bucket.next.count == count) ? bucket.next : insertAfter(bucket, count);
+			remove(counter);
+			add(next, counter);
+		}
+
+		void decay() {
+			Bucket previous = null;		// the last bucket kept
+			for (Bucket bucket = min; bucket != null; ) {
+				Bucket next = bucket.next;
+				long count = bucket.count / 2;
+				if (count == 0) {
+					for (Counter c = bucket.head; c != null; c = c.next)
+						counters.remove(c.key);
+					unlink(bucket);
+				} else if (previous != null && previous.count == count) {
+					// Halving merged two counts
+					while (bucket.head != null) {
+						Counter c = bucket.head;
+						remove(c);
+						add(previous, c);
+					}
+				} else {
+					bucket.count = count;
+					previous = bucket;
+				}
+				bucket = next;
+			}
+		}
+
+		/** @return A new, empty bucket after after, or first if after is null. */
+		private Bucket insertAfter(Bucket after, long count) {
+			Bucket bucket = new Bucket(count);
+			bucket.prev = after;
+			bucket.next = (after != null) ? after.next : min;
+			if (bucket.next != null)
+				bucket.next.prev = bucket;
+			if (after != null)
+				after.next = bucket;
+			else
+				min = bucket;
+			return bucket;
+		}
+
+		private void unlink(Bucket bucket) {
+			if (bucket.prev != null)
+				bucket.prev.next = bucket.next;
+			else
+				min = bucket.next;
+			if (bucket.next != null)
+				bucket.next.prev = bucket.prev;
+		}
+
+		private static void add(Bucket bucket, Counter counter) {
+			counter.bucket = bucket;
+			counter.prev = null;
+			counter.next = bucket.head;
+			if (bucket.head != null)
+				bucket.head.prev = counter;
+			bucket.head = counter;
+		}
+
+		/** Removes counter from its bucket, and the bucket if it is left empty. */
+		private void remove(Counter counter) {
+			Bucket bucket = counter.bucket;
+			if (counter.prev != null)
+				counter.prev.next = counter.next;
+			else
+				bucket.head = counter.next;
+			if (counter.next != null)
+				counter.next.prev = counter.prev;
+			counter.prev = counter.next = null;
+			if (bucket.head == null)
+				unlink(bucket);
+		}
+	}
+
+	/**
+	 * Writes keys to file, one per line, replacing it atomically as
+	 * Snapshot.write() does.  Keys spanning lines are skipped.
+	 */
+	public static void write(File file, List<String> keys) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Cannot create " + parent);
+		File temp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+			try {
+				for (String key : keys) {
+					if (key.indexOf('\n') < 0 && key.indexOf('\r') < 0)
+						out.write(key + "\n");
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();	// no-op once moved
+		}
+	}
+
+	/**
+	 * Reads the keys written by write().
+	 *
+	 * @return The keys, or an empty list if file doesn't exist.
+	 */
+	public static List<String> read(File file) throws IOException {
+		List<String> keys = new ArrayList<String>();
+		if (!file.isFile())
+			return keys;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (!line.isEmpty())
+					keys.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return keys;
+	}
+
+	@Override
+	public String toString() {
+		return "keys=" + size() + " records=" + getRecordCount();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * On-demand offerings in the {"ec2offerings":[...]} format of
+ * aws-ec2-ondemand.json, read from the bundled resource or a local file.
+ */
+public class JsonOnDemandSource implements OnDemandSource {
+	public static final String	RESOURCE = "/aws-ec2-ondemand.json";
+
+	private final ObjectMapper	mapper;
+	private final File			file;	// null means the bundled RESOURCE
+
+	/**
+	 * @param mapper
+	 *            Used to parse the offerings.
+	 * @param file
+	 *            The local file, or null to use the bundled resource.
+	 */
+	public JsonOnDemandSource(ObjectMapper mapper, File file) {
+		this.mapper = mapper;
+		this.file = file;
+	}
+
+	@Override
+	public long getLastModified() {
+		return file != null ? file.lastModified() : 0;
+	}
+
+	@Override
+	public List<Offering> load() throws IOException {
+		InputStream in;
+		if (file != null) {
+			in = new FileInputStream(file);
+		} else {
+			in = JsonOnDemandSource.class.getResourceAsStream(RESOURCE);
+			if (in == null)
+				throw new IOException("Missing resource " + RESOURCE);
+		}
+		try {
+			return mapper.readValue(in, OfferingArray.class).ec2offerings;
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return file != null ? file.toString() : RESOURCE;
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and histograms, written in the Prometheus text exposition
+ * format.  Metrics are created once, at startup; recording one is a single
+ * atomic add, with no locking or allocation.
+ *
+ * Metrics created through a labeled() view carry its labels, so that e.g.
+ * each region's cache can register the same metrics; they are written as
+ * one family per name.
+ */
+public class Metrics {
+	public static final String	CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * A value kept elsewhere, e.g. by Cache, read when metrics are written.
+	 */
+	public interface Value {
+		long get();
+	}
+
+	private abstract static class Metric {
+		final String	name;
+		final String	help;
+		final String	type;
+		String			labels = "";	// e.g. region="us-east-1", set when registered
+
+		Metric(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+
+		void writeHeader(StringBuilder out) {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		}
+
+		/** Appends name and the labels, e.g. name{region="us-east-1"}. */
+		StringBuilder sample(StringBuilder out, String name) {
+			out.append(name);
+			if (!labels.isEmpty())
+				out.append('{').append(labels).append('}');
+			return out;
+		}
+
+		abstract void writeSamples(StringBuilder out);
+	}
+
+	/**
+	 * A count that only goes up.
+	 */
+	public static class Counter extends Metric {
+		private final AtomicLong	count = new AtomicLong();
+
+		Counter(String name, String help) {
+			super(name, help, "counter");
+		}
+
+		public void increment() {
+			count.incrementAndGet();
+		}
+
+		public void add(long n) {
+			count.addAndGet(n);
+		}
+
+		public long get() {
+			return count.get();
+		}
+
+		@Override
+		void writeSamples(StringBuilder out) {
+			sample(out, name).append(' ').append(count.get()).append('\n');
+		}
+	}
+
+	/**
+	 * A value that goes up and down, e.g. requests in flight.
+	 */
+	public static class Gauge extends Metric {
+		private final AtomicLong	value = new AtomicLong();
+
+		Gauge(String name, String help) {
+			super(name, help, "gauge");
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void decrement() {
+			value.decrementAndGet();
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		@Override
+		void writeSamples(StringBuilder out) {
+			sample(out, name).append(' ').append(value.get()).append('\n');
+		}
+	}
+
+	/**
+	 * A distribution of non-negative values in power-of-two buckets: bucket
+	 * i counts values up to 2^i units.  Values are exposed multiplied by
+	 * scale, e.g. 1e-9 to record nanos and expose seconds.
+	 */
+	public static class Histogram extends Metric {
+		static final int			BUCKETS = 40;	// up to 2^39 units, e.g. ~9 minutes of nanos
+
+		private final double		scale;
+		private final AtomicLongArray	buckets = new AtomicLongArray(BUCKETS + 1);	// the last is +Inf
+		private final AtomicLong	sum = new AtomicLong();
+
+		Histogram(String name, String help, double scale) {
+			super(name, help, "histogram");
+			this.scale = scale;
+		}
+
+		public void observe(long value) {
+			if (value < 0)
+				value = 0;
+			buckets.incrementAndGet(Math.min(bucket(value), BUCKETS));
+			sum.addAndGet(value);
+		}
+
+		/** @return The smallest i such that value <= 2^i. */
+		static int bucket(long value) {
+			return value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+		}
+
+		/** @return The number of values observed. */
+		public long getCount() {
+			long count = 0;
+			for (int i = 0; i <= BUCKETS; i++)
+				count += buckets.get(i);
+			return count;
+		}
+
+		@Override
+		void writeSamples(StringBuilder out) {
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				cumulative += buckets.get(i);
+				bucket(out, format((double) (1L << i) * scale)).append(cumulative).append('\n');
+			}
+			cumulative += buckets.get(BUCKETS);
+			bucket(out, "+Inf").append(cumulative).append('\n');
+			sample(out, name + "_sum").append(' ').append(format(sum.get() * scale)).append('\n');
+			sample(out, name + "_count").append(' ').append(cumulative).append('\n');
+		}
+
+		private StringBuilder bucket(StringBuilder out, String le) {
+			out.append(name).append("_bucket{");
+			if (!labels.isEmpty())
+				out.append(labels).append(',');
+			return out.append("le=\"").append(le).append("\"} ");
+		}
+	}
+
+	private static class Callback extends Metric {
+		private final Value	value;
+
+		Callback(String name, String help, String type, Value value) {
+			super(name, help, type);
+			this.value = value;
+		}
+
+		@Override
+		void writeSamples(StringBuilder out) {
+			sample(out, name).append(' ').append(value.get()).append('\n');
+		}
+	}
+
+	private final List<Metric>	metrics;
+	private final String		labels;
+
+	public Metrics() {
+		this(new CopyOnWriteArrayList<Metric>(), "");
+	}
+
+	private Metrics(List<Metric> metrics, String labels) {
+		this.metrics = metrics;
+		this.labels = labels;
+	}
+
+	/**
+	 * @return A view of these metrics that adds label="value" to the
+	 *         metrics created through it.
+	 */
+	public Metrics labeled(String label, String value) {
+		String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return new Metrics(metrics, (labels.isEmpty() ? "" : labels + ",") + label + "=\"" + escaped + '"');
+	}
+
+	public Counter counter(String name, String help) {
+		return register(new Counter(name, help));
+	}
+
+	public Gauge gauge(String name, String help) {
+		return register(new Gauge(name, help));
+	}
+
+	/**
+	 * @param scale
+	 *            What each unit of an observed value is in the exposed unit,
+	 *            e.g. 1e-9 to observe nanos and expose seconds.
+	 */
+	public Histogram histogram(String name, String help, double scale) {
+		return register(new Histogram(name, help, scale));
+	}
+
+	/** Exposes a count kept elsewhere. */
+	public void counter(String name, String help, Value value) {
+		register(new Callback(name, help, "counter", value));
+	}
+
+	/** Exposes a value kept elsewhere. */
+	public void gauge(String name, String help, Value value) {
+		register(new Callback(name, help, "gauge", value));
+	}
+
+	/** @return Every metric, in the Prometheus text exposition format. */
+	public String write() {
+		StringBuilder out = new StringBuilder(4096);
+		List<String> written = new ArrayList<String>();
+		for (Metric metric : metrics) {
+			if (written.contains(metric.name))
+				continue;
+			written.add(metric.name);
+			metric.writeHeader(out);
+			for (Metric m : metrics) {
+				if (m.name.equals(metric.name))
+					m.writeSamples(out);
+			}
+		}
+		return out.toString();
+	}
+
+	/** @return The names of the metrics, in the order they were created. */
+	public List<String> getNames() {
+		List<String> names = new ArrayList<String>(metrics.size());
+		for (Metric metric : metrics) {
+			if (!names.contains(metric.name))
+				names.add(metric.name);
+		}
+		return names;
+	}
+
+	private <M extends Metric> M register(M metric) {
+		metric.labels = labels;
+		synchronized (metrics) {
+			for (Metric m : metrics) {
+				if (m.name.equals(metric.name) && (m.labels.equals(metric.labels) || !m.type.equals(metric.type)))
+					throw new IllegalArgumentException("Duplicate metric " + metric.name);
+			}
+			metrics.add(metric);
+		}
+		return metric;
+	}
+
+	private static String format(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return String.format(Locale.ROOT, "%.9g", value).replaceAll("\\.?0+(e|$)", "$1");
+	}
+}
@@ -17,9 +17,13 @@ package com.kenlin.awsec2offering;
 
 import java.io.IOException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import com.amazonaws.services.ec2.model.ReservedInstancesOffering;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -44,12 +48,15 @@ public class Offering {
 	public final static String	CURRENCYCODE		= "currencyCode";
 	public final static String	FIXEDPRICE			= "fixedPrice";
 	public final static String	HOURLYPRICE			= "hourlyPrice";
+
+	public final static String	OFFERINGTYPE_ONDEMAND	= "On-Demand";	// as in aws-ec2-ondemand.json
 	
 	public final static long	SECONDS_IN_YEAR		= 31536000;
 	public final static long	SECONDS_IN_3_YEARS	= 94608000;
 	public final static long	SECONDS_IN_MONTH	= SECONDS_IN_YEAR / 12;	// 2628000
 	public final static int		HOURS_IN_MONTH		= 365 * 24 / 12; 		// 730
 
+	private static final Log	log = LogFactory.getLog(Offering.class);
 	private static ObjectMapper	mapper = new ObjectMapper();
 	  
 	@JsonProperty public String	availabilityZone = null;	// e.g., "us-east-1a"
@@ -110,10 +117,10 @@ public class Offering {
 			JsonNode json = toJsonNode();
 			return json.toString();
 		} catch (JsonProcessingException e1) {
-			e1.printStackTrace();
+			log.error("Cannot convert to JSON", e1);
 			return null;
 		} catch (IOException e1) {
-			e1.printStackTrace();
+			log.error("Cannot convert to JSON", e1);
 			return null;
 		}
 	}
@@ -130,4 +137,21 @@ public class Offering {
 		if (hourlyPrice != null)		json.put(HOURLYPRICE, hourlyPrice);
 		return json;
 	}
+
+	/**
+	 * Writes the same object as toJsonNode() directly to gen, without
+	 * building a tree.
+	 */
+	public void writeJson(JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		if (availabilityZone != null)	gen.writeStringField(AVAILABILITYZONE, availabilityZone);
+		if (offeringType != null)		gen.writeStringField(OFFERINGTYPE, offeringType);
+		if (instanceType != null)		gen.writeStringField(INSTANCETYPE, instanceType);
+		if (productDescription != null)	gen.writeStringField(PRODUCTDESCRIPTION, productDescription);
+		if (duration != null)			gen.writeNumberField(DURATION, duration.longValue());
+		if (currencyCode != null)		gen.writeStringField(CURRENCYCODE, currencyCode);
+		if (fixedPrice != null)			gen.writeNumberField(FIXEDPRICE, fixedPrice.doubleValue());	// as ObjectNode.put(String, Float) does
+		if (hourlyPrice != null)		gen.writeNumberField(HOURLYPRICE, hourlyPrice.doubleValue());
+		gen.writeEndObject();
+	}
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable index of an OfferingTable's rows by availabilityZone x
+ * productDescription x offeringType x instanceType.  A null value in a
+ * lookup is a wildcard, and is answered by scanning that level of the index.
+ *
+ * Each leaf of the index also has a version: when its offerings last
+ * changed.  An index built as the successor of another keeps the versions
+ * of the leaves that didn't change, so that anything derived from a query
+ * of unchanged leaves, e.g. an ETag, stays valid.
+ */
+public class OfferingIndex {
+	/**
+	 * Receives the offerings found by a scan, one leaf of the index at a
+	 * time.
+	 */
+	public interface Visitor {
+		void visit(OfferingTable table, int[] rows) throws IOException;
+	}
+
+	private final OfferingTable		table;
+	private final Map<String, Map<String, Map<String, Map<String, Leaf>>>>	index;
+	private final long				created;
+
+	public OfferingIndex(Iterable<Offering> offerings) {
+		this(OfferingTable.create(offerings));
+	}
+
+	public OfferingIndex(OfferingTable table) {
+		this(table, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param created
+	 *            When, in millis, table was fetched, e.g. if it was restored
+	 *            from a Snapshot.
+	 */
+	public OfferingIndex(OfferingTable table, long created) {
+		this(table, created, null);
+	}
+
+	/**
+	 * @param previous
+	 *            The index this one replaces, whose leaf versions are kept
+	 *            for the leaves with the same offerings, or null.
+	 */
+	public OfferingIndex(OfferingTable table, long created, OfferingIndex previous) {
+		Map<String, Map<String, Map<String, Map<String, Rows>>>> zones =
+				new TreeMap<String, Map<String, Map<String, Map<String, Rows>>>>();
+		for (int row = 0; row < table.size(); row++) {
+			Map<String, Map<String, Map<String, Rows>>> products = zones.get(table.getAvailabilityZone(row));
+			if (products == null) {
+				products = new TreeMap<String, Map<String, Map<String, Rows>>>();
+				zones.put(table.getAvailabilityZone(row), products);
+			}
+			Map<String, Map<String, Rows>> offeringTypes = products.get(table.getProductDescription(row));
+			if (offeringTypes == null) {
+				offeringTypes = new TreeMap<String, Map<String, Rows>>();
+				products.put(table.getProductDescription(row), offeringTypes);
+			}
+			Map<String, Rows> instanceTypes = offeringTypes.get(table.getOfferingType(row));
+			if (instanceTypes == null) {
+				instanceTypes = new TreeMap<String, Rows>();
+				offeringTypes.put(table.getOfferingType(row), instanceTypes);
+			}
+			Rows rows = instanceTypes.get(table.getInstanceType(row));
+			if (rows == null) {
+				rows = new Rows();
+				instanceTypes.put(table.getInstanceType(row), rows);
+			}
+			rows.add(row);
+		}
+
+		// Freeze the leaves into exactly sized int[]s
+		Map<String, Map<String, Map<String, Map<String, Leaf>>>> index =
+				new TreeMap<String, Map<String, Map<String, Map<String, Leaf>>>>();
+		for (Map.Entry<String, Map<String, Map<String, Map<String, Rows>>>> zone : zones.entrySet()) {
+			Map<String, Map<String, Map<String, Leaf>>> products = new TreeMap<String, Map<String, Map<String, Leaf>>>();
+			for (Map.Entry<String, Map<String, Map<String, Rows>>> product : zone.getValue().entrySet()) {
+				Map<String, Map<String, Leaf>> offeringTypes = new TreeMap<String, Map<String, Leaf>>();
+				for (Map.Entry<String, Map<String, Rows>> offeringType : product.getValue().entrySet()) {
+					Map<String, Leaf> instanceTypes = new TreeMap<String, Leaf>();
+					for (Map.Entry<String, Rows> instanceType : offeringType.getValue().entrySet()) {
+						int[] rows = instanceType.getValue().toArray();
+						Leaf old = (previous != null) ? previous.leaf(zone.getKey(), product.getKey(),
+								offeringType.getKey(), instanceType.getKey()) : null;
+						long version = (old != null && old.sameOfferings(previous.table, table, rows)) ? old.version : created;
+						instanceTypes.put(instanceType.getKey(), new Leaf(rows, version));
+					}
+					offeringTypes.put(offeringType.getKey(), instanceTypes);
+				}
+				products.put(product.getKey(), offeringTypes);
+			}
+			index.put(zone.getKey(), products);
+		}
+
+		this.table = table;
+		this.index = index;
+		this.created = created;
+	}
+
+	public OfferingTable getTable() {
+		return table;
+	}
+
+	/** @return The number of offerings indexed. */
+	public int size() {
+		return table.size();
+	}
+
+	/** @return When, in millis, the index was built. */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return A version of the offerings matching the given values, where
+	 *         null matches anything, that changes whenever they do.  It is
+	 *         derived from the matching leaves' versions, without reading
+	 *         any rows.
+	 */
+	public long getVersion(String availabilityZone, String productDescription, String offeringType, String instanceType) {
+		long version = 1;
+		for (Map<String, Map<String, Map<String, Leaf>>> products : select(index, availabilityZone))
+			for (Map<String, Map<String, Leaf>> offeringTypes : select(products, productDescription))
+				for (Map<String, Leaf> instanceTypes : select(offeringTypes, offeringType))
+					for (Leaf leaf : select(instanceTypes, instanceType))
+						version = 31 * version + leaf.version;
+		return version;
+	}
+
+	/**
+	 * @return The offerings matching the given values, where null matches
+	 *         anything.
+	 */
+	public List<Offering> find(String availabilityZone, String productDescription, String offeringType, String instanceType) {
+		List<Offering> offerings = new ArrayList<Offering>();
+		find(availabilityZone, productDescription, offeringType, instanceType, offerings);
+		return offerings;
+	}
+
+	/**
+	 * Adds the offerings matching the given values, where null matches
+	 * anything, to offerings.
+	 *
+	 * @return The number of offerings added.
+	 */
+	public int find(String availabilityZone, String productDescription, String offeringType, String instanceType,
+			final Collection<Offering> offerings)
+	{
+		try {
+			return scan(availabilityZone, productDescription, offeringType, instanceType, new Visitor() {
+				@Override
+				public void visit(OfferingTable table, int[] rows) {
+					for (int row : rows)
+						offerings.add(table.get(row));
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);	// not thrown by the visitor above
+		}
+	}
+
+	/**
+	 * Passes the rows matching the given values, where null matches
+	 * anything, to visitor without copying them.
+	 *
+	 * @return The number of rows visited.
+	 */
+	public int scan(String availabilityZone, String productDescription, String offeringType, String instanceType,
+			Visitor visitor) throws IOException
+	{
+		int found = 0;
+		for (Map<String, Map<String, Map<String, Leaf>>> products : select(index, availabilityZone))
+			for (Map<String, Map<String, Leaf>> offeringTypes : select(products, productDescription))
+				for (Map<String, Leaf> instanceTypes : select(offeringTypes, offeringType))
+					for (Leaf leaf : select(instanceTypes, instanceType)) {
+						visitor.visit(table, leaf.rows);
+						found += leaf.rows.length;
+					}
+		return found;
+	}
+
+	/** @return The leaf with exactly the given values, or null. */
+	private Leaf leaf(String availabilityZone, String productDescription, String offeringType, String instanceType) {
+		Map<String, Map<String, Map<String, Leaf>>> products = index.get(availabilityZone);
+		Map<String, Map<String, Leaf>> offeringTypes = (products != null) ? products.get(productDescription) : null;
+		Map<String, Leaf> instanceTypes = (offeringTypes != null) ? offeringTypes.get(offeringType) : null;
+		return (instanceTypes != null) ? instanceTypes.get(instanceType) : null;
+	}
+
+	private static <V> Collection<V> select(Map<String, V> map, String key) {
+		if (key == null)
+			return map.values();
+		V value = map.get(key);
+		return value != null ? Collections.singletonList(value) : Collections.<V>emptyList();
+	}
+
+	/** The rows with the same values, and when they last changed. */
+	private static class Leaf {
+		final int[]		rows;
+		final long		version;	// millis
+
+		Leaf(int[] rows, long version) {
+			this.rows = rows;
+			this.version = version;
+		}
+
+		/**
+		 * @return Whether these rows of table and otherRows of other hold
+		 *         the same offerings, at the same prices, in the same order.
+		 */
+		boolean sameOfferings(OfferingTable table, OfferingTable other, int[] otherRows) {
+			if (rows.length != otherRows.length)
+				return false;
+			for (int i = 0; i < rows.length; i++) {
+				if (!table.getKey(rows[i]).equals(other.getKey(otherRows[i]))
+						|| !table.samePrices(rows[i], other, otherRows[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/** A growable list of row numbers. */
+	private static class Rows {
+		private int[]	rows = new int[4];
+		private int		size = 0;
+
+		void add(int row) {
+			if (size == rows.length)
+				rows = Arrays.copyOf(rows, size * 2);
+			rows[size++] = row;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(rows, size);
+		}
+	}
+}
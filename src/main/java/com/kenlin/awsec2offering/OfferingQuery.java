@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.amazonaws.services.ec2.model.OfferingTypeValues;
+import com.amazonaws.services.ec2.model.RIProductDescription;
+
+/**
+ * An immutable, canonical offering query: the product description and
+ * offering type are parsed into their enums, and the instance types are
+ * sorted and de-duplicated, so that queries for the same offerings, e.g.
+ * "t1.micro,m1.small" and "m1.small,t1.micro", are equal and share a cache
+ * key.  The key and hash code are computed once, when the query is created.
+ *
+ * A null value, or no instance types, matches anything.
+ */
+public final class OfferingQuery {
+	private final String				availabilityZone;
+	private final String				region;
+	private final RIProductDescription	productDescription;
+	private final OfferingTypeValues	offeringType;
+	private final String[]				instanceTypes;	// sorted, distinct
+	private final String				key;
+	private final int					hash;
+	private volatile List<OfferingQuery>	parts = null;	// split() once needed
+
+	private OfferingQuery(String availabilityZone, RIProductDescription productDescription,
+			OfferingTypeValues offeringType, String[] instanceTypes)
+	{
+		this.availabilityZone = availabilityZone;
+		this.region = getRegion(availabilityZone);
+		this.productDescription = productDescription;
+		this.offeringType = offeringType;
+		this.instanceTypes = instanceTypes;
+		this.key = App.createKey(availabilityZone, getProductDescription(), getOfferingType(), getInstanceType());
+		this.hash = key.hashCode();
+	}
+
+	/**
+	 * Parses a query as given in a URI, e.g. ("us-east-1a", "linux", "heavy",
+	 * "t1.micro,m1.small").  The product description and offering type may
+	 * also be given by their EC2 values, e.g. "Linux/UNIX".
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the product description or offering type isn't
+	 *             recognized.
+	 */
+	public static OfferingQuery create(String availabilityZone, String productDescription, String offeringType,
+			String instanceType)
+	{
+		productDescription = App.normalizeRIProductDescription(productDescription);
+		offeringType = App.normalizeOfferingType(offeringType);
+		TreeSet<String> instanceTypes = new TreeSet<String>();
+		if (instanceType != null) {
+			for (String str : instanceType.split(App.SEPARATOR)) {
+				if (!str.trim().isEmpty())
+					instanceTypes.add(str.trim());
+			}
+		}
+		return new OfferingQuery(availabilityZone,
+				productDescription != null ? RIProductDescription.fromValue(productDescription) : null,
+				offeringType != null ? OfferingTypeValues.fromValue(offeringType) : null,
+				instanceTypes.toArray(new String[instanceTypes.size()]));
+	}
+
+	/**
+	 * @return The query whose key, as made by getKey(), is key, or null if
+	 *         it isn't one.
+	 */
+	public static OfferingQuery fromKey(String key) {
+		if (key.length() < 2 || !key.startsWith("'") || !key.endsWith("'"))
+			return null;
+		String[] parts = key.substring(1, key.length() - 1).split("' '", -1);
+		if (parts.length != 4)
+			return null;
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i].equals("null"))
+				parts[i] = null;
+		}
+		try {
+			OfferingQuery query = create(parts[0], parts[1], parts[2], parts[3]);
+			return query.key.equals(key) ? query : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public String getAvailabilityZone() {
+		return availabilityZone;
+	}
+
+	/** @return The availability zone's region, e.g. "us-east-1". */
+	public String getRegion() {
+		return region;
+	}
+
+	/**
+	 * @return The region of availabilityZone, i.e. without its zone
+	 *         letter, e.g. "us-east-1" for "us-east-1a", or null if it is.
+	 */
+	public static String getRegion(String availabilityZone) {
+		if (availabilityZone == null)
+			return null;
+		int end = availabilityZone.length();
+		while (end > 0 && Character.isLetter(availabilityZone.charAt(end - 1)))
+			end--;
+		return availabilityZone.substring(0, end);
+	}
+
+	/** @return The EC2 product description, e.g. "Linux/UNIX", or null. */
+	public String getProductDescription() {
+		return productDescription != null ? productDescription.toString() : null;
+	}
+
+	/** @return The EC2 offering type, e.g. "Heavy Utilization", or null. */
+	public String getOfferingType() {
+		return offeringType != null ? offeringType.toString() : null;
+	}
+
+	/** @return The instance types, sorted, or an empty list for any. */
+	public List<String> getInstanceTypes() {
+		return Collections.unmodifiableList(Arrays.asList(instanceTypes));
+	}
+
+	/** @return The comma separated instance types, or null for any. */
+	public String getInstanceType() {
+		if (instanceTypes.length == 0)
+			return null;
+		StringBuilder str = new StringBuilder(instanceTypes[0]);
+		for (int i = 1; i < instanceTypes.length; i++)
+			str.append(App.SEPARATOR).append(instanceTypes[i]);
+		return str.toString();
+	}
+
+	/** @return Whether the query is for at most one instance type. */
+	public boolean isSingle() {
+		return instanceTypes.length <= 1;
+	}
+
+	/**
+	 * @return One query per instance type, in order, or just this query if
+	 *         it is single.
+	 */
+	public List<OfferingQuery> split() {
+		List<OfferingQuery> parts = this.parts;
+		if (parts == null) {
+			if (isSingle()) {
+				parts = Collections.singletonList(this);
+			} else {
+				parts = new ArrayList<OfferingQuery>(instanceTypes.length);
+				for (String instanceType : instanceTypes)
+					parts.add(new OfferingQuery(availabilityZone, productDescription, offeringType, new String[] { instanceType }));
+				parts = Collections.unmodifiableList(parts);
+			}
+			this.parts = parts;	// a race just splits twice
+		}
+		return parts;
+	}
+
+	/** @return The cache key, as App.createKey() of the canonical values. */
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj
+				|| obj instanceof OfferingQuery && hash == ((OfferingQuery) obj).hash && key.equals(((OfferingQuery) obj).key);
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+}
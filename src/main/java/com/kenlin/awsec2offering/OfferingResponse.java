@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * An immutable, fully serialized {"ec2offerings":[...]} response, with an
+ * optional gzipped copy and a strong ETag computed once when it is created,
+ * so that serving it again costs no JSON encoding.  The offerings themselves
+ * are kept as a compact OfferingTable.  A Smile (binary JSON) copy is encoded
+ * when first asked for, and then kept with the response too.
+ */
+public class OfferingResponse {
+	public static final int		GZIP_MIN_LENGTH = 512;	// not worth compressing below this
+	public static final String	GZIP_ETAG_SUFFIX = "-gz";
+	public static final String	SMILE_ETAG_SUFFIX = "-sm";
+
+	// Field names, and the zone, product and offering type values that
+	// repeat in every offering, are written once and then referenced
+	private static final SmileFactory	SMILE = new SmileFactory()
+			.enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+			.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+
+	private static final char[]	HEX = "0123456789abcdef".toCharArray();
+
+	private final OfferingTable		table;
+	private final byte[]			json;
+	private final byte[]			gzip;		// null if not compressed
+	private final String			etag;
+	private volatile CostCurves		costCurves = null;	// created when first needed
+	private volatile byte[]			smile = null;		// encoded when first needed
+	private final AtomicReferenceArray<int[]>	sortedRows =	// by OfferingView.Field, sorted when first needed
+			new AtomicReferenceArray<int[]>(OfferingView.Field.values().length);
+
+	private OfferingResponse(OfferingTable table, byte[] json, byte[] gzip, String etag) {
+		this.table = table;
+		this.json = json;
+		this.gzip = gzip;
+		this.etag = etag;
+	}
+
+	/**
+	 * Serializes offerings.
+	 *
+	 * @param gzip
+	 *            Whether to also keep a gzipped copy of the JSON.
+	 */
+	public static OfferingResponse create(ObjectMapper mapper, List<Offering> offerings, boolean gzip) throws IOException {
+		return create(mapper, OfferingTable.create(offerings), gzip);
+	}
+
+	/**
+	 * Serializes table.
+	 *
+	 * @param gzip
+	 *            Whether to also keep a gzipped copy of the JSON.
+	 */
+	public static OfferingResponse create(ObjectMapper mapper, OfferingTable table, boolean gzip) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128 + 200 * table.size());
+		JsonGenerator gen = createGenerator(mapper, out);
+		writeStart(gen);
+		for (int row = 0; row < table.size(); row++)
+			table.writeJson(row, gen);
+		writeEnd(gen);
+		byte[] json = out.toByteArray();
+
+		return new OfferingResponse(table, json,
+				gzip && json.length >= GZIP_MIN_LENGTH ? gzip(json) : null,
+				createETag(json));
+	}
+
+	public static JsonGenerator createGenerator(ObjectMapper mapper, OutputStream out) throws IOException {
+		return mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+	}
+
+	/**
+	 * @return A generator of Smile rather than JSON, to which the same
+	 *         values may be written.
+	 */
+	public static JsonGenerator createSmileGenerator(OutputStream out) throws IOException {
+		return SMILE.createJsonGenerator(out);
+	}
+
+	/**
+	 * Writes the start of a {"ec2offerings":[...]} response.  The offerings
+	 * are then written one at a time with Offering.writeJson(), so a
+	 * response can be streamed without holding it in memory.
+	 */
+	public static void writeStart(JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		gen.writeArrayFieldStart(App.ARRAYNAME);
+	}
+
+	/**
+	 * Writes the end of a {"ec2offerings":[...]} response and closes gen,
+	 * which also closes its output stream.
+	 */
+	public static void writeEnd(JsonGenerator gen) throws IOException {
+		gen.writeEndArray();
+		gen.writeEndObject();
+		gen.close();
+	}
+
+	/** @return The offerings, in compact form. */
+	public OfferingTable getTable() {
+		return table;
+	}
+
+	public int size() {
+		return table.size();
+	}
+
+	public byte[] getJson() {
+		return json;
+	}
+
+	/** @return The gzipped JSON, or null if it wasn't worth compressing. */
+	public byte[] getGzip() {
+		return gzip;
+	}
+
+	/**
+	 * @return The offerings' cost curves, computed on first use and then
+	 *         kept with the response for as long as it is cached.
+	 */
+	public CostCurves getCostCurves() {
+		CostCurves curves = costCurves;
+		if (curves == null) {
+			curves = new CostCurves(table);	// a race just computes it twice
+			costCurves = curves;
+		}
+		return curves;
+	}
+
+	/**
+	 * @return The table's rows in order of field, as OfferingView.Field.sort(),
+	 *         sorted on first use and then kept with the response for as
+	 *         long as it is cached.
+	 */
+	public int[] getSortedRows(OfferingView.Field field) {
+		int[] rows = sortedRows.get(field.ordinal());
+		if (rows == null) {
+			rows = field.sort(table);
+			sortedRows.set(field.ordinal(), rows);	// a race just sorts it twice
+		}
+		return rows;
+	}
+
+	/**
+	 * @return The response encoded as Smile, encoded on first use and then
+	 *         kept with the response for as long as it is cached.
+	 */
+	public byte[] getSmile() throws IOException {
+		byte[] bytes = smile;
+		if (bytes == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 64 * table.size());
+			JsonGenerator gen = createSmileGenerator(out);
+			writeStart(gen);
+			for (int row = 0; row < table.size(); row++)
+				table.writeJson(row, gen);
+			writeEnd(gen);
+			bytes = out.toByteArray();
+			smile = bytes;	// a race just encodes it twice
+		}
+		return bytes;
+	}
+
+	/** @return The quoted, strong ETag of the JSON. */
+	public String getETag() {
+		return etag;
+	}
+
+	/** @return The quoted, strong ETag of the gzipped JSON. */
+	public String getGzipETag() {
+		return etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + '"';
+	}
+
+	/** @return The quoted, strong ETag of the Smile encoding. */
+	public String getSmileETag() {
+		return etag.substring(0, etag.length() - 1) + SMILE_ETAG_SUFFIX + '"';
+	}
+
+	/**
+	 * @return Whether an If-None-Match header value names etag, which must
+	 *         be the ETag of the representation being sent: a client's copy
+	 *         of another, e.g. JSON when Smile is asked for, is no substitute.
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*") || tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(bytes);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	private static String createETag(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(bytes);
+			StringBuilder tag = new StringBuilder(2 + 2 * digest.length).append('"');
+			for (byte b : digest)
+				tag.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+			return tag.append('"').toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);	// every JRE has MD5
+		}
+	}
+}
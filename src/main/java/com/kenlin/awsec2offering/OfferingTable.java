@@ -0,0 +1,445 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * An immutable, compact, column-oriented table of offerings.  The string
+ * fields are dictionary encoded as small codes into a per-table array of
+ * distinct strings, and the prices and duration are kept in primitive
+ * arrays, so a table holds no per-row objects at all.  Rows are read with
+ * the primitive accessors, written with writeJson(), or materialized as an
+ * Offering with get().
+ */
+public class OfferingTable {
+	public static final OfferingTable	EMPTY = new Builder().build();
+
+	// Bits in flags[row] for the nullable numeric columns
+	private static final byte	HAS_DURATION	= 1;
+	private static final byte	HAS_FIXEDPRICE	= 2;
+	private static final byte	HAS_HOURLYPRICE	= 4;
+
+	private static final short	NULL = -1;
+
+	private static final Charset	UTF8 = Charset.forName("UTF-8");
+
+	private final String[]	strings;			// the dictionary
+	private final short[]	availabilityZone;	// codes into strings, or NULL
+	private final short[]	offeringType;
+	private final short[]	instanceType;
+	private final short[]	productDescription;
+	private final short[]	currencyCode;
+	private final long[]	duration;
+	private final float[]	fixedPrice;
+	private final double[]	hourlyPrice;
+	private final byte[]	flags;
+	private final int		size;
+
+	/**
+	 * Appends offerings, then builds the table.
+	 */
+	public static class Builder {
+		private final Map<String, Short>	codes = new HashMap<String, Short>();
+		private final List<String>			strings = new ArrayList<String>();
+		private short[]		availabilityZone;
+		private short[]		offeringType;
+		private short[]		instanceType;
+		private short[]		productDescription;
+		private short[]		currencyCode;
+		private long[]		duration;
+		private float[]		fixedPrice;
+		private double[]	hourlyPrice;
+		private byte[]		flags;
+		private int			size = 0;
+
+		public Builder() {
+			this(16);
+		}
+
+		public Builder(int capacity) {
+			capacity = Math.max(capacity, 1);
+			availabilityZone = new short[capacity];
+			offeringType = new short[capacity];
+			instanceType = new short[capacity];
+			productDescription = new short[capacity];
+			currencyCode = new short[capacity];
+			duration = new long[capacity];
+			fixedPrice = new float[capacity];
+			hourlyPrice = new double[capacity];
+			flags = new byte[capacity];
+		}
+
+		public Builder add(Offering offering) {
+			ensureCapacity(size + 1);
+			availabilityZone[size] = encode(offering.availabilityZone);
+			offeringType[size] = encode(offering.offeringType);
+			instanceType[size] = encode(offering.instanceType);
+			productDescription[size] = encode(offering.productDescription);
+			currencyCode[size] = encode(offering.currencyCode);
+			byte flag = 0;
+			if (offering.duration != null) {
+				duration[size] = offering.duration.longValue();
+				flag |= HAS_DURATION;
+			}
+			if (offering.fixedPrice != null) {
+				fixedPrice[size] = offering.fixedPrice.floatValue();
+				flag |= HAS_FIXEDPRICE;
+			}
+			if (offering.hourlyPrice != null) {
+				hourlyPrice[size] = offering.hourlyPrice.doubleValue();
+				flag |= HAS_HOURLYPRICE;
+			}
+			flags[size] = flag;
+			size++;
+			return this;
+		}
+
+		public Builder addAll(Iterable<Offering> offerings) {
+			for (Offering offering : offerings)
+				add(offering);
+			return this;
+		}
+
+		/**
+		 * Copies a row of another table.
+		 */
+		public Builder add(OfferingTable table, int row) {
+			ensureCapacity(size + 1);
+			availabilityZone[size] = encode(table.getAvailabilityZone(row));
+			offeringType[size] = encode(table.getOfferingType(row));
+			instanceType[size] = encode(table.getInstanceType(row));
+			productDescription[size] = encode(table.getProductDescription(row));
+			currencyCode[size] = encode(table.getCurrencyCode(row));
+			duration[size] = table.duration[row];
+			fixedPrice[size] = table.fixedPrice[row];
+			hourlyPrice[size] = table.hourlyPrice[row];
+			flags[size] = table.flags[row];
+			size++;
+			return this;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public OfferingTable build() {
+			return new OfferingTable(this);
+		}
+
+		private short encode(String value) {
+			if (value == null)
+				return NULL;
+			Short code = codes.get(value);
+			if (code == null) {
+				if (strings.size() >= Short.MAX_VALUE)
+					throw new IllegalStateException("Too many distinct strings");
+				code = Short.valueOf((short) strings.size());
+				codes.put(value, code);
+				strings.add(value);
+			}
+			return code.shortValue();
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > flags.length) {
+				capacity = Math.max(capacity, flags.length * 2);
+				availabilityZone = Arrays.copyOf(availabilityZone, capacity);
+				offeringType = Arrays.copyOf(offeringType, capacity);
+				instanceType = Arrays.copyOf(instanceType, capacity);
+				productDescription = Arrays.copyOf(productDescription, capacity);
+				currencyCode = Arrays.copyOf(currencyCode, capacity);
+				duration = Arrays.copyOf(duration, capacity);
+				fixedPrice = Arrays.copyOf(fixedPrice, capacity);
+				hourlyPrice = Arrays.copyOf(hourlyPrice, capacity);
+				flags = Arrays.copyOf(flags, capacity);
+			}
+		}
+	}
+
+	private OfferingTable(Builder builder) {
+		size = builder.size;
+		strings = builder.strings.toArray(new String[builder.strings.size()]);
+		availabilityZone = Arrays.copyOf(builder.availabilityZone, size);
+		offeringType = Arrays.copyOf(builder.offeringType, size);
+		instanceType = Arrays.copyOf(builder.instanceType, size);
+		productDescription = Arrays.copyOf(builder.productDescription, size);
+		currencyCode = Arrays.copyOf(builder.currencyCode, size);
+		duration = Arrays.copyOf(builder.duration, size);
+		fixedPrice = Arrays.copyOf(builder.fixedPrice, size);
+		hourlyPrice = Arrays.copyOf(builder.hourlyPrice, size);
+		flags = Arrays.copyOf(builder.flags, size);
+	}
+
+	private OfferingTable(String[] strings, short[] availabilityZone, short[] offeringType, short[] instanceType,
+			short[] productDescription, short[] currencyCode, long[] duration, float[] fixedPrice, double[] hourlyPrice,
+			byte[] flags)
+	{
+		this.size = flags.length;
+		this.strings = strings;
+		this.availabilityZone = availabilityZone;
+		this.offeringType = offeringType;
+		this.instanceType = instanceType;
+		this.productDescription = productDescription;
+		this.currencyCode = currencyCode;
+		this.duration = duration;
+		this.fixedPrice = fixedPrice;
+		this.hourlyPrice = hourlyPrice;
+		this.flags = flags;
+	}
+
+	public static OfferingTable create(Iterable<Offering> offerings) {
+		return new Builder().addAll(offerings).build();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String getAvailabilityZone(int row) {
+		return decode(availabilityZone[row]);
+	}
+
+	public String getOfferingType(int row) {
+		return decode(offeringType[row]);
+	}
+
+	public String getInstanceType(int row) {
+		return decode(instanceType[row]);
+	}
+
+	public String getProductDescription(int row) {
+		return decode(productDescription[row]);
+	}
+
+	public String getCurrencyCode(int row) {
+		return decode(currencyCode[row]);
+	}
+
+	public boolean hasDuration(int row) {
+		return (flags[row] & HAS_DURATION) != 0;
+	}
+
+	/** @return The duration in seconds, or 0 if there is none. */
+	public long getDuration(int row) {
+		return duration[row];
+	}
+
+	public boolean hasFixedPrice(int row) {
+		return (flags[row] & HAS_FIXEDPRICE) != 0;
+	}
+
+	/** @return The fixed price, or 0 if there is none. */
+	public float getFixedPrice(int row) {
+		return fixedPrice[row];
+	}
+
+	public boolean hasHourlyPrice(int row) {
+		return (flags[row] & HAS_HOURLYPRICE) != 0;
+	}
+
+	/** @return The hourly price, or 0 if there is none. */
+	public double getHourlyPrice(int row) {
+		return hourlyPrice[row];
+	}
+
+	/**
+	 * @return A key identifying row's offering across catalog versions, i.e.
+	 *         all of its values but its prices, e.g.
+	 *         "us-east-1a|Linux/UNIX|Heavy Utilization|m1.small|31536000|USD".
+	 */
+	public String getKey(int row) {
+		return getAvailabilityZone(row) + '|' + getProductDescription(row) + '|' + getOfferingType(row)
+				+ '|' + getInstanceType(row) + '|' + (hasDuration(row) ? Long.toString(duration[row]) : "")
+				+ '|' + getCurrencyCode(row);
+	}
+
+	/**
+	 * @return Whether row has the same prices as other's otherRow.
+	 */
+	public boolean samePrices(int row, OfferingTable other, int otherRow) {
+		return (flags[row] & (HAS_FIXEDPRICE | HAS_HOURLYPRICE)) == (other.flags[otherRow] & (HAS_FIXEDPRICE | HAS_HOURLYPRICE))
+				&& fixedPrice[row] == other.fixedPrice[otherRow]
+				&& hourlyPrice[row] == other.hourlyPrice[otherRow];
+	}
+
+	/**
+	 * @return A new Offering with row's values.
+	 */
+	public Offering get(int row) {
+		Offering offering = new Offering();
+		offering.availabilityZone = getAvailabilityZone(row);
+		offering.offeringType = getOfferingType(row);
+		offering.instanceType = getInstanceType(row);
+		offering.productDescription = getProductDescription(row);
+		offering.currencyCode = getCurrencyCode(row);
+		offering.duration = hasDuration(row) ? Long.valueOf(duration[row]) : null;
+		offering.fixedPrice = hasFixedPrice(row) ? Float.valueOf(fixedPrice[row]) : null;
+		offering.hourlyPrice = hasHourlyPrice(row) ? Double.valueOf(hourlyPrice[row]) : null;
+		return offering;
+	}
+
+	/**
+	 * @return The rows as Offerings, materialized as they are read.
+	 */
+	public List<Offering> asList() {
+		return new AbstractList<Offering>() {
+			@Override
+			public Offering get(int row) {
+				return OfferingTable.this.get(row);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Writes row exactly as Offering.writeJson() would, without creating an
+	 * Offering.
+	 */
+	public void writeJson(int row, JsonGenerator gen) throws IOException {
+		writeJson(row, gen, null);
+	}
+
+	/**
+	 * Writes just the given fields of row, in the same order as
+	 * writeJson(row, gen).
+	 *
+	 * @param fields
+	 *            The names of the fields to write, or null for all of them.
+	 */
+	public void writeJson(int row, JsonGenerator gen, Set<String> fields) throws IOException {
+		gen.writeStartObject();
+		writeStringField(gen, fields, Offering.AVAILABILITYZONE, availabilityZone[row]);
+		writeStringField(gen, fields, Offering.OFFERINGTYPE, offeringType[row]);
+		writeStringField(gen, fields, Offering.INSTANCETYPE, instanceType[row]);
+		writeStringField(gen, fields, Offering.PRODUCTDESCRIPTION, productDescription[row]);
+		if (hasDuration(row) && (fields == null || fields.contains(Offering.DURATION)))
+			gen.writeNumberField(Offering.DURATION, duration[row]);
+		writeStringField(gen, fields, Offering.CURRENCYCODE, currencyCode[row]);
+		if (hasFixedPrice(row) && (fields == null || fields.contains(Offering.FIXEDPRICE)))
+			gen.writeNumberField(Offering.FIXEDPRICE, (double) fixedPrice[row]);
+		if (hasHourlyPrice(row) && (fields == null || fields.contains(Offering.HOURLYPRICE)))
+			gen.writeNumberField(Offering.HOURLYPRICE, hourlyPrice[row]);
+		gen.writeEndObject();
+	}
+
+	private void writeStringField(JsonGenerator gen, Set<String> fields, String name, short code) throws IOException {
+		if (code != NULL && (fields == null || fields.contains(name)))
+			gen.writeStringField(name, strings[code]);
+	}
+
+	private String decode(short code) {
+		return code != NULL ? strings[code] : null;
+	}
+
+	/**
+	 * @return The number of bytes write() needs.
+	 */
+	int getEncodedLength() {
+		int length = 4 + 4;
+		for (String string : strings)
+			length += 4 + string.getBytes(UTF8).length;
+		return length + size * (5 * 2 + 8 + 4 + 8 + 1);
+	}
+
+	/**
+	 * Writes the table to out in a flat binary layout: the dictionary, then
+	 * each column as a contiguous array.  read() copies each column back
+	 * with a single bulk get.
+	 */
+	void write(ByteBuffer out) {
+		out.putInt(strings.length);
+		for (String string : strings) {
+			byte[] bytes = string.getBytes(UTF8);
+			out.putInt(bytes.length);
+			out.put(bytes);
+		}
+		out.putInt(size);
+		for (short[] column : new short[][] { availabilityZone, offeringType, instanceType, productDescription, currencyCode }) {
+			out.asShortBuffer().put(column);
+			out.position(out.position() + 2 * size);
+		}
+		out.asLongBuffer().put(duration);
+		out.position(out.position() + 8 * size);
+		out.asFloatBuffer().put(fixedPrice);
+		out.position(out.position() + 4 * size);
+		out.asDoubleBuffer().put(hourlyPrice);
+		out.position(out.position() + 8 * size);
+		out.put(flags);
+	}
+
+	/**
+	 * Reads a table written by write().
+	 *
+	 * @throws IOException
+	 *             If in doesn't hold a valid table.
+	 */
+	static OfferingTable read(ByteBuffer in) throws IOException {
+		try {
+			String[] strings = new String[in.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[in.getInt()];
+				in.get(bytes);
+				strings[i] = new String(bytes, UTF8);
+			}
+			int size = in.getInt();
+			short[][] columns = new short[5][size];
+			for (short[] column : columns) {
+				in.asShortBuffer().get(column);
+				in.position(in.position() + 2 * size);
+				for (short code : column) {
+					if (code != NULL && (code < 0 || code >= strings.length))
+						throw new IOException("Invalid string code " + code);
+				}
+			}
+			long[] duration = new long[size];
+			in.asLongBuffer().get(duration);
+			in.position(in.position() + 8 * size);
+			float[] fixedPrice = new float[size];
+			in.asFloatBuffer().get(fixedPrice);
+			in.position(in.position() + 4 * size);
+			double[] hourlyPrice = new double[size];
+			in.asDoubleBuffer().get(hourlyPrice);
+			in.position(in.position() + 8 * size);
+			byte[] flags = new byte[size];
+			in.get(flags);
+			return new OfferingTable(strings, columns[0], columns[1], columns[2], columns[3], columns[4],
+					duration, fixedPrice, hourlyPrice, flags);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated table", e);
+		} catch (NegativeArraySizeException e) {
+			throw new IOException("Invalid table", e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid table", e);
+		}
+	}
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * An immutable view of a loaded response's offerings, as given by the query
+ * parameters of an offerings request: numeric range filters, a projection
+ * of the fields written, a sort order and a page, e.g.
+ *
+ *	?hourlyPrice=..0.05&duration=31536000&fields=instanceType,fixedPrice,hourlyPrice&sort=-fixedPrice&limit=20
+ *
+ * A range is "min..max", where either end may be omitted, or a single value.
+ * Offerings without the field never match a range on it.  A sort is by a
+ * range field, ascending or, with a leading "-", descending; offerings
+ * without the field always sort last.  The view is evaluated against the
+ * cached response, whose rows are sorted once per field and kept with it,
+ * so that a range on the sort field is found by binary search.
+ *
+ * A page of limit offerings is answered, with a cursor for the next page if
+ * there is one: its offset and the ETag of the response paged, so that a
+ * cursor into offerings that have since been reloaded is rejected, rather
+ * than skipping or repeating offerings ...
+ *
+ *	{"ec2offerings":[...],"total":57,"nextCursor":"20.9e107d9d372bb6826bd81d3542a419d6"}
+ */
+public final class OfferingView {
+	public static final String	FIELDS = "fields";
+	public static final String	SORT = "sort";
+	public static final String	LIMIT = "limit";
+	public static final String	CURSOR = "cursor";
+	public static final String	TOTAL = "total";
+	public static final String	NEXT_CURSOR = "nextCursor";
+	public static final String	RANGE = "..";
+	public static final String	DESCENDING = "-";
+	public static final char	CURSOR_SEPARATOR = '.';
+
+	private static final Set<String>	FIELD_NAMES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			Offering.AVAILABILITYZONE, Offering.OFFERINGTYPE, Offering.INSTANCETYPE, Offering.PRODUCTDESCRIPTION,
+			Offering.DURATION, Offering.CURRENCYCODE, Offering.FIXEDPRICE, Offering.HOURLYPRICE)));
+
+	/** A numeric field of the offerings, which may be filtered and sorted by. */
+	public enum Field {
+		HOURLY_PRICE(Offering.HOURLYPRICE) {
+			@Override
+			boolean has(OfferingTable table, int row) {
+				return table.hasHourlyPrice(row);
+			}
+
+			@Override
+			double get(OfferingTable table, int row) {
+				return table.getHourlyPrice(row);
+			}
+		},
+		FIXED_PRICE(Offering.FIXEDPRICE) {
+			@Override
+			boolean has(OfferingTable table, int row) {
+				return table.hasFixedPrice(row);
+			}
+
+			@Override
+			double get(OfferingTable table, int row) {
+				return table.getFixedPrice(row);
+			}
+
+			@Override
+			double round(double value) {
+				return (float) value;
+			}
+		},
+		DURATION(Offering.DURATION) {
+			@Override
+			boolean has(OfferingTable table, int row) {
+				return table.hasDuration(row);
+			}
+
+			@Override
+			double get(OfferingTable table, int row) {
+				return table.getDuration(row);
+			}
+		};
+
+		private final String	name;
+
+		Field(String name) {
+			this.name = name;
+		}
+
+		/** @return The field's name, as in the JSON and query parameters. */
+		public String getName() {
+			return name;
+		}
+
+		/** @return The field named name, or null if none is. */
+		public static Field fromName(String name) {
+			for (Field field : values()) {
+				if (field.name.equals(name))
+					return field;
+			}
+			return null;
+		}
+
+		abstract boolean has(OfferingTable table, int row);
+
+		abstract double get(OfferingTable table, int row);
+
+		/**
+		 * @return value at the precision the field is kept at, e.g. a range
+		 *         bound of 0.1 as the float 0.1 that the offerings hold.
+		 */
+		double round(double value) {
+			return value;
+		}
+
+		/**
+		 * @return table's rows in ascending order of the field, then of row,
+		 *         with the rows without it last.
+		 */
+		int[] sort(final OfferingTable table) {
+			Integer[] rows = new Integer[table.size()];
+			for (int row = 0; row < rows.length; row++)
+				rows[row] = row;
+			Arrays.sort(rows, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					boolean hasA = has(table, a), hasB = has(table, b);
+					if (hasA != hasB)
+						return hasA ? -1 : 1;
+					int c = hasA ? Double.compare(get(table, a), get(table, b)) : 0;
+					return c != 0 ? c : a.compareTo(b);
+				}
+			});
+			int[] sorted = new int[rows.length];
+			for (int i = 0; i < rows.length; i++)
+				sorted[i] = rows[i];
+			return sorted;
+		}
+	}
+
+	private final double[]		min;		// by Field ordinal, -Infinity if unbounded
+	private final double[]		max;		// +Infinity if unbounded
+	private final boolean[]		filtered;
+	private final Set<String>	fields;		// null for all
+	private final Field			sort;		// null for the response's order
+	private final boolean		descending;
+	private final int			limit;		// Integer.MAX_VALUE for all
+	private final int			offset;
+	private final String		etag;		// of the response paged, null without a cursor
+	private final boolean		empty;
+
+	private OfferingView(double[] min, double[] max, boolean[] filtered, Set<String> fields,
+			Field sort, boolean descending, int limit, int offset, String etag, boolean empty)
+	{
+		this.min = min;
+		this.max = max;
+		this.filtered = filtered;
+		this.fields = fields;
+		this.sort = sort;
+		this.descending = descending;
+		this.limit = limit;
+		this.offset = offset;
+		this.etag = etag;
+		this.empty = empty;
+	}
+
+	/**
+	 * Parses a view from a request's parameters, as given by
+	 * ServletRequest.getParameterMap().  Other parameters are ignored.
+	 *
+	 * @param maxLimit
+	 *            The largest page allowed.
+	 * @throws IllegalArgumentException
+	 *             If a parameter is malformed or out of range.
+	 */
+	public static OfferingView parse(Map<String, String[]> parameters, int maxLimit) {
+		Field[] all = Field.values();
+		double[] min = new double[all.length];
+		double[] max = new double[all.length];
+		boolean[] filtered = new boolean[all.length];
+		boolean empty = true;
+		for (Field field : all) {
+			min[field.ordinal()] = Double.NEGATIVE_INFINITY;
+			max[field.ordinal()] = Double.POSITIVE_INFINITY;
+			String range = getParameter(parameters, field.name);
+			if (range == null)
+				continue;
+			int separator = range.indexOf(RANGE);
+			String from = (separator >= 0) ? range.substring(0, separator) : range;
+			String to = (separator >= 0) ? range.substring(separator + RANGE.length()) : range;
+			if (!from.isEmpty())
+				min[field.ordinal()] = field.round(parseNumber(field.name, from));
+			if (!to.isEmpty())
+				max[field.ordinal()] = field.round(parseNumber(field.name, to));
+			if (min[field.ordinal()] > max[field.ordinal()])
+				throw new IllegalArgumentException(field.name + " range is empty: " + range);
+			filtered[field.ordinal()] = true;
+			empty = false;
+		}
+
+		Set<String> fields = null;
+		String projection = getParameter(parameters, FIELDS);
+		if (projection != null) {
+			fields = new HashSet<String>();
+			for (String name : projection.split(App.SEPARATOR)) {
+				if (name.trim().isEmpty())
+					continue;
+				if (!FIELD_NAMES.contains(name.trim()))
+					throw new IllegalArgumentException("Unknown field: " + name.trim());
+				fields.add(name.trim());
+			}
+			empty = false;
+		}
+
+		Field sort = null;
+		boolean descending = false;
+		String order = getParameter(parameters, SORT);
+		if (order != null) {
+			descending = order.startsWith(DESCENDING);
+			sort = Field.fromName(descending ? order.substring(DESCENDING.length()) : order);
+			if (sort == null)
+				throw new IllegalArgumentException("Cannot sort by " + order);
+			empty = false;
+		}
+
+		int limit = Integer.MAX_VALUE;
+		String page = getParameter(parameters, LIMIT);
+		if (page != null) {
+			limit = parseInt(LIMIT, page);
+			if (limit < 1 || limit > maxLimit)
+				throw new IllegalArgumentException(LIMIT + " must be from 1 to " + maxLimit);
+			empty = false;
+		}
+
+		int offset = 0;
+		String etag = null;
+		String cursor = getParameter(parameters, CURSOR);
+		if (cursor != null) {
+			int separator = cursor.indexOf(CURSOR_SEPARATOR);
+			if (separator < 0 || separator == cursor.length() - 1)
+				throw new IllegalArgumentException("Malformed " + CURSOR + ": " + cursor);
+			offset = parseInt(CURSOR, cursor.substring(0, separator));
+			if (offset < 0)
+				throw new IllegalArgumentException("Malformed " + CURSOR + ": " + cursor);
+			etag = '"' + cursor.substring(separator + 1) + '"';
+			empty = false;
+		}
+
+		return new OfferingView(min, max, filtered, fields, sort, descending, limit, offset, etag, empty);
+	}
+
+	private static String getParameter(Map<String, String[]> parameters, String name) {
+		String[] values = parameters.get(name);
+		return (values != null && values.length > 0 && !values[0].trim().isEmpty()) ? values[0].trim() : null;
+	}
+
+	private static double parseNumber(String name, String value) {
+		try {
+			double number = Double.parseDouble(value);
+			if (Double.isNaN(number))
+				throw new NumberFormatException();
+			return number;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number or a min" + RANGE + "max range: " + value);
+		}
+	}
+
+	private static int parseInt(String name, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed " + name + ": " + value);
+		}
+	}
+
+	/**
+	 * @return The cursor of the page of response starting at offset.
+	 */
+	static String cursor(OfferingResponse response, int offset) {
+		String etag = response.getETag();
+		return Integer.toString(offset) + CURSOR_SEPARATOR + etag.substring(1, etag.length() - 1);
+	}
+
+	/**
+	 * Checks that the view's cursor, if any, is into response, rather than
+	 * into offerings that have since been reloaded.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the cursor is stale.
+	 */
+	public void check(OfferingResponse response) {
+		if (etag != null && !etag.equals(response.getETag()))
+			throw new IllegalArgumentException("Stale " + CURSOR + ": the offerings have changed, start again");
+	}
+
+	/** @return Whether no view was asked for, i.e. the response as it is. */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * @return The rows of response's table that match the view's ranges, in
+	 *         the view's order, before paging.
+	 */
+	int[] select(OfferingResponse response) {
+		OfferingTable table = response.getTable();
+		int[] order = null;		// null for the table's order
+		int from = 0, to = table.size();
+		if (sort != null) {
+			order = response.getSortedRows(sort);
+			if (filtered[sort.ordinal()]) {
+				to = search(table, order, 0, to, Double.POSITIVE_INFINITY, true);	// the rows with a value
+				from = search(table, order, 0, to, min[sort.ordinal()], false);
+				to = search(table, order, from, to, max[sort.ordinal()], true);
+			}
+		}
+
+		int[] rows = new int[to - from];
+		int size = 0;
+		for (int i = from; i < to; i++) {
+			int row = (order != null) ? order[i] : i;
+			if (matches(table, row))
+				rows[size++] = row;
+		}
+		if (descending) {
+			// Reverse the rows with a value; those without stay last
+			int valued = search(table, rows, 0, size, Double.POSITIVE_INFINITY, true);
+			for (int i = 0, j = valued - 1; i < j; i++, j--) {
+				int row = rows[i];
+				rows[i] = rows[j];
+				rows[j] = row;
+			}
+		}
+		return (size == rows.length) ? rows : Arrays.copyOf(rows, size);
+	}
+
+	/**
+	 * @return The first index from from to to of rows, which are in sort
+	 *         order, whose value is above value, or at least value if not
+	 *         inclusive.  A row without a value is above every value.
+	 */
+	private int search(OfferingTable table, int[] rows, int from, int to, double value, boolean inclusive) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			boolean below = sort.has(table, rows[mid])
+					&& (inclusive ? sort.get(table, rows[mid]) <= value : sort.get(table, rows[mid]) < value);
+			if (below)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	private boolean matches(OfferingTable table, int row) {
+		for (Field field : Field.values()) {
+			int i = field.ordinal();
+			if (filtered[i] && !(field.has(table, row)
+					&& field.get(table, row) >= min[i] && field.get(table, row) <= max[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the view's page of response, and closes gen.
+	 *
+	 * @return The number of offerings written.
+	 * @throws IllegalArgumentException
+	 *             If the cursor is stale, before anything is written.
+	 */
+	public int write(OfferingResponse response, JsonGenerator gen) throws IOException {
+		check(response);
+		OfferingTable table = response.getTable();
+		int[] rows = select(response);
+		int from = Math.min(offset, rows.length);
+		int to = (int) Math.min(rows.length, (long) from + limit);
+
+		gen.writeStartObject();
+		gen.writeArrayFieldStart(App.ARRAYNAME);
+		for (int i = from; i < to; i++)
+			table.writeJson(rows[i], gen, fields);
+		gen.writeEndArray();
+		gen.writeNumberField(TOTAL, rows.length);
+		if (to < rows.length)
+			gen.writeStringField(NEXT_CURSOR, cursor(response, to));
+		gen.writeEndObject();
+		gen.close();
+		return to - from;
+	}
+}
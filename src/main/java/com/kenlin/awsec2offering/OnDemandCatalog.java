@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The hand transcribed on-demand offerings (aws-ec2-ondemand.json), loaded
+ * once into an immutable index keyed by (availabilityZone,
+ * productDescription, instanceType).  Any of the three may be null, meaning
+ * a wildcard, and is still a single map lookup.
+ *
+ * The catalog is read from an OnDemandSource, by default the bundled
+ * resource or a local file.  A source that can change is polled, and its
+ * offerings are atomically swapped in when it is modified, and listeners,
+ * e.g. caches of responses that include them, told.
+ */
+public class OnDemandCatalog {
+	private static final Log	log = LogFactory.getLog(OnDemandCatalog.class);
+
+	public static final String	RESOURCE = JsonOnDemandSource.RESOURCE;
+
+	private static final String	WILDCARD = "*";
+
+	/**
+	 * Is told about each reload of the catalog, on the reloading thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param version
+		 *            The reloaded catalog's getVersion().
+		 */
+		void reloaded(long version);
+	}
+
+	private final OnDemandSource			source;
+	private volatile Map<String, List<Offering>>	index = Collections.emptyMap();
+	private volatile long					lastModified = 0;
+	private volatile long					version = 0;
+	private final List<Listener>			listeners = new CopyOnWriteArrayList<Listener>();
+	private ScheduledExecutorService		reloader = null;
+
+	/**
+	 * @param mapper
+	 *            Used to parse the catalog.
+	 * @param file
+	 *            The local catalog file, or null to use the bundled resource.
+	 */
+	public OnDemandCatalog(ObjectMapper mapper, File file) {
+		this(new JsonOnDemandSource(mapper, file));
+	}
+
+	public OnDemandCatalog(OnDemandSource source) {
+		this.source = source;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Loads the catalog, and if its source can change, starts polling it for
+	 * modifications every reloadSeconds.
+	 */
+	public void start(long reloadSeconds) throws IOException {
+		load();
+		if (lastModified != 0 && reloadSeconds > 0) {
+			reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ondemand-catalog-reloader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			reloader.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reloadIfModified();
+				}
+			}, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	public void stop() {
+		if (reloader != null)
+			reloader.shutdownNow();
+	}
+
+	/**
+	 * @return The on-demand offerings matching the given values, where null
+	 *         matches anything.  The returned list is immutable.
+	 */
+	public List<Offering> find(String availabilityZone, String productDescription, String instanceType) {
+		List<Offering> offerings = index.get(createKey(availabilityZone, productDescription, instanceType));
+		return offerings != null ? offerings : Collections.<Offering>emptyList();
+	}
+
+	/** @return A number that changes whenever the catalog is (re)loaded. */
+	public long getVersion() {
+		return version;
+	}
+
+	public int size() {
+		List<Offering> all = index.get(createKey(null, null, null));
+		return all != null ? all.size() : 0;
+	}
+
+	void reloadIfModified() {
+		if (source.getLastModified() != lastModified) {
+			try {
+				load();
+				log.info("reloaded: " + source);
+			} catch (IOException e) {
+				// Keep serving the previous index until the source is fixed
+				log.error("Cannot reload " + source, e);
+				return;
+			}
+			for (Listener listener : listeners)
+				listener.reloaded(version);
+		}
+	}
+
+	private void load() throws IOException {
+		long modified = source.getLastModified();
+		index = createIndex(source.load());
+		lastModified = modified;
+		version = System.currentTimeMillis();
+	}
+
+	private static Map<String, List<Offering>> createIndex(List<Offering> offerings) {
+		// Every offering is filed under all 8 combinations of its values and
+		// wildcards, so any lookup is a single get.
+		Map<String, List<Offering>> index = new HashMap<String, List<Offering>>();
+		for (Offering offering : offerings) {
+			for (int mask = 0; mask < 8; mask++) {
+				String key = createKey(
+						(mask & 1) == 0 ? offering.availabilityZone : null,
+						(mask & 2) == 0 ? offering.productDescription : null,
+						(mask & 4) == 0 ? offering.instanceType : null);
+				List<Offering> list = index.get(key);
+				if (list == null) {
+					list = new ArrayList<Offering>();
+					index.put(key, list);
+				}
+				list.add(offering);
+			}
+		}
+		for (Map.Entry<String, List<Offering>> entry : index.entrySet())
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		return Collections.unmodifiableMap(index);
+	}
+
+	private static String createKey(String availabilityZone, String productDescription, String instanceType) {
+		return (availabilityZone != null ? availabilityZone : WILDCARD) + '\t'
+				+ (productDescription != null ? productDescription : WILDCARD) + '\t'
+				+ (instanceType != null ? instanceType : WILDCARD);
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where OnDemandCatalog gets the on-demand offerings from.
+ */
+public interface OnDemandSource {
+	/**
+	 * @return A value that changes whenever the offerings do, or 0 if they
+	 *         never change and needn't be polled.
+	 */
+	long getLastModified();
+
+	List<Offering> load() throws IOException;
+}
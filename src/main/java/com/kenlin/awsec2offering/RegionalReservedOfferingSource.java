@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Routes each call to the source for its availability zone's region, e.g.
+ * an Ec2ReservedOfferingSource with a client for that region's endpoint,
+ * so that every region is called at its own endpoint and, when each source
+ * is guarded, throttled and circuit-broken on its own.
+ */
+public class RegionalReservedOfferingSource implements ReservedOfferingSource {
+	private final Map<String, ReservedOfferingSource>	sources;	// by region
+
+	/**
+	 * @param sources
+	 *            The source for each region, e.g. "us-east-1".
+	 */
+	public RegionalReservedOfferingSource(Map<String, ReservedOfferingSource> sources) {
+		this.sources = Collections.unmodifiableMap(new LinkedHashMap<String, ReservedOfferingSource>(sources));
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If availabilityZone is null, or isn't in one of the
+	 *             regions.
+	 */
+	@Override
+	public Page describe(String availabilityZone, String productDescription, String offeringType, String instanceType,
+			String nextToken)
+	{
+		if (availabilityZone == null)
+			throw new IllegalArgumentException("An availability zone is needed to choose a region");
+		return getSource(OfferingQuery.getRegion(availabilityZone))
+				.describe(availabilityZone, productDescription, offeringType, instanceType, nextToken);
+	}
+
+	/**
+	 * @return The source for region, e.g. to sweep the whole region.
+	 * @throws IllegalArgumentException
+	 *             If region isn't one of the regions.
+	 */
+	public ReservedOfferingSource getSource(String region) {
+		ReservedOfferingSource source = sources.get(region);
+		if (source == null)
+			throw new IllegalArgumentException("Unknown region " + region);
+		return source;
+	}
+
+	/** @return The regions, in the order given. */
+	public Set<String> getRegions() {
+		return sources.keySet();
+	}
+
+	@Override
+	public String toString() {
+		return sources.toString();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A local stand-in for EC2 that replays recorded reserved offerings, for
+ * load testing without AWS.  Queries are answered from the recording in
+ * pages of pageSize, each after latencyMillis plus up to jitterMillis, and
+ * a throttleRate fraction of calls fails with EC2's RequestLimitExceeded
+ * error.
+ *
+ * A recording is a {"ec2offerings":[...]} file, as written by main().
+ */
+public class ReplayReservedOfferingSource implements ReservedOfferingSource {
+	private final OfferingIndex	recorded;
+	private final int			pageSize;
+	private final long			latencyMillis;
+	private final long			jitterMillis;
+	private final double		throttleRate;
+	private final Random		random = new Random();
+
+	/**
+	 * @param recorded
+	 *            The offerings to replay.
+	 * @param pageSize
+	 *            The most offerings returned per call.
+	 * @param latencyMillis
+	 *            The minimum time each call takes.
+	 * @param jitterMillis
+	 *            The most extra time each call takes, chosen at random.
+	 * @param throttleRate
+	 *            The fraction of calls, from 0 to 1, that are throttled.
+	 */
+	public ReplayReservedOfferingSource(List<Offering> recorded, int pageSize,
+			long latencyMillis, long jitterMillis, double throttleRate)
+	{
+		this.recorded = new OfferingIndex(recorded);
+		this.pageSize = pageSize;
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.throttleRate = throttleRate;
+	}
+
+	/**
+	 * @return The offerings recorded in file.
+	 */
+	public static List<Offering> load(ObjectMapper mapper, File file) throws IOException {
+		return mapper.readValue(file, OfferingArray.class).ec2offerings;
+	}
+
+	/**
+	 * Records every reserved offering from source to file.
+	 */
+	public static void record(ReservedOfferingSource source, ObjectMapper mapper, File file) {
+		OfferingArray offerings = new OfferingArray();
+		String nextToken = null;
+		do {
+			Page page = source.describe(null, null, null, null, nextToken);
+			offerings.ec2offerings.addAll(page.getOfferings());
+			nextToken = page.getNextToken();
+		} while (nextToken != null);
+		try {
+			mapper.writeValue(file, offerings);
+		} catch (IOException e) {
+			throw new AmazonClientException("Cannot write " + file, e);
+		}
+	}
+
+	@Override
+	public Page describe(String availabilityZone, String productDescription, String offeringType, String instanceType,
+			String nextToken)
+	{
+		int start = 0;
+		if (nextToken != null) {
+			try {
+				start = Integer.parseInt(nextToken);
+			} catch (NumberFormatException e) {
+				throw error("InvalidParameterValue", 400, "Invalid nextToken " + nextToken);
+			}
+		}
+
+		long delay = latencyMillis;
+		double throttle;
+		synchronized (random) {
+			if (jitterMillis > 0)
+				delay += (long) (random.nextDouble() * jitterMillis);
+			throttle = random.nextDouble();
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Interrupted", e);
+			}
+		}
+		if (throttle < throttleRate)
+			throw error("RequestLimitExceeded", 503, "Request limit exceeded.");
+
+		List<Offering> matches = recorded.find(availabilityZone, productDescription, offeringType, instanceType);
+		int end = Math.min(start + pageSize, matches.size());
+		if (start > end)
+			throw error("InvalidParameterValue", 400, "Invalid nextToken " + nextToken);
+		return new Page(matches.subList(start, end), end < matches.size() ? Integer.toString(end) : null);
+	}
+
+	private static AmazonServiceException error(String code, int status, String message) {
+		AmazonServiceException e = new AmazonServiceException(message);
+		e.setServiceName("AmazonEC2");
+		e.setErrorCode(code);
+		e.setStatusCode(status);
+		e.setErrorType(status >= 500 ? ErrorType.Service : ErrorType.Client);
+		return e;
+	}
+
+	/**
+	 * Records the live EC2 reserved catalog for replay.
+	 *
+	 * @param args
+	 *            The file to write.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("usage: ReplayReservedOfferingSource <file>");
+			System.exit(1);
+		}
+		AmazonEC2Client ec2 = new AmazonEC2Client();
+		try {
+			File file = new File(args[0]);
+			record(new Ec2ReservedOfferingSource(ec2, 1), new ObjectMapper(), file);
+			System.out.println("recorded: " + file);
+		} finally {
+			ec2.shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "replay of " + recorded.size() + " offerings";
+	}
+}
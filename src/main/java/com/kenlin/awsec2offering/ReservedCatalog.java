@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The complete reserved offering catalog, fetched by a background job and
+ * held as an OfferingIndex, so that any query can be answered from memory
+ * rather than by its own describeReservedInstancesOfferings sweep.
+ *
+ * Each refresh is compared with the current catalog.  If nothing changed,
+ * the current index is kept as is; otherwise the new index keeps the leaf
+ * versions of the unchanged offerings, and the differences are recorded as
+ * a CatalogDelta.  The catalog's version is its index's creation time.
+ */
+public class ReservedCatalog {
+	private static final Log	log = LogFactory.getLog(ReservedCatalog.class);
+
+	/**
+	 * Is told about each change to the catalog, on the refreshing thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param delta
+		 *            The changes, or null if the catalog has just been
+		 *            fetched for the first time.
+		 */
+		void changed(CatalogDelta delta);
+	}
+
+	private final Callable<List<Offering>>	sweep;
+	private final int						maxHistory;
+	private volatile OfferingIndex			index = null;
+	private final LinkedList<CatalogDelta>	history = new LinkedList<CatalogDelta>();	// oldest first
+	private final List<Listener>			listeners = new CopyOnWriteArrayList<Listener>();
+	private ScheduledExecutorService		refresher = null;
+
+	/**
+	 * @param sweep
+	 *            Fetches every reserved offering.
+	 */
+	public ReservedCatalog(Callable<List<Offering>> sweep) {
+		this(sweep, 0);
+	}
+
+	/**
+	 * @param maxHistory
+	 *            The most recent deltas kept for getChangesSince().
+	 */
+	public ReservedCatalog(Callable<List<Offering>> sweep, int maxHistory) {
+		this.sweep = sweep;
+		this.maxHistory = maxHistory;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts fetching the catalog in the background, and again every
+	 * intervalMillis.
+	 */
+	public void start(long intervalMillis) {
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reserved-catalog-refresher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception e) {
+					// Keep serving the previous index, if any, until the next attempt
+					log.error("Cannot prefetch the reserved catalog", e);
+				}
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (refresher != null)
+			refresher.shutdownNow();
+	}
+
+	/**
+	 * @return The latest catalog, or null if it hasn't been fetched yet.
+	 */
+	public OfferingIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return The catalog's version, or 0 if it hasn't been fetched yet.
+	 */
+	public long getVersion() {
+		OfferingIndex index = this.index;
+		return index != null ? index.getCreated() : 0;
+	}
+
+	/**
+	 * @return The deltas from version to the current version, oldest first,
+	 *         which are none if version is current, or null if they aren't
+	 *         all known, e.g. because version is too old.
+	 */
+	public synchronized List<CatalogDelta> getChangesSince(long version) {
+		if (version == getVersion())
+			return new ArrayList<CatalogDelta>();
+		for (int i = 0; i < history.size(); i++) {
+			if (history.get(i).getPreviousVersion() == version)
+				return new ArrayList<CatalogDelta>(history.subList(i, history.size()));
+		}
+		return null;
+	}
+
+	/**
+	 * Serves index, e.g. restored from a Snapshot, until the first refresh
+	 * completes.  Does nothing if the catalog has already been fetched.
+	 */
+	public synchronized void restore(OfferingIndex index) {
+		if (this.index == null)
+			this.index = index;
+	}
+
+	void refresh() throws Exception {
+		long start = System.currentTimeMillis();
+		OfferingTable table = OfferingTable.create(sweep.call());
+		CatalogDelta delta = null;
+		synchronized (this) {
+			OfferingIndex previous = this.index;
+			if (previous == null) {
+				this.index = new OfferingIndex(table);
+			} else {
+				long version = Math.max(System.currentTimeMillis(), previous.getCreated() + 1);
+				delta = CatalogDelta.compute(previous.getTable(), previous.getCreated(), table, version);
+				if (delta.isEmpty()) {
+					log.info("prefetched: " + table.size() + " reserved offerings, unchanged, in "
+							+ (System.currentTimeMillis() - start) + "ms");
+					return;
+				}
+				this.index = new OfferingIndex(table, version, previous);
+				history.add(delta);
+				while (history.size() > maxHistory)
+					history.removeFirst();
+			}
+		}
+		log.info("prefetched: " + table.size() + " reserved offerings"
+				+ (delta != null ? ", " + delta : "") + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		for (Listener listener : listeners)
+			listener.changed(delta);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.List;
+
+/**
+ * Where the reserved offerings come from: EC2's paginated
+ * describeReservedInstancesOfferings, or a stand-in for it.
+ */
+public interface ReservedOfferingSource {
+	/**
+	 * One page of offerings.
+	 */
+	public static class Page {
+		private final List<Offering>	offerings;
+		private final String			nextToken;
+
+		public Page(List<Offering> offerings, String nextToken) {
+			this.offerings = offerings;
+			this.nextToken = nextToken;
+		}
+
+		public List<Offering> getOfferings() {
+			return offerings;
+		}
+
+		/** @return The token for the next page, or null if this is the last. */
+		public String getNextToken() {
+			return nextToken;
+		}
+	}
+
+	/**
+	 * Describes one page of the reserved offerings matching the given
+	 * values, where null matches anything.
+	 *
+	 * @param nextToken
+	 *            The previous page's next token, or null for the first page.
+	 */
+	Page describe(String availabilityZone, String productDescription, String offeringType, String instanceType,
+			String nextToken);
+}
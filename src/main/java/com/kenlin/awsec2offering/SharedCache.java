@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+
+/**
+ * A store of cached offerings shared by every node of the service, e.g. a
+ * directory on a shared volume, behind each node's in-process Cache.  A key
+ * being loaded is leased to one node at a time, so that only that node
+ * calls EC2 for it, and the others take its result from the store.
+ */
+public interface SharedCache {
+	/**
+	 * Called repeatedly while another node loads key, so it should only read
+	 * the offerings themselves once they are newer than since.
+	 *
+	 * @return key's offerings, named key, and when they were loaded, or null
+	 *         if there are none loaded after since (millis).
+	 */
+	Snapshot.Section get(String key, long since) throws IOException;
+
+	/**
+	 * Stores offerings for key, loaded at loaded (millis), replacing any
+	 * others.
+	 */
+	void put(String key, OfferingTable table, long loaded) throws IOException;
+
+	/**
+	 * Leases key to this node, for a fixed time, unless another node already
+	 * holds an unexpired lease of it.
+	 *
+	 * @return Whether this node now holds the lease.
+	 */
+	boolean tryLease(String key) throws IOException;
+
+	/**
+	 * Gives up this node's lease of key, if it holds it.
+	 */
+	void release(String key) throws IOException;
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * How a node loads a key through a SharedCache: it takes a fresh enough
+ * shared copy if there is one, and otherwise loads the key itself only if
+ * it can lease it.  While another node holds the lease, it waits up to
+ * maxWait for that node's copy, and then loads the key anyway.
+ *
+ * The shared cache is an optimization, so its failures are logged and
+ * counted, and the key is then loaded as if there were no shared cache.
+ */
+public class SharedTier {
+	private static final Log		log = LogFactory.getLog(SharedTier.class);
+	private static final long		POLL_MILLIS = 100;
+
+	private final SharedCache		store;
+	private final long				maxWait;
+
+	private final AtomicLong		hits = new AtomicLong();
+	private final AtomicLong		leases = new AtomicLong();
+	private final AtomicLong		waits = new AtomicLong();
+	private final AtomicLong		timeouts = new AtomicLong();
+	private final AtomicLong		errors = new AtomicLong();
+
+	/**
+	 * @param maxWait
+	 *            How long, in milliseconds, to wait for another node's load
+	 *            of a key before loading it too.
+	 */
+	public SharedTier(SharedCache store, long maxWait) {
+		this.store = store;
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Finds key's shared copy if it was loaded after since (millis), e.g.
+	 * within a TTL, or after the caller's own copy.  Otherwise the caller
+	 * must load key, and then put() and release() it.
+	 *
+	 * @return The shared copy, or null if the caller must load key, either
+	 *         under its lease or because the wait for another node's load
+	 *         timed out.
+	 */
+	public Snapshot.Section acquire(String key, long since) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + maxWait;
+		boolean waited = false;
+		try {
+			while (true) {
+				Snapshot.Section section = store.get(key, since);
+				if (section != null) {
+					hits.incrementAndGet();
+					return section;
+				}
+				if (store.tryLease(key)) {
+					leases.incrementAndGet();
+					return null;
+				}
+				if (!waited) {
+					waited = true;
+					waits.incrementAndGet();
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					timeouts.incrementAndGet();
+					return null;
+				}
+				Thread.sleep(POLL_MILLIS);
+			}
+		} catch (IOException e) {
+			error("Cannot read shared " + key, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Shares key's offerings, loaded at loaded (millis), with the other
+	 * nodes.
+	 */
+	public void put(String key, OfferingTable table, long loaded) {
+		try {
+			store.put(key, table, loaded);
+		} catch (IOException e) {
+			error("Cannot share " + key, e);
+		}
+	}
+
+	/**
+	 * Gives up the lease of key taken by acquire(), if any, e.g. once it is
+	 * loaded, or its load failed.
+	 */
+	public void release(String key) {
+		try {
+			store.release(key);
+		} catch (IOException e) {
+			error("Cannot release " + key, e);
+		}
+	}
+
+	/** @return The number of keys taken from the shared cache. */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/** @return The number of keys leased to this node to load. */
+	public long getLeaseCount() {
+		return leases.get();
+	}
+
+	/** @return The number of keys waited for while another node loaded them. */
+	public long getWaitCount() {
+		return waits.get();
+	}
+
+	/** @return The number of waits that timed out, so the key was loaded here too. */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/** @return The number of failed shared cache operations. */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * Exposes the shared cache counters as prefix_hits_total, etc.
+	 */
+	public void register(Metrics metrics, String prefix) {
+		metrics.counter(prefix + "_hits_total", "Keys taken from the shared cache.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getHitCount();
+			}
+		});
+		metrics.counter(prefix + "_leases_total", "Keys leased to this node to load.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getLeaseCount();
+			}
+		});
+		metrics.counter(prefix + "_waits_total", "Keys waited for while another node loaded them.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getWaitCount();
+			}
+		});
+		metrics.counter(prefix + "_wait_timeouts_total", "Waits for another node that timed out.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getTimeoutCount();
+			}
+		});
+		metrics.counter(prefix + "_errors_total", "Failed shared cache operations.", new Metrics.Value() {
+			@Override
+			public long get() {
+				return getErrorCount();
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return store + " hits=" + getHitCount() + " leases=" + getLeaseCount() + " waits=" + getWaitCount()
+				+ " timeouts=" + getTimeoutCount() + " errors=" + getErrorCount();
+	}
+
+	private void error(String message, IOException e) {
+		errors.incrementAndGet();
+		log.warn(message + ": " + e.getMessage());
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A point-in-time copy of loaded offerings, written to a local file so that
+ * a restarted service can serve them immediately while it refreshes them
+ * from EC2 in the background.
+ *
+ * The file is a fixed header (magic, format version, creation time, payload
+ * length and the payload's CRC32) followed by named sections, each holding
+ * an OfferingTable in its flat binary layout.  It is read through a file
+ * channel into heap buffers, so no mapping outlives the read and the file
+ * can always be replaced, atomically, when written.
+ */
+public class Snapshot {
+	public static final int		MAGIC = 0x41454f53;		// "AEOS"
+	public static final int		VERSION = 1;
+
+	private static final int		HEADER_LENGTH = 4 + 4 + 8 + 8 + 8;
+	private static final Charset	UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Named offerings, and when they were loaded.
+	 */
+	public static class Section {
+		private final String		name;
+		private final long			loaded;		// millis
+		private final OfferingTable	table;
+
+		public Section(String name, long loaded, OfferingTable table) {
+			this.name = name;
+			this.loaded = loaded;
+			this.table = table;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/** @return When, in millis, the offerings were loaded. */
+		public long getLoaded() {
+			return loaded;
+		}
+
+		public OfferingTable getTable() {
+			return table;
+		}
+	}
+
+	private final long			created;
+	private final List<Section>	sections;
+
+	public Snapshot() {
+		this(System.currentTimeMillis(), new ArrayList<Section>());
+	}
+
+	private Snapshot(long created, List<Section> sections) {
+		this.created = created;
+		this.sections = sections;
+	}
+
+	/** @return When, in millis, the snapshot was taken. */
+	public long getCreated() {
+		return created;
+	}
+
+	public List<Section> getSections() {
+		return Collections.unmodifiableList(sections);
+	}
+
+	public Snapshot add(String name, long loaded, OfferingTable table) {
+		sections.add(new Section(name, loaded, table));
+		return this;
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file beside file, then renames it
+	 * over file, so that a reader never sees a partial snapshot.
+	 */
+	public void write(File file) throws IOException {
+		int length = 0;
+		for (Section section : sections)
+			length += 4 + section.name.getBytes(UTF8).length + 8 + 4 + section.table.getEncodedLength();
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		for (Section section : sections) {
+			byte[] name = section.name.getBytes(UTF8);
+			payload.putInt(name.length);
+			payload.put(name);
+			payload.putLong(section.loaded);
+			payload.putInt(section.table.getEncodedLength());
+			section.table.write(payload);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, length);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(created);
+		header.putLong(length);
+		header.putLong(crc.getValue());
+		header.flip();
+		payload.flip();
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Cannot create " + parent);
+		File temp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				FileChannel channel = out.getChannel();
+				while (header.hasRemaining() || payload.hasRemaining())
+					channel.write(new ByteBuffer[] { header, payload });
+				channel.force(true);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();	// no-op once moved
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by write().
+	 *
+	 * @param maxAge
+	 *            Milliseconds after which a snapshot is too old to use.
+	 * @return The snapshot, or null if file doesn't exist or is too old.
+	 * @throws IOException
+	 *             If file can't be read, or is corrupt or of another version.
+	 */
+	public static Snapshot read(File file, long maxAge) throws IOException {
+		if (!file.isFile())
+			return null;
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = readHeader(file, channel);
+			long created = header.getLong();
+			if (System.currentTimeMillis() - created > maxAge)
+				return null;
+			return new Snapshot(created, readSections(file, channel, header.getLong(), header.getLong()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the first section of a snapshot written by write(), e.g. of a
+	 * single section snapshot, if it is named name and was loaded after
+	 * since (millis).  Otherwise only the header and the section's name and
+	 * load time are read, so a file can be polled cheaply for a newer copy.
+	 *
+	 * @return The section, or null if file doesn't exist, or its first
+	 *         section is another or no newer.
+	 * @throws IOException
+	 *             If file can't be read, or is corrupt or of another version.
+	 */
+	public static Section readSection(File file, String name, long since) throws IOException {
+		if (!file.isFile())
+			return null;
+
+		byte[] expected = name.getBytes(UTF8);
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = readHeader(file, channel);
+			header.getLong();	// created
+			ByteBuffer first = ByteBuffer.allocate(4 + expected.length + 8);
+			if (!readFully(channel, first))
+				return null;	// no sections, or a shorter one
+			first.flip();
+			if (first.getInt() != expected.length)
+				return null;
+			byte[] actual = new byte[expected.length];
+			first.get(actual);
+			if (!Arrays.equals(actual, expected) || first.getLong() <= since)
+				return null;
+			channel.position(HEADER_LENGTH);
+			return readSections(file, channel, header.getLong(), header.getLong()).get(0);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads and checks the header at the start of channel.
+	 *
+	 * @return The header, positioned at the creation time.
+	 */
+	private static ByteBuffer readHeader(File file, FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		if (!readFully(channel, header))
+			throw new IOException("Truncated snapshot " + file);
+		header.flip();
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a snapshot " + file);
+		int version = header.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version + " " + file);
+		return header;
+	}
+
+	/**
+	 * Reads the payload following the header into a heap buffer, checks it,
+	 * and parses its sections.
+	 */
+	private static List<Section> readSections(File file, FileChannel channel, long length, long checksum)
+			throws IOException {
+		if (length != channel.size() - HEADER_LENGTH || length > Integer.MAX_VALUE)
+			throw new IOException("Truncated snapshot " + file);
+		ByteBuffer buffer = ByteBuffer.allocate((int) length);
+		if (!readFully(channel, buffer))
+			throw new IOException("Truncated snapshot " + file);
+		buffer.flip();
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.limit());
+		if (crc.getValue() != checksum)
+			throw new IOException("Checksum mismatch in snapshot " + file);
+
+		List<Section> sections = new ArrayList<Section>();
+		try {
+			while (buffer.hasRemaining()) {
+				byte[] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				long loaded = buffer.getLong();
+				int tableLength = buffer.getInt();
+				int end = buffer.position() + tableLength;
+				OfferingTable table = OfferingTable.read(buffer);
+				if (buffer.position() != end)
+					throw new IOException("Invalid section in snapshot " + file);
+				sections.add(new Section(new String(name, UTF8), loaded, table));
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated snapshot " + file, e);
+		} catch (NegativeArraySizeException e) {
+			throw new IOException("Invalid section in snapshot " + file, e);
+		}
+		return sections;
+	}
+
+	/**
+	 * Reads from channel until buffer is full.
+	 *
+	 * @return Whether it was filled, rather than the file ending first.
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Ken K. Lin. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kenlin.awsec2offering;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter whose rate adapts to throttling: it is
+ * halved by decrease(), down to a floor, and crept back up to its maximum
+ * by increase(), i.e. additive increase, multiplicative decrease.
+ *
+ * A caller that finds the bucket empty reserves the next token and sleeps
+ * until it is due, without holding the lock, so callers are served in
+ * arrival order.
+ */
+public class TokenBucket {
+	private static final double	NANOS_IN_SECOND = 1e9;
+	private static final double	MIN_RATE_FRACTION = 0.05;	// of maxRate
+	private static final double	INCREASE_FRACTION = 0.05;	// of maxRate, per increase()
+
+	private final double	maxRate;	// per second
+	private final double	burst;
+	private double			rate;
+	private double			tokens;		// negative when reserved ahead
+	private long			updated;	// nanos
+	private long			waits = 0;
+
+	/**
+	 * @param permitsPerSecond
+	 *            The most tokens issued per second.
+	 * @param burst
+	 *            The most tokens that can be taken at once, after idling.
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		if (permitsPerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("permitsPerSecond and burst must be positive");
+		this.maxRate = permitsPerSecond;
+		this.burst = burst;
+		this.rate = permitsPerSecond;
+		this.tokens = burst;
+		this.updated = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token, waiting until one is due if need be.
+	 *
+	 * @return The nanos waited.
+	 */
+	public long acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			refill();
+			tokens -= 1;
+			wait = (tokens >= 0) ? 0 : (long) (-tokens / rate * NANOS_IN_SECOND);
+			if (wait > 0)
+				waits++;
+		}
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+		return wait;
+	}
+
+	/** Halves the rate, e.g. when the upstream throttles a call. */
+	public synchronized void decrease() {
+		refill();
+		rate = Math.max(maxRate * MIN_RATE_FRACTION, rate / 2);
+	}
+
+	/** Raises the rate a step towards its maximum, e.g. after a call succeeds. */
+	public synchronized void increase() {
+		refill();
+		rate = Math.min(maxRate, rate + maxRate * INCREASE_FRACTION);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - updated) / NANOS_IN_SECOND * rate);
+		updated = now;
+	}
+
+	/** @return The current rate, in tokens per second. */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/** @return The tokens available now, or a negative number reserved ahead. */
+	public synchronized double getTokens() {
+		refill();
+		return tokens;
+	}
+
+	/** @return The number of acquire() calls that had to wait. */
+	public synchronized long getWaitCount() {
+		return waits;
+	}
+}
@@ -1,9 +1,39 @@
 package com.kenlin.awsec2offering;
 
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
 /**
  * Unit test for simple App.
  */
@@ -35,4 +65,532 @@ public class AppTest
     {
         assertTrue( true );
     }
+
+    /**
+     * @param overrides
+     *            Names of App's config fields, each followed by its value,
+     *            e.g. "prefetch", true.
+     * @return An App that replays the recorded reserved offerings instantly,
+     *         unless overrides say otherwise
+     */
+    static App replayApp(Object... overrides) throws Exception
+    {
+        App app = new App();
+        ReflectionTestUtils.setField(app, "source", "replay");
+        ReflectionTestUtils.setField(app, "replayFile",
+            new File(AppTest.class.getResource("/reserved-offerings.json").toURI()).getPath());
+        ReflectionTestUtils.setField(app, "replayLatency", 0L);
+        ReflectionTestUtils.setField(app, "replayJitter", 0L);
+        ReflectionTestUtils.setField(app, "selfCheck", false);
+        for (int i = 0; i < overrides.length; i += 2)
+            ReflectionTestUtils.setField(app, (String) overrides[i], overrides[i + 1]);
+        app.afterPropertiesSet();
+        return app;
+    }
+
+    /**
+     * Waits for key's load, e.g. one whose caller has given up on it, to be
+     * cached.
+     */
+    private static void awaitCached(Cache cache, String key) throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean cached = new AtomicBoolean();
+        cache.load(key, new Cache.Loader() {
+            @Override
+            public OfferingResponse load()
+            {
+                throw new IllegalStateException("no load in flight");
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        }, new Cache.Callback() {
+            @Override
+            public void loaded(OfferingResponse offerings)
+            {
+                cached.set(true);
+                done.countDown();
+            }
+
+            @Override
+            public void failed(Exception e)
+            {
+                done.countDown();
+            }
+        });
+        assertTrue(key, done.await(5, TimeUnit.SECONDS));
+        assertTrue(key, cached.get());
+    }
+
+    /**
+     * @return The cache of app's us-east-1 region
+     */
+    @SuppressWarnings("unchecked")
+    static Cache cache(App app)
+    {
+        return ((Map<String, Cache>) ReflectionTestUtils.getField(app, "caches")).get("us-east-1");
+    }
+
+    private static boolean isAsync(MvcResult result)
+    {
+        return WebAsyncUtils.getAsyncManager(result.getRequest()).isConcurrentHandlingStarted();
+    }
+
+    public void testMissIsAsyncAndHitIsInline() throws Exception
+    {
+        App app = replayApp();
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            String uri = "/awsec2offering/api/us-east-1a/linux/heavy";
+
+            MvcResult miss = mvc.perform(get(uri)).andReturn();
+            assertTrue(isAsync(miss));
+            miss.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(miss));
+            assertEquals(200, miss.getResponse().getStatus());
+            String body = miss.getResponse().getContentAsString();
+            assertTrue(body, body.contains("\"offeringType\":\"Heavy Utilization\""));
+            assertTrue(body, body.contains("\"offeringType\":\"On-Demand\""));
+            String etag = miss.getResponse().getHeader("ETag");
+            assertNotNull(etag);
+
+            MvcResult hit = mvc.perform(get(uri)).andReturn();
+            assertFalse(isAsync(hit));
+            assertEquals(200, hit.getResponse().getStatus());
+            assertEquals(etag, hit.getResponse().getHeader("ETag"));
+            assertEquals(body, hit.getResponse().getContentAsString());
+
+            MvcResult notModified = mvc.perform(get(uri).header("If-None-Match", etag)).andReturn();
+            assertFalse(isAsync(notModified));
+            assertEquals(304, notModified.getResponse().getStatus());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testOnDemandReloadReplacesCachedResponses() throws Exception
+    {
+        File file = File.createTempFile("ondemand", ".json");
+        Files.copy(AppTest.class.getResourceAsStream(OnDemandCatalog.RESOURCE), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+        App app = replayApp("onDemandFile", file.getPath());
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            String uri = "/awsec2offering/api/us-east-1a/linux/heavy";
+            MvcResult first = mvc.perform(get(uri)).andReturn();
+            first.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(first));
+            String body = first.getResponse().getContentAsString();
+            assertTrue(body, body.contains("\"hourlyPrice\":0.113"));
+            String etag = first.getResponse().getHeader("ETag");
+
+            String catalog = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+            Files.write(file.toPath(), catalog.replace("\"hourlyPrice\":0.113}", "\"hourlyPrice\":0.099}").getBytes("UTF-8"));
+            file.setLastModified(file.lastModified() + 2000);
+            ((OnDemandCatalog) ReflectionTestUtils.getField(app, "onDemandCatalog")).reloadIfModified();
+
+            // The cached response is loaded again, with the new price and ETag
+            MvcResult reloaded = mvc.perform(get(uri).header("If-None-Match", etag)).andReturn();
+            assertTrue(isAsync(reloaded));
+            reloaded.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(reloaded));
+            assertEquals(200, reloaded.getResponse().getStatus());
+            body = reloaded.getResponse().getContentAsString();
+            assertTrue(body, body.contains("\"hourlyPrice\":0.099"));
+            assertFalse(body, body.contains("\"hourlyPrice\":0.113"));
+            assertFalse(etag.equals(reloaded.getResponse().getHeader("ETag")));
+        } finally {
+            app.destroy();
+            file.delete();
+        }
+    }
+
+    public void testInvalidQueriesAreRejected() throws Exception
+    {
+        App app = replayApp();
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            MvcResult region = mvc.perform(get("/awsec2offering/api/xx-nowhere-1a/linux")).andReturn();
+            assertEquals(400, region.getResponse().getStatus());
+            MvcResult product = mvc.perform(get("/awsec2offering/api/us-east-1a/beos")).andReturn();
+            assertEquals(400, product.getResponse().getStatus());
+            assertEquals(0, cache(app).size());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testNdjsonStreamsAColdQueryAndCachesIt() throws Exception
+    {
+        App app = replayApp("replayPageSize", 2);	// several pages
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            String uri = "/awsec2offering/api/us-east-1a/linux/heavy";
+
+            MvcResult stream = mvc.perform(get(uri).header("Accept", App.NDJSON_MEDIATYPE)).andReturn();
+            assertTrue(isAsync(stream));
+            stream.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(stream));
+            assertEquals(App.NDJSON_CONTENTTYPE, stream.getResponse().getContentType());
+            String body = stream.getResponse().getContentAsString();
+            assertTrue(body, body.endsWith("\n"));
+            String[] lines = body.split("\n");
+            ObjectMapper mapper = new ObjectMapper();
+            assertEquals("On-Demand", mapper.readTree(lines[0]).get("offeringType").asText());
+            for (String line : lines)
+                assertNull(line, mapper.readTree(line).get(App.NDJSON_ERROR));
+
+            // The whole result was cached, and is served inline in either form
+            MvcResult json = mvc.perform(get(uri)).andReturn();
+            assertFalse(isAsync(json));
+            JsonNode offerings = mapper.readTree(json.getResponse().getContentAsString()).get(App.ARRAYNAME);
+            assertEquals(lines.length, offerings.size());
+            assertEquals(offerings.get(lines.length - 1), mapper.readTree(lines[lines.length - 1]));
+            MvcResult hit = mvc.perform(get(uri).header("Accept", App.NDJSON_MEDIATYPE)).andReturn();
+            assertFalse(isAsync(hit));
+            assertEquals(body, hit.getResponse().getContentAsString());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testSlowStreamIsDroppedWithoutHoldingUpTheLoad() throws Exception
+    {
+        App app = replayApp("replayPageSize", 2,
+            "streamMaxBuffered", 1);	// overflows on the first page
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            String uri = "/awsec2offering/api/us-east-1a/linux/heavy";
+
+            MvcResult stream = mvc.perform(get(uri).header("Accept", App.NDJSON_MEDIATYPE)).andReturn();
+            assertTrue(isAsync(stream));
+            stream.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(stream));
+            String[] lines = stream.getResponse().getContentAsString().split("\n");
+            assertNotNull(new ObjectMapper().readTree(lines[lines.length - 1]).get(App.NDJSON_ERROR));
+
+            // The load went on to fill the cache
+            Cache cache = cache(app);
+            awaitCached(cache, OfferingQuery.create("us-east-1a", "linux", "heavy", null).getKey());
+            assertEquals(1, cache.size());
+            String metrics = mvc.perform(get("/awsec2offering/metrics")).andReturn().getResponse().getContentAsString();
+            assertTrue(metrics, metrics.contains("awsec2offering_stream_overflows_total 1"));
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testSmileIsNegotiated() throws Exception
+    {
+        App app = replayApp();
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            String uri = "/awsec2offering/api/us-east-1a/linux/heavy";
+
+            MvcResult miss = mvc.perform(get(uri).header("Accept", App.SMILE_CONTENTTYPE)).andReturn();
+            assertTrue(isAsync(miss));
+            miss.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(miss));
+            assertEquals(App.SMILE_CONTENTTYPE, miss.getResponse().getContentType());
+            String etag = miss.getResponse().getHeader("ETag");
+            assertTrue(etag, etag.endsWith(OfferingResponse.SMILE_ETAG_SUFFIX + "\""));
+            byte[] smile = miss.getResponse().getContentAsByteArray();
+
+            // The same offerings as the JSON, in fewer bytes
+            MvcResult json = mvc.perform(get(uri)).andReturn();
+            assertFalse(isAsync(json));
+            assertEquals(new ObjectMapper().readTree(json.getResponse().getContentAsString()),
+                new ObjectMapper(new SmileFactory()).readTree(smile));
+            assertTrue(smile.length < json.getResponse().getContentAsByteArray().length);
+
+            MvcResult hit = mvc.perform(get(uri).header("Accept", App.SMILE_CONTENTTYPE)).andReturn();
+            assertFalse(isAsync(hit));
+            assertTrue(Arrays.equals(smile, hit.getResponse().getContentAsByteArray()));
+            MvcResult notModified = mvc.perform(get(uri).header("Accept", App.SMILE_CONTENTTYPE)
+                .header("If-None-Match", etag)).andReturn();
+            assertEquals(304, notModified.getResponse().getStatus());
+
+            // A cached copy of one encoding is never validated for the other
+            String jsonETag = json.getResponse().getHeader("ETag");
+            MvcResult smileForJson = mvc.perform(get(uri).header("Accept", App.SMILE_CONTENTTYPE)
+                .header("If-None-Match", jsonETag)).andReturn();
+            assertEquals(200, smileForJson.getResponse().getStatus());
+            assertTrue(Arrays.equals(smile, smileForJson.getResponse().getContentAsByteArray()));
+            MvcResult jsonForSmile = mvc.perform(get(uri).header("If-None-Match", etag)).andReturn();
+            assertEquals(200, jsonForSmile.getResponse().getStatus());
+            assertEquals(App.JSON_CONTENTTYPE, jsonForSmile.getResponse().getContentType());
+            assertEquals(304, mvc.perform(get(uri).header("If-None-Match", jsonETag)).andReturn().getResponse().getStatus());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testBatchSharesSubQueries() throws Exception
+    {
+        App app = replayApp();
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            String batch = "{\"queries\":["
+                + "{\"id\":\"a\",\"availabilityZone\":\"us-east-1a\",\"productDescription\":\"linux\",\"offeringType\":\"heavy\",\"instanceType\":\"t1.micro,m1.small\"}"
+                + ",{\"id\":\"b\",\"availabilityZone\":\"us-east-1a\",\"productDescription\":\"linux\",\"offeringType\":\"heavy\",\"instanceType\":\"m1.small\"}"
+                + ",{\"id\":\"c\",\"offeringType\":\"bogus\"}"
+                + "]}";
+
+            MvcResult miss = mvc.perform(post("/awsec2offering/api/batch")
+                .contentType(MediaType.APPLICATION_JSON).content(batch.getBytes("UTF-8"))).andReturn();
+            assertTrue(isAsync(miss));
+            miss.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(miss));
+            assertEquals(200, miss.getResponse().getStatus());
+            JsonNode results = new ObjectMapper().readTree(miss.getResponse().getContentAsString()).get("results");
+            assertEquals(3, results.size());
+
+            // m1.small and t1.micro, in canonical order, each with an on-demand and a heavy reserved offering
+            JsonNode a = results.get("a").get(App.ARRAYNAME);
+            assertEquals(4, a.size());
+            assertEquals("m1.small", a.get(0).get("instanceType").asText());
+            assertEquals("t1.micro", a.get(3).get("instanceType").asText());
+            JsonNode b = results.get("b").get(App.ARRAYNAME);
+            assertEquals(2, b.size());
+            assertEquals(a.get(0), b.get(0));
+            assertEquals(a.get(1), b.get(1));
+            assertNotNull(results.get("c").get("error"));
+
+            // Two distinct sub-queries were loaded; the same batch is now answered inline
+            assertEquals(2, cache(app).size());
+            MvcResult hit = mvc.perform(post("/awsec2offering/api/batch")
+                .contentType(MediaType.APPLICATION_JSON).content(batch.getBytes("UTF-8"))).andReturn();
+            assertFalse(isAsync(hit));
+            assertEquals(miss.getResponse().getContentAsString(), hit.getResponse().getContentAsString());
+
+            MvcResult bad = mvc.perform(post("/awsec2offering/api/batch")
+                .contentType(MediaType.APPLICATION_JSON).content("{".getBytes("UTF-8"))).andReturn();
+            assertEquals(400, bad.getResponse().getStatus());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testCostRanking() throws Exception
+    {
+        App app = replayApp();
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            MvcResult miss = mvc.perform(get("/awsec2offering/cost/us-east-1a/linux")
+                .param("instanceType", "m1.small").param("months", "24").param("top", "2")).andReturn();
+            assertTrue(isAsync(miss));
+            miss.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(miss));
+            assertEquals(200, miss.getResponse().getStatus());
+
+            JsonNode ranking = new ObjectMapper().readTree(miss.getResponse().getContentAsString());
+            assertEquals(24, ranking.get("months").asInt());
+            JsonNode rankings = ranking.get("rankings");
+            assertEquals(2, rankings.size());
+            assertTrue(rankings.get(0).get("totalCost").asDouble() <= rankings.get(1).get("totalCost").asDouble());
+            assertEquals("m1.small", rankings.get(0).get("offering").get("instanceType").asText());
+
+            MvcResult bad = mvc.perform(get("/awsec2offering/cost/us-east-1a/linux").param("months", "99")).andReturn();
+            assertEquals(400, bad.getResponse().getStatus());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testViewFiltersSortsAndPagesTheCachedOfferings() throws Exception
+    {
+        App app = replayApp();
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            String uri = "/awsec2offering/api/us-east-1a/linux";
+            MvcResult miss = mvc.perform(get(uri).param("sort", "-hourlyPrice").param("limit", "2")
+                .param("fields", "instanceType,hourlyPrice")).andReturn();
+            assertTrue(isAsync(miss));
+            miss.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(miss));
+            assertEquals(200, miss.getResponse().getStatus());
+
+            JsonNode page = new ObjectMapper().readTree(miss.getResponse().getContentAsString());
+            JsonNode offerings = page.get("ec2offerings");
+            assertEquals(2, offerings.size());
+            assertEquals(2, offerings.get(0).size());
+            assertTrue(offerings.get(0).get("hourlyPrice").asDouble() >= offerings.get(1).get("hourlyPrice").asDouble());
+            int total = page.get("total").asInt();
+            assertTrue(page.toString(), total > 2);
+
+            // Later pages and other views are answered from the cache
+            MvcResult next = mvc.perform(get(uri).param("sort", "-hourlyPrice").param("limit", "2")
+                .param("cursor", page.get("nextCursor").asText())).andReturn();
+            assertFalse(isAsync(next));
+            JsonNode second = new ObjectMapper().readTree(next.getResponse().getContentAsString());
+            assertTrue(offerings.get(1).get("hourlyPrice").asDouble()
+                >= second.get("ec2offerings").get(0).get("hourlyPrice").asDouble());
+
+            // A cursor into offerings that have since been reloaded is stale
+            String key = OfferingQuery.create("us-east-1a", "linux", null, null).getKey();
+            assertNotNull(cache(app).get(key));
+            cache(app).put(key, OfferingResponse.create(new ObjectMapper(), Arrays.<Offering>asList(), false));
+            MvcResult stale = mvc.perform(get(uri).param("sort", "-hourlyPrice").param("limit", "2")
+                .param("cursor", page.get("nextCursor").asText())).andReturn();
+            assertEquals(400, stale.getResponse().getStatus());
+
+            MvcResult cheap = mvc.perform(get(uri).param("hourlyPrice", "..0.01")).andReturn();
+            assertFalse(isAsync(cheap));
+            for (JsonNode offering : new ObjectMapper().readTree(cheap.getResponse().getContentAsString()).get("ec2offerings"))
+                assertTrue(offering.get("hourlyPrice").asDouble() <= 0.01);
+            assertEquals(1, cache(app).size());
+
+            MvcResult bad = mvc.perform(get(uri).param("sort", "instanceType")).andReturn();
+            assertEquals(400, bad.getResponse().getStatus());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testCombinationFailsWithItsPart() throws Exception
+    {
+        App app = replayApp();
+        try {
+            // t1.micro fails; everything else is replayed as usual
+            final RegionalReservedOfferingSource replay =
+                (RegionalReservedOfferingSource) ReflectionTestUtils.getField(app, "reservedSource");
+            ReflectionTestUtils.setField(app, "reservedSource", new RegionalReservedOfferingSource(
+                java.util.Collections.<String, ReservedOfferingSource>singletonMap("us-east-1", new ReservedOfferingSource() {
+                    @Override
+                    public Page describe(String availabilityZone, String productDescription, String offeringType,
+                        String instanceType, String nextToken)
+                    {
+                        if ("t1.micro".equals(instanceType))
+                            throw new IllegalStateException("t1.micro is down");
+                        return replay.describe(availabilityZone, productDescription, offeringType, instanceType, nextToken);
+                    }
+                })));
+
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            MvcResult miss = mvc.perform(get("/awsec2offering/cost/us-east-1a/linux")
+                .param("instanceType", "m1.small,t1.micro")).andReturn();
+            assertTrue(isAsync(miss));
+            miss.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(miss));
+            assertEquals("no-store", miss.getResponse().getHeader("Cache-Control"));
+
+            // Only the part that loaded is cached, not an incomplete combination
+            assertEquals(1, cache(app).size());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testCombinationsShareInstanceTypeEntries() throws Exception
+    {
+        App app = replayApp();
+        try {
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            Cache cache = cache(app);
+            for (String instanceType : new String[] { "m1.small", "t1.micro" }) {
+                MvcResult miss = mvc.perform(get("/awsec2offering/cost/us-east-1a/linux")
+                    .param("instanceType", instanceType)).andReturn();
+                assertTrue(isAsync(miss));
+                miss.getAsyncResult(5000);
+            }
+            assertEquals(2, cache.size());
+
+            // A new combination of cached types is composed without fetching
+            ReflectionTestUtils.setField(app, "reservedSource", null);	// any fetch now fails
+            MvcResult composed = mvc.perform(get("/awsec2offering/cost/us-east-1a/linux")
+                .param("instanceType", "t1.micro,m1.small")).andReturn();
+            assertTrue(isAsync(composed));
+            composed.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(composed));
+            assertEquals(200, composed.getResponse().getStatus());
+            assertEquals(0, cache.getLoadFailureCount());
+            JsonNode rankings = new ObjectMapper().readTree(composed.getResponse().getContentAsString()).get("rankings");
+            assertEquals(6, rankings.size());	// each type's on-demand and reserved offerings
+            assertEquals(3, cache.size());
+
+            // The same types in another order are the same query
+            MvcResult permuted = mvc.perform(get("/awsec2offering/cost/us-east-1a/linux")
+                .param("instanceType", "m1.small,t1.micro,m1.small")).andReturn();
+            assertFalse(isAsync(permuted));
+            assertEquals(composed.getResponse().getContentAsString(), permuted.getResponse().getContentAsString());
+        } finally {
+            app.destroy();
+        }
+    }
+
+    public void testSavedHotKeysOfPrefetchedRegionsAreNotLoadedLive() throws Exception
+    {
+        File warmFile = File.createTempFile("hotkeys", ".txt");
+        try {
+            HotKeys.write(warmFile, Arrays.asList(App.createKey("us-east-1a", "Linux/UNIX", null, "m1.small")));
+            App app = replayApp("replayLatency", 300L,	// a slow first sweep
+                "prefetch", true, "warmFile", warmFile.getPath());
+            try {
+                // Saved hot keys are warmed, or not, before startup ends
+                assertEquals(0, cache(app).getWarmCount());
+                assertEquals(0, cache(app).getLoadCount());
+            } finally {
+                app.destroy();
+            }
+        } finally {
+            warmFile.delete();
+        }
+    }
+
+    public void testChangeFeed() throws Exception
+    {
+        App app = replayApp("prefetch", true);
+        try {
+            @SuppressWarnings("unchecked")
+            ReservedCatalog catalog = ((Map<String, ReservedCatalog>) ReflectionTestUtils.getField(app, "reservedCatalogs")).get("us-east-1");
+            final CountDownLatch fetched = new CountDownLatch(1);
+            catalog.addListener(new ReservedCatalog.Listener() {
+                @Override
+                public void changed(CatalogDelta delta)
+                {
+                    fetched.countDown();
+                }
+            });
+            if (catalog.getVersion() == 0)
+                assertTrue(fetched.await(5, TimeUnit.SECONDS));
+            long version = catalog.getVersion();
+            assertTrue(version != 0);
+
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(app).build();
+            MvcResult reset = mvc.perform(get("/awsec2offering/changes")).andReturn();
+            JsonNode feed = new ObjectMapper().readTree(reset.getResponse().getContentAsString());
+            assertTrue(feed.get("reset").asBoolean());
+            assertEquals(version, feed.get("version").asLong());
+
+            // An unchanged refresh keeps the version, and an up to date
+            // request waits for a change until it times out
+            catalog.refresh();
+            assertEquals(version, catalog.getVersion());
+            MvcResult poll = mvc.perform(get("/awsec2offering/changes").param("sinceVersion", Long.toString(version))).andReturn();
+            assertTrue(isAsync(poll));
+            AsyncContext context = (AsyncContext) ReflectionTestUtils.invokeMethod(poll.getRequest(), "getAsyncContext");
+            @SuppressWarnings("unchecked")
+            List<AsyncListener> listeners = (List<AsyncListener>) ReflectionTestUtils.invokeMethod(context, "getListeners");
+            for (AsyncListener listener : listeners)
+                listener.onTimeout(new AsyncEvent(context));	// as the container would
+            poll.getAsyncResult(5000);
+            mvc.perform(asyncDispatch(poll));
+            feed = new ObjectMapper().readTree(poll.getResponse().getContentAsString());
+            assertNull(feed.get("reset"));
+            assertEquals(version, feed.get("version").asLong());
+            assertEquals(0, feed.get("changes").size());
+
+            // Each region has its own feed
+            assertEquals(200, mvc.perform(get("/awsec2offering/changes").param("region", "eu-west-1"))
+                .andReturn().getResponse().getStatus());
+            assertEquals(404, mvc.perform(get("/awsec2offering/changes").param("region", "xx-nowhere-1"))
+                .andReturn().getResponse().getStatus());
+        } finally {
+            app.destroy();
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package com.kenlin.awsec2offering;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Unit test for BatchQuery.
+ */
+public class BatchQueryTest
+    extends TestCase
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static BatchQuery parse(String json) throws Exception
+    {
+        return BatchQuery.parse(mapper.readTree(json), 10);
+    }
+
+    public void testNormalizesAndSharesSubQueries() throws Exception
+    {
+        BatchQuery batch = parse("{\"queries\":["
+            + "{\"id\":\"a\",\"availabilityZone\":\"us-east-1a\",\"productDescription\":\"linux\",\"offeringType\":\"heavy\",\"instanceType\":\"t1.micro,m1.small\"}"
+            + ",{\"id\":\"b\",\"availabilityZone\":\"us-east-1a\",\"productDescription\":\"Linux/UNIX\",\"offeringType\":\"Heavy Utilization\",\"instanceType\":\"m1.small, m1.medium\"}"
+            + ",{\"availabilityZone\":\"us-east-1b\"}"
+            + "]}");
+
+        List<BatchQuery.Query> queries = batch.getQueries();
+        assertEquals(3, queries.size());
+        assertEquals("a", queries.get(0).getId());
+        assertEquals("2", queries.get(2).getId());
+
+        // Each query's instance types are sorted
+        OfferingQuery small = queries.get(0).getSubQueries().get(0);
+        assertEquals("Linux/UNIX", small.getProductDescription());
+        assertEquals("Heavy Utilization", small.getOfferingType());
+        assertEquals("m1.small", small.getInstanceType());
+        assertSame(small, queries.get(1).getSubQueries().get(1));
+        assertEquals(App.createKey("us-east-1a", "Linux/UNIX", "Heavy Utilization", "m1.small"), small.getKey());
+
+        OfferingQuery wildcard = queries.get(2).getSubQueries().get(0);
+        assertEquals(App.PRODUCTDESCRIPTION_DEFAULT, wildcard.getProductDescription());
+        assertNull(wildcard.getOfferingType());
+        assertNull(wildcard.getInstanceType());
+
+        assertEquals(4, batch.getSubQueries().size());	// t1.micro, m1.small, m1.medium, wildcard
+    }
+
+    public void testInvalidQueryKeepsItsId() throws Exception
+    {
+        BatchQuery batch = parse("{\"queries\":[{\"id\":\"bad\",\"offeringType\":\"bogus\"},{\"id\":\"good\"}]}");
+
+        assertNotNull(batch.getQueries().get(0).getError());
+        assertTrue(batch.getQueries().get(0).getSubQueries().isEmpty());
+        assertNull(batch.getQueries().get(1).getError());
+        assertEquals(1, batch.getSubQueries().size());
+    }
+
+    public void testRejectsMalformedBatches() throws Exception
+    {
+        String[] malformed = {
+            "[]",
+            "{\"queries\":{}}",
+            "{\"queries\":[1]}",
+            "{\"queries\":[{\"id\":\"a\"},{\"id\":\"a\"}]}",
+            "{\"queries\":[{},{},{},{},{},{},{},{},{},{},{}]}",
+        };
+        for (String json : malformed) {
+            try {
+                parse(json);
+                fail("expected rejection of " + json);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Unit test for Cache.
+ */
+public class CacheTest
+    extends TestCase
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static OfferingResponse response(String... instanceTypes) throws Exception
+    {
+        List<Offering> offerings = new ArrayList<Offering>();
+        for (String instanceType : instanceTypes) {
+            Offering offering = new Offering();
+            offering.instanceType = instanceType;
+            offerings.add(offering);
+        }
+        return OfferingResponse.create(mapper, offerings, false);
+    }
+
+    public void testConcurrentMissesShareOneLoad() throws Exception
+    {
+        final Cache cache = new Cache(60000, 5000);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Cache.Loader loader = new Cache.Loader() {
+            @Override
+            public OfferingResponse load() throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return response("loaded");
+            }
+        };
+
+        final int callers = 8;
+        final List<OfferingResponse> results = new ArrayList<OfferingResponse>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < callers; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        OfferingResponse offerings = cache.get("key", loader);
+                        synchronized (results) {
+                            results.add(offerings);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        while (cache.getLoadCount() + cache.getCoalescedCount() < callers)
+            Thread.sleep(10);
+        release.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(callers - 1, cache.getCoalescedCount());
+        assertEquals(callers, results.size());
+        for (OfferingResponse offerings : results)
+            assertSame(results.get(0), offerings);
+        assertSame(results.get(0), cache.get("key"));
+    }
+
+    public void testWaiterFallsBackToTooStaleEntry() throws Exception
+    {
+        final Cache cache = new Cache(50, 0, 50, 100, 1000);
+        final OfferingResponse old = response("old");
+        cache.put("key", old);
+        Thread.sleep(100);	// expire
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("key", new Cache.Loader() {
+                        @Override
+                        public OfferingResponse load() throws Exception {
+                            started.countDown();
+                            release.await();
+                            return response("new");
+                        }
+                    });
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        leader.start();
+        started.await();
+
+        assertSame(old, cache.get("key", null));
+        assertEquals(1, cache.getTimeoutCount());
+        assertEquals(1, cache.getFallbackCount());
+
+        release.countDown();
+        leader.join();
+    }
+
+    public void testExpiredEntryIsServedWhileRefreshed() throws Exception
+    {
+        final Cache cache = new Cache(50, 60000, 5000, 100, 1000);
+        final OfferingResponse old = response("old");
+        final OfferingResponse fresh = response("fresh");
+        cache.put("key", old);
+        Thread.sleep(100);	// expire
+
+        final CountDownLatch release = new CountDownLatch(1);
+        Cache.Loader loader = new Cache.Loader() {
+            @Override
+            public OfferingResponse load() throws Exception {
+                release.await();
+                return fresh;
+            }
+        };
+        assertSame(old, cache.get("key", loader));
+        assertSame(old, cache.get("key", loader));
+        assertEquals(2, cache.getStaleHitCount());
+        assertEquals(1, cache.getRefreshCount());
+        assertEquals(0, cache.getMissCount());
+
+        release.countDown();
+        while (cache.get("key") != fresh)
+            Thread.sleep(10);
+        assertSame(fresh, cache.get("key", loader));
+        assertEquals(1, cache.getHitCount());
+        cache.shutdown();
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception
+    {
+        Cache cache = new Cache(60000, 60000, 5000, 2, 1000);
+        cache.put("a", response());
+        cache.put("b", response());
+        Thread.sleep(1);
+        cache.get("a", null);	// a is now more recently used than b
+        cache.put("c", response());
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getEvictionCount());
+
+        Cache weighed = new Cache(60000, 60000, 5000, 100, 5);
+        weighed.put("a", response("1", "2"));	// weight 3
+        weighed.put("b", response("1", "2"));	// weight 3
+        assertEquals(1, weighed.size());
+        assertEquals(3, weighed.getWeight());
+        assertNotNull(weighed.get("b"));
+    }
+
+    public void testInvalidatedEntriesAreLoadedAgain() throws Exception
+    {
+        Cache cache = new Cache(60000, 5000);
+        cache.put("a", response("m1.small"));
+        cache.invalidate();
+        assertNull(cache.getIfPresent("a", null));
+        final OfferingResponse reloaded = response("t1.micro");
+        assertSame(reloaded, cache.get("a", new Cache.Loader() {
+            @Override
+            public OfferingResponse load() {
+                return reloaded;
+            }
+        }));
+        assertSame(reloaded, cache.getIfPresent("a", null));
+
+        // Until then, an invalidated entry is still fallen back to
+        cache.invalidate();
+        assertSame(reloaded, cache.get("a", new Cache.Loader() {
+            @Override
+            public OfferingResponse load() throws Exception {
+                throw new Exception("EC2 is down");
+            }
+        }));
+        assertEquals(1, cache.getFallbackCount());
+        cache.shutdown();
+    }
+
+    public void testHitsRaceEvictionsWithinBounds() throws Exception
+    {
+        final Cache cache = new Cache(60000, 60000, 5000, 50, Long.MAX_VALUE);
+        final OfferingResponse response = response("m1.small");
+        final AtomicInteger loads = new AtomicInteger();
+        final Cache.Loader loader = new Cache.Loader() {
+            @Override
+            public OfferingResponse load()
+            {
+                loads.incrementAndGet();	// a hot key that was evicted after all
+                return response;
+            }
+        };
+        for (int i = 0; i < 10; i++)
+            cache.put("hot" + i, response);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                        for (int i = 0; written.getCount() > 0 || i < 10000; i++) {
+                            if (cache.get("hot" + (i % 10), loader) != response)
+                                failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            @Override
+            public void run()
+            {
+                try {
+                    start.await();
+                    for (int i = 0; i < 1000; i++)
+                        cache.put("cold" + i, response);
+                } catch (InterruptedException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    written.countDown();
+                }
+            }
+        });
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(30000);
+
+        assertEquals(0, failures.get());
+        assertEquals(50, cache.size());
+        assertEquals(50L * 2, cache.getWeight());
+        assertEquals(10 + 1000 + loads.get() - 50, cache.getEvictionCount());
+        cache.shutdown();
+    }
+
+    public void testWaiterWithoutFallbackTimesOut() throws Exception
+    {
+        final Cache cache = new Cache(60000, 50);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("key", new Cache.Loader() {
+                        @Override
+                        public OfferingResponse load() throws Exception {
+                            started.countDown();
+                            release.await();
+                            return response();
+                        }
+                    });
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        leader.start();
+        started.await();
+
+        try {
+            cache.get("key", null);
+            fail("expected a timeout");
+        } catch (TimeoutException e) {
+            assertEquals(1, cache.getTimeoutCount());
+        }
+
+        release.countDown();
+        leader.join();
+    }
+
+    public void testAsyncMissesShareOneLoad() throws Exception
+    {
+        Cache cache = new Cache(60000, 5000);
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        final List<OfferingResponse> results = new ArrayList<OfferingResponse>();
+        Cache.Callback callback = new Cache.Callback() {
+            @Override
+            public void loaded(OfferingResponse offerings) {
+                results.add(offerings);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                fail(e.toString());
+            }
+        };
+        Cache.Loader loader = new Cache.Loader() {
+            @Override
+            public OfferingResponse load() throws Exception {
+                return response("loaded");
+            }
+        };
+
+        assertNull(cache.getIfPresent("key", loader));
+        cache.load("key", loader, executor, callback);
+        cache.load("key", loader, executor, callback);
+        assertEquals(1, queued.size());
+        assertEquals(1, cache.getCoalescedCount());
+        assertTrue(results.isEmpty());
+
+        queued.get(0).run();
+        assertEquals(2, results.size());
+        assertSame(results.get(0), results.get(1));
+        assertSame(results.get(0), cache.getIfPresent("key", loader));
+
+        cache.load("key", loader, executor, callback);	// already loaded
+        assertEquals(1, queued.size());
+        assertEquals(3, results.size());
+    }
+
+    public void testWarmLoadsOnlyExpiringKeys() throws Exception
+    {
+        Cache cache = new Cache(60000, 5000);
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        Cache.Loader loader = new Cache.Loader() {
+            @Override
+            public OfferingResponse load() throws Exception {
+                return response("warmed");
+            }
+        };
+
+        assertTrue(cache.warm("missing", loader, 1000, executor));
+        assertFalse(cache.warm("missing", loader, 1000, executor));	// already loading
+        queued.get(0).run();
+        assertNotNull(cache.get("missing"));
+
+        cache.put("fresh", response("fresh"));
+        assertFalse(cache.warm("fresh", loader, 1000, executor));
+        cache.put("expiring", response("expiring"), System.currentTimeMillis() - 59500);
+        assertTrue(cache.warm("expiring", loader, 1000, executor));
+        assertEquals(2, queued.size());
+        assertEquals(2, cache.getWarmCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    public void testSharedTierTakesAnotherNodesLoad() throws Exception
+    {
+        File dir = Files.createTempDirectory("shared").toFile();
+        try {
+            SharedTier tierA = new SharedTier(new FileSharedCache(dir, "a", 60000), 1000);
+            SharedTier tierB = new SharedTier(new FileSharedCache(dir, "b", 60000), 1000);
+            Cache a = new Cache(60000, 5000);
+            Cache b = new Cache(60000, 5000);
+            a.setShared(tierA, mapper, false);
+            b.setShared(tierB, mapper, false);
+
+            final AtomicInteger loads = new AtomicInteger();
+            Cache.Loader loader = new Cache.Loader() {
+                @Override
+                public OfferingResponse load() throws Exception {
+                    loads.incrementAndGet();
+                    return response("m1.small");
+                }
+            };
+            OfferingResponse loaded = a.get("k", loader);
+            assertEquals(1, tierA.getLeaseCount());
+
+            // The other node takes the shared copy instead of loading it
+            OfferingResponse shared = b.get("k", loader);
+            assertEquals(1, loads.get());
+            assertEquals(1, tierB.getHitCount());
+            assertEquals(loaded.getETag(), shared.getETag());
+
+            // A key leased by another node is loaded anyway once the wait times out
+            assertTrue(new FileSharedCache(dir, "c", 60000).tryLease("j"));
+            b.get("j", loader);
+            assertEquals(2, loads.get());
+            assertEquals(1, tierB.getTimeoutCount());
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+}
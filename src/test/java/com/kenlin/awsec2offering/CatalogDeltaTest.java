@@ -0,0 +1,50 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.priced;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for CatalogDelta.
+ */
+public class CatalogDeltaTest
+    extends TestCase
+{
+    public void testAddedRemovedAndRepriced()
+    {
+        List<Offering> before = new ArrayList<Offering>();
+        before.add(priced("t1.micro", Offering.SECONDS_IN_YEAR, 100f, 0.01));
+        before.add(priced("m1.small", Offering.SECONDS_IN_YEAR, 169f, 0.01));
+        before.add(priced("m1.medium", Offering.SECONDS_IN_YEAR, 338f, 0.01));
+        List<Offering> after = new ArrayList<Offering>();
+        after.add(priced("m1.medium", Offering.SECONDS_IN_YEAR, 338f, 0.01));
+        after.add(priced("m1.small", Offering.SECONDS_IN_YEAR, 150f, 0.01));
+        after.add(priced("m1.large", Offering.SECONDS_IN_YEAR, 676f, 0.01));
+
+        CatalogDelta delta = CatalogDelta.compute(OfferingTable.create(before), 1, OfferingTable.create(after), 2);
+        assertEquals(1, delta.getPreviousVersion());
+        assertEquals(2, delta.getVersion());
+        assertEquals(3, delta.size());
+        assertEquals("m1.large", delta.getAdded().getInstanceType(0));
+        assertEquals("t1.micro", delta.getRemoved().getInstanceType(0));
+        assertEquals("m1.small", delta.getRepriced().getInstanceType(0));
+        assertEquals(150f, delta.getRepriced().getFixedPrice(0));
+    }
+
+    public void testReorderedIsUnchanged()
+    {
+        List<Offering> before = new ArrayList<Offering>();
+        before.add(priced("t1.micro", Offering.SECONDS_IN_YEAR, 100f, 0.01));
+        before.add(priced("t1.micro", Offering.SECONDS_IN_YEAR, 90f, 0.01));	// same key, e.g. another tenancy
+        before.add(priced("m1.small", Offering.SECONDS_IN_YEAR, 169f, 0.01));
+        List<Offering> after = new ArrayList<Offering>();
+        after.add(priced("m1.small", Offering.SECONDS_IN_YEAR, 169f, 0.01));
+        after.add(priced("t1.micro", Offering.SECONDS_IN_YEAR, 90f, 0.01));
+        after.add(priced("t1.micro", Offering.SECONDS_IN_YEAR, 100f, 0.01));
+
+        assertTrue(CatalogDelta.compute(OfferingTable.create(before), 1, OfferingTable.create(after), 2).isEmpty());
+    }
+}
@@ -0,0 +1,59 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.priced;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for CostCurves.
+ */
+public class CostCurvesTest
+    extends TestCase
+{
+    private static CostCurves curves()
+    {
+        List<Offering> offerings = new ArrayList<Offering>();
+        offerings.add(priced("On-Demand", "m1.small", 0L, 0f, 0.06));                                    // 43.8 a month
+        offerings.add(priced("Heavy Utilization", "m1.small", Offering.SECONDS_IN_YEAR, 169f, 0.014));   // 10.22 a month, always
+        offerings.add(priced("Light Utilization", "m1.small", Offering.SECONDS_IN_3_YEARS, 96f, 0.034)); // 24.82 a month, if used
+        return new CostCurves(OfferingTable.create(offerings));
+    }
+
+    public void testCosts()
+    {
+        CostCurves curves = curves();
+        assertEquals(0.0, curves.getCost(0, 0, 1), 0.01);
+        assertEquals(12 * 43.8, curves.getCost(0, 12, 1), 0.01);
+        assertEquals(6 * 43.8, curves.getCost(0, 12, 0.5), 0.01);
+
+        // Heavy is billed whether used or not, and renews each year
+        assertEquals(169 + 12 * 10.22, curves.getCost(1, 12, 0), 0.01);
+        assertEquals(2 * 169 + 13 * 10.22, curves.getCost(1, 13, 1), 0.01);
+
+        assertEquals(96 + 0.5 * 36 * 24.82, curves.getCost(2, 36, 0.5), 0.01);
+    }
+
+    public void testRankAndBreakEven()
+    {
+        CostCurves curves = curves();
+
+        int[] rows = curves.rank(1, 1, 10);
+        assertEquals(3, rows.length);
+        assertEquals(0, rows[0]);	// on-demand is cheapest for a month
+        assertEquals(2, rows[1]);
+        assertEquals(1, rows[2]);
+
+        rows = curves.rank(12, 1, 2);
+        assertEquals(2, rows.length);
+        assertEquals(1, rows[0]);	// 291.64 beats light's 393.84 and on-demand's 525.6
+        assertEquals(2, rows[1]);
+
+        assertEquals(CostCurves.NONE, curves.getBreakEvenMonth(0, 1));
+        assertEquals(6, curves.getBreakEvenMonth(1, 1));	// 169 + 61.32 <= 262.8
+        assertEquals(6, curves.getBreakEvenMonth(2, 1));	// 96 + 148.92 <= 262.8
+        assertEquals(CostCurves.NONE, curves.getBreakEvenMonth(1, 0));
+    }
+}
@@ -0,0 +1,78 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.table;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for FileSharedCache.
+ */
+public class FileSharedCacheTest
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("shared").toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        SharedCache a = new FileSharedCache(dir, "a", 60000);
+        SharedCache b = new FileSharedCache(dir, "b", 60000);
+        String key = App.createKey("us-east-1a", "Linux/UNIX", null, "m1.small");
+        assertNull(b.get(key, 0L));
+
+        a.put(key, table("m1.small"), 1234L);
+        Snapshot.Section section = b.get(key, 0L);
+        assertEquals(key, section.getName());
+        assertEquals(1234L, section.getLoaded());
+        assertEquals(table("m1.small").asList().toString(), section.getTable().asList().toString());
+        assertNull(b.get(App.createKey("us-east-1a", "Linux/UNIX", null, "t1.micro"), 0L));
+    }
+
+    public void testOnlyNewerOfferingsAreRead() throws Exception
+    {
+        SharedCache a = new FileSharedCache(dir, "a", 60000);
+        SharedCache b = new FileSharedCache(dir, "b", 60000);
+        String key = App.createKey("us-east-1a", "Linux/UNIX", null, "m1.small");
+        a.put(key, table("m1.small"), 1234L);
+        assertNull(b.get(key, 1234L));
+        assertNull(b.get(key, 5678L));
+        assertEquals(1234L, b.get(key, 1233L).getLoaded());
+
+        a.put(key, table("m1.small"), 5678L);
+        assertEquals(5678L, b.get(key, 1234L).getLoaded());
+    }
+
+    public void testOneNodeHoldsALease() throws Exception
+    {
+        SharedCache a = new FileSharedCache(dir, "a", 60000);
+        SharedCache b = new FileSharedCache(dir, "b", 60000);
+        assertTrue(a.tryLease("k"));
+        assertFalse(b.tryLease("k"));
+        assertTrue(a.tryLease("k"));	// renewed by its holder
+        b.release("k");					// not b's to release
+        assertFalse(b.tryLease("k"));
+        a.release("k");
+        assertTrue(b.tryLease("k"));
+
+        // An expired lease is taken over
+        SharedCache brief = new FileSharedCache(dir, "brief", 0);
+        assertTrue(brief.tryLease("j"));
+        assertTrue(a.tryLease("j"));
+    }
+}
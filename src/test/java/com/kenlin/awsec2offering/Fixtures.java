@@ -0,0 +1,78 @@
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offerings and tables for the unit tests.  Unless a test says otherwise, an
+ * offering is a one year Heavy Utilization Linux/UNIX offering in us-east-1a,
+ * priced in USD.
+ */
+public final class Fixtures
+{
+    private Fixtures()
+    {
+    }
+
+    /**
+     * @return A priced offering of instanceType.
+     */
+    public static Offering offering(String instanceType)
+    {
+        return priced(instanceType, Offering.SECONDS_IN_YEAR, 169.1f, 0.014);
+    }
+
+    /**
+     * @return An unpriced offering with the given key.
+     */
+    public static Offering offering(String zone, String product, String offeringType, String instanceType)
+    {
+        Offering offering = new Offering();
+        offering.availabilityZone = zone;
+        offering.productDescription = product;
+        offering.offeringType = offeringType;
+        offering.instanceType = instanceType;
+        return offering;
+    }
+
+    /**
+     * @return A Heavy Utilization offering of instanceType at the given,
+     *         possibly null, duration and prices.
+     */
+    public static Offering priced(String instanceType, Long duration, Float fixedPrice, Double hourlyPrice)
+    {
+        return priced("Heavy Utilization", instanceType, duration, fixedPrice, hourlyPrice);
+    }
+
+    /**
+     * @return An offering of offeringType and instanceType at the given,
+     *         possibly null, duration and prices.
+     */
+    public static Offering priced(String offeringType, String instanceType, Long duration, Float fixedPrice,
+        Double hourlyPrice)
+    {
+        Offering offering = new Offering();
+        offering.availabilityZone = "us-east-1a";
+        offering.productDescription = "Linux/UNIX";
+        offering.offeringType = offeringType;
+        offering.instanceType = instanceType;
+        offering.currencyCode = "USD";
+        offering.duration = duration;
+        offering.fixedPrice = fixedPrice;
+        offering.hourlyPrice = hourlyPrice;
+        return offering;
+    }
+
+    /**
+     * @return A table of an offering of each of instanceTypes, and then one
+     *         with every field null, so that nulls are covered too.
+     */
+    public static OfferingTable table(String... instanceTypes)
+    {
+        List<Offering> offerings = new ArrayList<Offering>();
+        for (String instanceType : instanceTypes)
+            offerings.add(offering(instanceType));
+        offerings.add(new Offering());
+        return OfferingTable.create(offerings);
+    }
+}
@@ -0,0 +1,112 @@
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Unit test for GuardedReservedOfferingSource.
+ */
+public class GuardedReservedOfferingSourceTest
+    extends TestCase
+{
+    /**
+     * A source that is throttled for its first failures calls.
+     */
+    private static class ThrottledSource implements ReservedOfferingSource
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final int failures;
+
+        ThrottledSource(int failures)
+        {
+            this.failures = failures;
+        }
+
+        @Override
+        public Page describe(String availabilityZone, String productDescription, String offeringType, String instanceType,
+                String nextToken)
+        {
+            if (calls.incrementAndGet() <= failures) {
+                AmazonServiceException e = new AmazonServiceException("Request limit exceeded.");
+                e.setErrorCode("RequestLimitExceeded");
+                e.setStatusCode(503);
+                throw e;
+            }
+            return new Page(new ArrayList<Offering>(), null);
+        }
+    }
+
+    public void testRetriesThrottledCallsAndSlowsDown()
+    {
+        ThrottledSource source = new ThrottledSource(2);
+        TokenBucket limiter = new TokenBucket(1000, 10);
+        GuardedReservedOfferingSource guarded = new GuardedReservedOfferingSource(source,
+            limiter, new CircuitBreaker(5, 60000), 3, 1, 5);
+
+        assertNotNull(guarded.describe(null, null, null, null, null));
+        assertEquals(3, source.calls.get());
+        assertEquals(2, guarded.getThrottleCount());
+        assertEquals(2, guarded.getRetryCount());
+        assertTrue(limiter.getRate() < 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, guarded.getBreaker().getState());
+    }
+
+    public void testBreakerOpensAfterRepeatedFailures()
+    {
+        ThrottledSource source = new ThrottledSource(Integer.MAX_VALUE);
+        GuardedReservedOfferingSource guarded = new GuardedReservedOfferingSource(source,
+            new TokenBucket(1000, 10), new CircuitBreaker(2, 60000), 1, 1, 5);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                guarded.describe(null, null, null, null, null);
+                fail("expected throttling");
+            } catch (AmazonServiceException e) {
+                assertEquals("RequestLimitExceeded", e.getErrorCode());
+            }
+        }
+        assertEquals(4, source.calls.get());	// each tried twice
+        assertEquals(CircuitBreaker.State.OPEN, guarded.getBreaker().getState());
+
+        try {
+            guarded.describe(null, null, null, null, null);
+            fail("expected the breaker to refuse");
+        } catch (AmazonClientException e) {
+            assertFalse(e instanceof AmazonServiceException);
+        }
+        assertEquals(4, source.calls.get());
+        assertEquals(1, guarded.getBreaker().getRejectionCount());
+    }
+
+    public void testBreakerClosesAfterSuccessfulTrial() throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10);
+        assertTrue(breaker.allow());
+        breaker.failure();
+        assertFalse(breaker.allow());
+
+        Thread.sleep(20);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allow());
+        assertFalse(breaker.allow());	// just one trial at a time
+        breaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+    }
+
+    public void testBackoffIsJitteredAndCapped()
+    {
+        GuardedReservedOfferingSource guarded = new GuardedReservedOfferingSource(new ThrottledSource(0),
+            new TokenBucket(1, 1), new CircuitBreaker(1, 1), 3, 100, 1000);
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long backoff = guarded.getBackoff(attempt);
+            assertTrue(backoff >= 0);
+            assertTrue(backoff <= Math.min(1000, 100L << Math.min(attempt, 30)));
+        }
+    }
+}
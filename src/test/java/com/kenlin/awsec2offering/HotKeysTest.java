@@ -0,0 +1,96 @@
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for HotKeys.
+ */
+public class HotKeysTest
+    extends TestCase
+{
+    public void testHeavyHittersSurviveChurn()
+    {
+        HotKeys hotKeys = new HotKeys(8);
+        for (int i = 0; i < 1000; i++) {
+            hotKeys.record("hot");
+            if (i % 2 == 0)
+                hotKeys.record("warm");
+            hotKeys.record("cold" + i);	// never seen again
+        }
+
+        assertEquals(8, hotKeys.size());
+        assertEquals(Arrays.asList("hot", "warm"), hotKeys.top(2));
+        assertTrue(hotKeys.getCount("hot") >= 1000);	// never under-counted
+        assertEquals(2500, hotKeys.getRecordCount());
+    }
+
+    public void testDecayForgetsOldKeys()
+    {
+        HotKeys hotKeys = new HotKeys(10);
+        hotKeys.record("once");
+        for (int i = 0; i < 8; i++)
+            hotKeys.record("often");
+
+        hotKeys.decay();
+        assertEquals(0, hotKeys.getCount("once"));
+        assertEquals(4, hotKeys.getCount("often"));
+        assertEquals(Arrays.asList("often"), hotKeys.top(10));
+    }
+
+    public void testStripedCountsAreNeverLow()
+    {
+        HotKeys hotKeys = new HotKeys(4096);	// striped
+        Map<String, Integer> actual = new HashMap<String, Integer>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // A few hot keys, and a long tail of cold ones
+            String key = (random.nextInt(4) == 0) ? "hot" + random.nextInt(10) : "cold" + random.nextInt(20000);
+            hotKeys.record(key);
+            Integer count = actual.get(key);
+            actual.put(key, count != null ? count + 1 : 1);
+        }
+
+        assertEquals(4096, hotKeys.size());
+        assertEquals(100000, hotKeys.getRecordCount());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(hotKeys.top(10).contains("hot" + i));
+            assertTrue(hotKeys.getCount("hot" + i) >= actual.get("hot" + i));
+        }
+    }
+
+    public void testDecayMergesCounts()
+    {
+        HotKeys hotKeys = new HotKeys(10);
+        for (int i = 0; i < 4; i++)
+            hotKeys.record("four");
+        for (int i = 0; i < 5; i++)
+            hotKeys.record("five");
+
+        hotKeys.decay();	// both 2
+        hotKeys.record("four");
+        assertEquals(3, hotKeys.getCount("four"));
+        assertEquals(2, hotKeys.getCount("five"));
+        assertEquals(Arrays.asList("four", "five"), hotKeys.top(10));
+    }
+
+    public void testWriteAndRead() throws Exception
+    {
+        File file = File.createTempFile("hotkeys", ".txt");
+        try {
+            String key = App.createKey("us-east-1a", "Linux/UNIX", null, "m1.small");
+            HotKeys.write(file, Arrays.asList(key, "multi\nline"));
+            List<String> keys = HotKeys.read(file);
+            assertEquals(Arrays.asList(key), keys);
+        } finally {
+            file.delete();
+        }
+        assertTrue(HotKeys.read(file).isEmpty());
+    }
+}
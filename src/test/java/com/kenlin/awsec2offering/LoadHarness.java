@@ -0,0 +1,133 @@
+package com.kenlin.awsec2offering;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the /awsec2offering/api/... endpoints of a running service from
+ * many threads and reports throughput and latency percentiles.  Not a unit
+ * test; run it against a service configured with the replay source
+ * (awsec2offering.ec2.source=replay) to size it without touching AWS:
+ *
+ *   java -cp target/test-classes:target/classes com.kenlin.awsec2offering.LoadHarness \
+ *       http://localhost:8080/awsec2offering [threads] [seconds] [path ...]
+ */
+public class LoadHarness
+{
+    private static final String[] ZONES = { "us-east-1a", "us-east-1b", "us-west-1a", "us-west-2a", "eu-west-1a" };
+    private static final String[] PRODUCTS = { "linux", "windows", "linuxvpc" };
+    private static final String[] OFFERING_TYPES = { "heavy", "medium", "light" };
+    private static final String[] INSTANCE_TYPES = { "t1.micro", "m1.small", "m1.medium", "m1.large", "t1.micro,m1.small" };
+
+    private static class Worker extends Thread
+    {
+        private final String[] urls;
+        private final long end;
+        private final AtomicLong errors;
+        private long[] latencies = new long[1024];   // nanos
+        private int count = 0;
+        private int next;
+
+        Worker(String[] urls, int first, long end, AtomicLong errors)
+        {
+            this.urls = urls;
+            this.next = first;
+            this.end = end;
+            this.errors = errors;
+        }
+
+        @Override
+        public void run()
+        {
+            byte[] buffer = new byte[8192];
+            while (System.nanoTime() - end < 0) {
+                long start = System.nanoTime();
+                try {
+                    HttpURLConnection conn = (HttpURLConnection) new URL(urls[next++ % urls.length]).openConnection();
+                    conn.setRequestProperty("Accept-Encoding", "gzip");
+                    int status = conn.getResponseCode();
+                    InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+                    if (in != null) {
+                        while (in.read(buffer) >= 0)
+                            ;
+                        in.close();
+                    }
+                    if (status >= 400)
+                        errors.incrementAndGet();
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+                if (count == latencies.length)
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                latencies[count++] = System.nanoTime() - start;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1) {
+            System.err.println("usage: LoadHarness <baseUrl> [threads] [seconds] [path ...]");
+            System.exit(1);
+        }
+        String base = args[0].replaceAll("/+$", "");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        List<String> urls = new ArrayList<String>();
+        if (args.length > 3) {
+            for (int i = 3; i < args.length; i++)
+                urls.add(base + args[i]);
+        } else {
+            for (String zone : ZONES)
+                for (String product : PRODUCTS)
+                    for (String offeringType : OFFERING_TYPES)
+                        for (String instanceType : INSTANCE_TYPES)
+                            urls.add(base + "/awsec2offering/api/" + zone + "/" + product + "/" + offeringType + "/" + instanceType);
+        }
+
+        AtomicLong errors = new AtomicLong();
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(urls.toArray(new String[urls.size()]), i * 7, end, errors);
+            workers[i].start();
+        }
+        int total = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            total += worker.count;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] latencies = new long[total];
+        int n = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, n, worker.count);
+            n += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("requests: %d in %.1fs (%d errors), %d threads, %d distinct URLs%n",
+            total, elapsed, errors.get(), threads, urls.size());
+        System.out.printf("throughput: %.1f req/s%n", total / elapsed);
+        System.out.printf("latency ms: p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+            percentile(latencies, 0.50), percentile(latencies, 0.99),
+            percentile(latencies, 0.999), percentile(latencies, 1.0));
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0)
+            return 0;
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+}
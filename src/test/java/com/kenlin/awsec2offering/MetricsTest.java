@@ -0,0 +1,99 @@
+package com.kenlin.awsec2offering;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Metrics.
+ */
+public class MetricsTest
+    extends TestCase
+{
+    public void testBuckets()
+    {
+        assertEquals(0, Metrics.Histogram.bucket(0));
+        assertEquals(0, Metrics.Histogram.bucket(1));
+        assertEquals(1, Metrics.Histogram.bucket(2));
+        assertEquals(2, Metrics.Histogram.bucket(3));
+        assertEquals(2, Metrics.Histogram.bucket(4));
+        assertEquals(3, Metrics.Histogram.bucket(5));
+        assertEquals(63, Metrics.Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    public void testExposition()
+    {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("test_requests_total", "Requests.");
+        Metrics.Gauge gauge = metrics.gauge("test_in_flight", "In flight.");
+        Metrics.Histogram histogram = metrics.histogram("test_bytes", "Bytes.", 1);
+        metrics.gauge("test_callback", "Callback.", new Metrics.Value() {
+            @Override
+            public long get()
+            {
+                return 42;
+            }
+        });
+
+        counter.add(3);
+        gauge.increment();
+        gauge.increment();
+        gauge.decrement();
+        histogram.observe(1);
+        histogram.observe(3);
+        histogram.observe(1000);
+        histogram.observe(Long.MAX_VALUE / 2);	// beyond the last bucket
+
+        String text = metrics.write();
+        assertTrue(text, text.contains("# TYPE test_requests_total counter\ntest_requests_total 3\n"));
+        assertTrue(text, text.contains("# TYPE test_in_flight gauge\ntest_in_flight 1\n"));
+        assertTrue(text, text.contains("test_callback 42\n"));
+        assertTrue(text, text.contains("# TYPE test_bytes histogram\n"));
+        assertTrue(text, text.contains("test_bytes_bucket{le=\"1\"} 1\n"));
+        assertTrue(text, text.contains("test_bytes_bucket{le=\"2\"} 1\n"));
+        assertTrue(text, text.contains("test_bytes_bucket{le=\"4\"} 2\n"));
+        assertTrue(text, text.contains("test_bytes_bucket{le=\"1024\"} 3\n"));
+        assertTrue(text, text.contains("test_bytes_bucket{le=\"+Inf\"} 4\n"));
+        assertTrue(text, text.contains("test_bytes_count 4\n"));
+        assertEquals(4, histogram.getCount());
+
+        try {
+            metrics.counter("test_requests_total", "Again.");
+            fail("duplicate accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testLabeledFamilies()
+    {
+        Metrics metrics = new Metrics();
+        metrics.labeled("region", "us-east-1").counter("test_requests_total", "Requests.").add(2);
+        metrics.labeled("region", "eu-west-1").counter("test_requests_total", "Requests.").add(3);
+        metrics.labeled("region", "eu-west-1").histogram("test_bytes", "Bytes.", 1).observe(1);
+
+        String text = metrics.write();
+        assertEquals(text, text.indexOf("# TYPE test_requests_total"), text.lastIndexOf("# TYPE test_requests_total"));
+        assertTrue(text, text.contains("test_requests_total{region=\"us-east-1\"} 2\n"));
+        assertTrue(text, text.contains("test_requests_total{region=\"eu-west-1\"} 3\n"));
+        assertTrue(text, text.contains("test_bytes_bucket{region=\"eu-west-1\",le=\"1\"} 1\n"));
+        assertTrue(text, text.contains("test_bytes_count{region=\"eu-west-1\"} 1\n"));
+
+        try {
+            metrics.labeled("region", "us-east-1").counter("test_requests_total", "Again.");
+            fail("duplicate accepted");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            metrics.labeled("region", "ap-southeast-1").gauge("test_requests_total", "Requests.");
+            fail("another type accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testScale()
+    {
+        Metrics metrics = new Metrics();
+        metrics.histogram("test_seconds", "Latency.", 1e-9).observe(1500000);	// 1.5ms
+        String text = metrics.write();
+        assertTrue(text, text.contains("test_seconds_bucket{le=\"0.002097152\"} 1\n"));
+        assertTrue(text, text.contains("test_seconds_sum 0.0015\n"));
+    }
+}
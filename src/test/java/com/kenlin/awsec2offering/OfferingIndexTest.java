@@ -0,0 +1,50 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.offering;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for OfferingIndex.
+ */
+public class OfferingIndexTest
+    extends TestCase
+{
+    public void testWildcardsScan()
+    {
+        List<Offering> offerings = new ArrayList<Offering>();
+        offerings.add(offering("us-east-1a", "Linux/UNIX", "Heavy Utilization", "t1.micro"));
+        offerings.add(offering("us-east-1a", "Linux/UNIX", "Heavy Utilization", "m1.small"));
+        offerings.add(offering("us-east-1a", "Linux/UNIX", "Light Utilization", "m1.small"));
+        offerings.add(offering("us-east-1a", "Windows", "Heavy Utilization", "m1.small"));
+        offerings.add(offering("us-east-1b", "Linux/UNIX", "Heavy Utilization", "m1.small"));
+        OfferingIndex index = new OfferingIndex(offerings);
+
+        assertEquals(5, index.size());
+        assertEquals(5, index.find(null, null, null, null).size());
+        assertEquals(4, index.find("us-east-1a", null, null, null).size());
+        assertEquals(3, index.find("us-east-1a", "Linux/UNIX", null, null).size());
+        assertEquals(2, index.find("us-east-1a", "Linux/UNIX", "Heavy Utilization", null).size());
+        assertEquals(1, index.find("us-east-1a", "Linux/UNIX", "Heavy Utilization", "t1.micro").size());
+        assertEquals(4, index.find(null, null, null, "m1.small").size());
+        assertEquals(0, index.find("us-west-1a", null, null, null).size());
+    }
+
+    public void testUnchangedLeavesKeepTheirVersions()
+    {
+        List<Offering> offerings = new ArrayList<Offering>();
+        offerings.add(offering("us-east-1a", "Linux/UNIX", "Heavy Utilization", "t1.micro"));
+        offerings.add(offering("us-east-1a", "Linux/UNIX", "Heavy Utilization", "m1.small"));
+        OfferingIndex before = new OfferingIndex(OfferingTable.create(offerings), 1);
+
+        offerings.get(1).fixedPrice = 169f;
+        OfferingIndex after = new OfferingIndex(OfferingTable.create(offerings), 2, before);
+
+        assertEquals(before.getVersion(null, null, null, "t1.micro"), after.getVersion(null, null, null, "t1.micro"));
+        assertFalse(before.getVersion(null, null, null, "m1.small") == after.getVersion(null, null, null, "m1.small"));
+        assertFalse(before.getVersion(null, null, null, null) == after.getVersion(null, null, null, null));
+    }
+}
@@ -0,0 +1,65 @@
+package com.kenlin.awsec2offering;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for OfferingQuery.
+ */
+public class OfferingQueryTest
+    extends TestCase
+{
+    public void testEquivalentQueriesAreEqual()
+    {
+        OfferingQuery a = OfferingQuery.create("us-east-1a", "linux", "heavy", "t1.micro,m1.small");
+        OfferingQuery b = OfferingQuery.create("us-east-1a", "Linux/UNIX", "Heavy Utilization", " m1.small,t1.micro,m1.small");
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(a.getKey(), b.getKey());
+        assertEquals("m1.small,t1.micro", b.getInstanceType());
+        assertEquals(App.createKey("us-east-1a", "Linux/UNIX", "Heavy Utilization", "m1.small,t1.micro"), a.getKey());
+        assertFalse(a.equals(OfferingQuery.create("us-east-1a", "linux", "light", "t1.micro,m1.small")));
+    }
+
+    public void testSplitsIntoSingleInstanceTypes()
+    {
+        OfferingQuery query = OfferingQuery.create("us-east-1a", "windows", null, "t1.micro,m1.small");
+        assertFalse(query.isSingle());
+        List<OfferingQuery> parts = query.split();
+        assertEquals(2, parts.size());
+        assertEquals(OfferingQuery.create("us-east-1a", "windows", null, "m1.small"), parts.get(0));
+        assertTrue(parts.get(1).isSingle());
+        assertSame(parts.get(1), parts.get(1).split().get(0));
+
+        OfferingQuery any = OfferingQuery.create("us-east-1a", "linux", null, null);
+        assertNull(any.getInstanceType());
+        assertTrue(any.getInstanceTypes().isEmpty());
+        assertEquals(Arrays.asList(any), any.split());
+    }
+
+    public void testFromKey()
+    {
+        OfferingQuery query = OfferingQuery.create("us-east-1a", "linux", null, "m1.small");
+        assertEquals(query, OfferingQuery.fromKey(query.getKey()));
+        assertNull(query.getOfferingType());
+        assertNull(OfferingQuery.fromKey("not a key"));
+        assertNull(OfferingQuery.fromKey(App.createKey("us-east-1a", "bogus", null, null)));
+        try {
+            OfferingQuery.create("us-east-1a", "linux", "bogus", null);
+            fail("expected an unknown offering type to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRegion()
+    {
+        assertEquals("us-east-1", OfferingQuery.create("us-east-1a", "linux", null, null).getRegion());
+        assertEquals("ap-southeast-2", OfferingQuery.getRegion("ap-southeast-2b"));
+        assertEquals("eu-west-1", OfferingQuery.getRegion("eu-west-1"));
+        assertNull(OfferingQuery.getRegion(null));
+    }
+}
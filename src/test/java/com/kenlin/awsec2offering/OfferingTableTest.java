@@ -0,0 +1,51 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.priced;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Unit test for OfferingTable.
+ */
+public class OfferingTableTest
+    extends TestCase
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public void testRowsRoundTrip() throws Exception
+    {
+        Offering[] offerings = {
+            priced("t1.micro", Offering.SECONDS_IN_3_YEARS, 100.0f, 0.005),
+            priced("m1.small", Offering.SECONDS_IN_3_YEARS, 257.5f, 0.012),
+            priced(null, Offering.SECONDS_IN_3_YEARS, null, null),
+        };
+        OfferingTable.Builder builder = new OfferingTable.Builder(1);
+        for (Offering offering : offerings)
+            builder.add(offering);
+        OfferingTable table = builder.build();
+
+        assertEquals(offerings.length, table.size());
+        for (int row = 0; row < table.size(); row++) {
+            assertEquals(offerings[row].toString(), table.get(row).toString());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator gen = OfferingResponse.createGenerator(mapper, out);
+            table.writeJson(row, gen);
+            gen.close();
+            assertEquals(offerings[row].toString(), out.toString("UTF-8"));
+        }
+        assertSame(table.getAvailabilityZone(0), table.getAvailabilityZone(1));	// dictionary encoded
+        assertFalse(table.hasFixedPrice(2));
+        assertNull(table.getInstanceType(2));
+        assertEquals(257.5f, table.getFixedPrice(1), 0.0f);
+
+        OfferingTable copy = new OfferingTable.Builder().add(table, 1).add(table, 2).build();
+        assertEquals(table.get(1).toString(), copy.get(0).toString());
+        assertEquals(table.get(2).toString(), copy.get(1).toString());
+    }
+}
@@ -0,0 +1,55 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.offering;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Unit test for Offering.
+ */
+public class OfferingTest
+    extends TestCase
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static String writeJson(Offering offering) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator gen = OfferingResponse.createGenerator(mapper, out);
+        offering.writeJson(gen);
+        gen.close();
+        return out.toString("UTF-8");
+    }
+
+    public void testWriteJsonMatchesToJsonNode() throws Exception
+    {
+        Offering offering = offering("m1.small");
+        assertEquals(offering.toJsonNode().toString(), writeJson(offering));
+
+        offering.instanceType = null;
+        offering.fixedPrice = null;
+        assertEquals(offering.toJsonNode().toString(), writeJson(offering));
+        assertFalse(writeJson(offering).contains(Offering.FIXEDPRICE));
+    }
+
+    public void testResponseMatchesTree() throws Exception
+    {
+        Offering offering = offering("m1.small");
+        OfferingResponse response = OfferingResponse.create(mapper, Arrays.asList(offering, offering), false);
+
+        ObjectNode root = mapper.createObjectNode();
+        root.putArray(App.ARRAYNAME).add(offering.toJsonNode()).add(offering.toJsonNode());
+        assertEquals(mapper.writeValueAsString(root), new String(response.getJson(), "UTF-8"));
+        assertTrue(OfferingResponse.matches(response.getETag(), response.getETag()));
+        assertTrue(OfferingResponse.matches("\"other\", " + response.getETag(), response.getETag()));
+        assertFalse(OfferingResponse.matches("\"other\"", response.getETag()));
+        assertFalse(OfferingResponse.matches(response.getETag(), response.getSmileETag()));
+    }
+}
@@ -0,0 +1,128 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.priced;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for OfferingView.
+ */
+public class OfferingViewTest
+    extends TestCase
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static OfferingResponse response() throws Exception
+    {
+        List<Offering> offerings = new ArrayList<Offering>();
+        offerings.add(priced("m1.small", Offering.SECONDS_IN_YEAR, 169f, 0.014));    // 0
+        offerings.add(priced("m1.small", Offering.SECONDS_IN_3_YEARS, 257f, 0.011)); // 1
+        offerings.add(priced("m1.small", null, null, 0.06));                         // 2
+        offerings.add(priced("t1.micro", Offering.SECONDS_IN_YEAR, 62f, 0.005));     // 3
+        offerings.add(priced("t1.micro", null, null, null));                         // 4
+        return OfferingResponse.create(MAPPER, offerings, false);
+    }
+
+    private static OfferingView view(String... parameters)
+    {
+        Map<String, String[]> map = new HashMap<String, String[]>();
+        for (int i = 0; i < parameters.length; i += 2)
+            map.put(parameters[i], new String[] { parameters[i + 1] });
+        return OfferingView.parse(map, 10);
+    }
+
+    private static void assertRows(int[] expected, int[] actual)
+    {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    public void testRangesAndSorts() throws Exception
+    {
+        OfferingResponse response = response();
+        assertTrue(view().isEmpty());
+        assertTrue(view("instanceType", "m1.small").isEmpty());
+
+        assertRows(new int[] { 0, 1, 2, 3, 4 }, view("cursor", OfferingView.cursor(response, 0)).select(response));
+        assertRows(new int[] { 0, 1, 3 }, view("hourlyPrice", "..0.02").select(response));
+        assertRows(new int[] { 3, 1, 0 }, view("hourlyPrice", "..0.02", "sort", "hourlyPrice").select(response));
+        assertRows(new int[] { 1, 0 }, view("hourlyPrice", "0.01..0.02", "sort", "-fixedPrice").select(response));
+        assertRows(new int[] { 0, 3 }, view("duration", String.valueOf(Offering.SECONDS_IN_YEAR)).select(response));
+
+        // Offerings without the sort field are last either way
+        assertRows(new int[] { 3, 0, 1, 2, 4 }, view("sort", "fixedPrice").select(response));
+        assertRows(new int[] { 1, 0, 3, 2, 4 }, view("sort", "-fixedPrice").select(response));
+        assertRows(new int[] { 0, 1 }, view("fixedPrice", "100..", "sort", "fixedPrice").select(response));
+
+        // Bounds are compared at the precision the field is kept at
+        List<Offering> tenths = Arrays.asList(priced("m1.small", null, 0.1f, null));
+        OfferingResponse tenth = OfferingResponse.create(MAPPER, tenths, false);
+        assertRows(new int[] { 0 }, view("fixedPrice", "0.1").select(tenth));
+        assertRows(new int[] { 0 }, view("fixedPrice", "0.1..0.1", "sort", "fixedPrice").select(tenth));
+        assertSame(response.getSortedRows(OfferingView.Field.FIXED_PRICE),
+                response.getSortedRows(OfferingView.Field.FIXED_PRICE));
+    }
+
+    public void testProjectionAndPages() throws Exception
+    {
+        OfferingResponse response = response();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = view("fields", "instanceType,hourlyPrice", "sort", "hourlyPrice", "limit", "2")
+                .write(response, OfferingResponse.createGenerator(MAPPER, out));
+        assertEquals(2, written);
+        JsonNode page = MAPPER.readTree(out.toByteArray());
+        assertEquals(5, page.get("total").asInt());
+        assertEquals(OfferingView.cursor(response, 2), page.get("nextCursor").asText());
+        JsonNode first = page.get("ec2offerings").get(0);
+        assertEquals(2, first.size());
+        assertEquals("t1.micro", first.get("instanceType").asText());
+        assertEquals(0.005, first.get("hourlyPrice").asDouble(), 0.0);
+
+        out = new ByteArrayOutputStream();
+        written = view("sort", "hourlyPrice", "limit", "2", "cursor", OfferingView.cursor(response, 4))
+                .write(response, OfferingResponse.createGenerator(MAPPER, out));
+        assertEquals(1, written);
+        assertNull(MAPPER.readTree(out.toByteArray()).get("nextCursor"));
+    }
+
+    public void testStaleCursorsAreRejected() throws Exception
+    {
+        OfferingResponse response = response();
+        OfferingResponse reloaded = OfferingResponse.create(MAPPER,
+                Arrays.asList(priced("m1.small", Offering.SECONDS_IN_YEAR, 169f, 0.014)), false);
+        OfferingView view = view("limit", "2", "cursor", OfferingView.cursor(response, 2));
+        view.check(response);
+        try {
+            view.write(reloaded, OfferingResponse.createGenerator(MAPPER, new ByteArrayOutputStream()));
+            fail("stale cursor");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testMalformedViewsAreRejected()
+    {
+        String[][] bad = {
+            { "hourlyPrice", "cheap" }, { "fixedPrice", "100..50" }, { "fields", "price" },
+            { "sort", "instanceType" }, { "limit", "0" }, { "limit", "11" }, { "cursor", "-1" },
+            { "cursor", "2" }, { "cursor", "2." }, { "cursor", "x.abc" }, { "cursor", "-1.abc" },
+        };
+        for (String[] parameter : bad) {
+            try {
+                view(parameter);
+                fail(parameter[0] + "=" + parameter[1]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
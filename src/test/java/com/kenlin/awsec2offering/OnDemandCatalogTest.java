@@ -0,0 +1,92 @@
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Unit test for OnDemandCatalog.
+ */
+public class OnDemandCatalogTest
+    extends TestCase
+{
+    private static final String ONE_OFFERING =
+        "{\"ec2offerings\":[{\"availabilityZone\":\"us-east-1a\",\"offeringType\":\"On-Demand\",\"instanceType\":\"t1.micro\","
+        + "\"productDescription\":\"Linux/UNIX\",\"duration\":0,\"currencyCode\":\"USD\",\"fixedPrice\":0,\"hourlyPrice\":0.02}]}";
+
+    private static final String TWO_OFFERINGS =
+        "{\"ec2offerings\":[{\"availabilityZone\":\"us-east-1a\",\"offeringType\":\"On-Demand\",\"instanceType\":\"t1.micro\","
+        + "\"productDescription\":\"Linux/UNIX\",\"duration\":0,\"currencyCode\":\"USD\",\"fixedPrice\":0,\"hourlyPrice\":0.02}"
+        + ",{\"availabilityZone\":\"us-east-1a\",\"offeringType\":\"On-Demand\",\"instanceType\":\"m1.small\","
+        + "\"productDescription\":\"Linux/UNIX\",\"duration\":0,\"currencyCode\":\"USD\",\"fixedPrice\":0,\"hourlyPrice\":0.06}]}";
+
+    public void testBundledCatalog() throws IOException
+    {
+        OnDemandCatalog catalog = new OnDemandCatalog(new ObjectMapper(), null);
+        catalog.start(0);
+
+        List<Offering> all = catalog.find(null, null, null);
+        assertTrue(all.size() > 0);
+        assertEquals(all.size(), catalog.size());
+
+        List<Offering> micro = catalog.find("us-east-1a", "Linux/UNIX", "t1.micro");
+        assertEquals(1, micro.size());
+        assertEquals("t1.micro", micro.get(0).instanceType);
+
+        for (Offering offering : catalog.find("us-east-1a", "Windows", null))
+            assertEquals("Windows", offering.productDescription);
+        assertTrue(catalog.find("nowhere-1a", null, null).isEmpty());
+    }
+
+    public void testReloadsModifiedFile() throws IOException
+    {
+        File file = File.createTempFile("ondemand", ".json");
+        try {
+            write(file, ONE_OFFERING);
+            OnDemandCatalog catalog = new OnDemandCatalog(new ObjectMapper(), file);
+            final List<Long> reloads = new ArrayList<Long>();
+            catalog.addListener(new OnDemandCatalog.Listener() {
+                @Override
+                public void reloaded(long version) {
+                    reloads.add(version);
+                }
+            });
+            catalog.start(0);
+            assertEquals(1, catalog.size());
+            List<Offering> before = catalog.find(null, null, null);
+
+            write(file, TWO_OFFERINGS);
+            file.setLastModified(file.lastModified() + 2000);
+            catalog.reloadIfModified();
+            assertEquals(2, catalog.size());
+            assertEquals(0.06, catalog.find(null, null, "m1.small").get(0).hourlyPrice.doubleValue(), 0.0);
+            assertEquals(1, before.size());	// readers of the old index are unaffected
+            assertEquals(Arrays.asList(catalog.getVersion()), reloads);
+
+            write(file, "not json");
+            file.setLastModified(file.lastModified() + 2000);
+            catalog.reloadIfModified();
+            assertEquals(2, catalog.size());	// a bad edit keeps the previous index
+            assertEquals(1, reloads.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(File file, String text) throws IOException
+    {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+}
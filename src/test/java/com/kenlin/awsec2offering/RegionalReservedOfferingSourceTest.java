@@ -0,0 +1,61 @@
+package com.kenlin.awsec2offering;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RegionalReservedOfferingSource.
+ */
+public class RegionalReservedOfferingSourceTest
+    extends TestCase
+{
+    /**
+     * A source that records the availability zones it is called for.
+     */
+    private static class RecordingSource implements ReservedOfferingSource
+    {
+        final List<String> zones = new ArrayList<String>();
+
+        @Override
+        public Page describe(String availabilityZone, String productDescription, String offeringType, String instanceType,
+                String nextToken)
+        {
+            zones.add(availabilityZone);
+            return new Page(new ArrayList<Offering>(), null);
+        }
+    }
+
+    public void testRoutesByRegion()
+    {
+        RecordingSource east = new RecordingSource();
+        RecordingSource west = new RecordingSource();
+        Map<String, ReservedOfferingSource> sources = new LinkedHashMap<String, ReservedOfferingSource>();
+        sources.put("us-east-1", east);
+        sources.put("eu-west-1", west);
+        RegionalReservedOfferingSource source = new RegionalReservedOfferingSource(sources);
+
+        source.describe("us-east-1a", null, null, null, null);
+        source.describe("eu-west-1b", null, null, null, null);
+        source.describe("us-east-1c", null, null, null, null);
+        assertEquals(2, east.zones.size());
+        assertEquals("eu-west-1b", west.zones.get(0));
+        assertSame(west, source.getSource("eu-west-1"));
+
+        try {
+            source.describe("sa-east-1a", null, null, null, null);
+            fail("expected an unknown region to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            source.describe(null, null, null, null, null);
+            fail("expected a missing availability zone to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.kenlin.awsec2offering;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.AmazonServiceException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Unit test for ReplayReservedOfferingSource.
+ */
+public class ReplayReservedOfferingSourceTest
+    extends TestCase
+{
+    private static List<Offering> recorded() throws Exception
+    {
+        return ReplayReservedOfferingSource.load(new ObjectMapper(),
+            new File(ReplayReservedOfferingSourceTest.class.getResource("/reserved-offerings.json").toURI()));
+    }
+
+    private static List<Offering> sweep(ReservedOfferingSource source, String zone, int[] pages)
+    {
+        List<Offering> offerings = new ArrayList<Offering>();
+        String nextToken = null;
+        do {
+            ReservedOfferingSource.Page page = source.describe(zone, null, null, null, nextToken);
+            offerings.addAll(page.getOfferings());
+            nextToken = page.getNextToken();
+            pages[0]++;
+        } while (nextToken != null);
+        return offerings;
+    }
+
+    private static Set<String> strings(List<Offering> offerings)
+    {
+        Set<String> strings = new HashSet<String>();
+        for (Offering offering : offerings)
+            strings.add(offering.toString());
+        return strings;
+    }
+
+    public void testPagesAndFilters() throws Exception
+    {
+        ReservedOfferingSource source = new ReplayReservedOfferingSource(recorded(), 5, 0, 0, 0.0);
+        int[] pages = { 0 };
+        assertEquals(12, sweep(source, null, pages).size());
+        assertEquals(3, pages[0]);
+
+        pages[0] = 0;
+        List<Offering> east1a = sweep(source, "us-east-1a", pages);
+        assertEquals(6, east1a.size());
+        assertEquals(2, pages[0]);
+        for (Offering offering : east1a)
+            assertEquals("us-east-1a", offering.availabilityZone);
+
+        assertEquals(2, source.describe(null, "Linux/UNIX", "Heavy Utilization", "m1.small", null).getOfferings().size());
+    }
+
+    public void testThrottles() throws Exception
+    {
+        ReservedOfferingSource source = new ReplayReservedOfferingSource(recorded(), 5, 0, 0, 1.0);
+        try {
+            source.describe(null, null, null, null, null);
+            fail("not throttled");
+        } catch (AmazonServiceException e) {
+            assertEquals("RequestLimitExceeded", e.getErrorCode());
+            assertEquals(503, e.getStatusCode());
+        }
+    }
+
+    public void testRecords() throws Exception
+    {
+        File file = File.createTempFile("reserved", ".json");
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            ReplayReservedOfferingSource.record(new ReplayReservedOfferingSource(recorded(), 5, 0, 0, 0.0), mapper, file);
+            assertEquals(strings(recorded()), strings(ReplayReservedOfferingSource.load(mapper, file)));
+        } finally {
+            file.delete();
+        }
+    }
+}
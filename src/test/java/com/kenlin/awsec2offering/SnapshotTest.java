@@ -0,0 +1,96 @@
+package com.kenlin.awsec2offering;
+
+import static com.kenlin.awsec2offering.Fixtures.table;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Snapshot.
+ */
+public class SnapshotTest
+    extends TestCase
+{
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("snapshot", ".bin");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        OfferingTable reserved = table("t1.micro", "m1.small", "m1.large");
+        new Snapshot().add("reserved", 1234L, reserved).add("cache x", 5678L, table()).write(file);
+
+        Snapshot snapshot = Snapshot.read(file, Long.MAX_VALUE);
+        assertEquals(2, snapshot.getSections().size());
+        Snapshot.Section section = snapshot.getSections().get(0);
+        assertEquals("reserved", section.getName());
+        assertEquals(1234L, section.getLoaded());
+        assertEquals(reserved.asList().toString(), section.getTable().asList().toString());
+        assertEquals(1, snapshot.getSections().get(1).getTable().size());
+    }
+
+    public void testReplacedAfterRead() throws Exception
+    {
+        for (int i = 0; i < 3; i++) {
+            new Snapshot().add("reserved", i, table("t1.micro")).write(file);
+            Snapshot snapshot = Snapshot.read(file, Long.MAX_VALUE);	// holds nothing of the file open
+            assertEquals(i, snapshot.getSections().get(0).getLoaded());
+        }
+    }
+
+    public void testMissingOrTooOld() throws Exception
+    {
+        file.delete();
+        assertNull(Snapshot.read(file, Long.MAX_VALUE));
+
+        new Snapshot().add("reserved", 0L, table("t1.micro")).write(file);
+        Thread.sleep(5);
+        assertNull(Snapshot.read(file, 1));
+    }
+
+    public void testCorrupt() throws Exception
+    {
+        new Snapshot().add("reserved", 0L, table("t1.micro", "m1.small")).write(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 10);
+            int b = raf.read();
+            raf.seek(raf.length() - 10);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        try {
+            Snapshot.read(file, Long.MAX_VALUE);
+            fail("corruption not detected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        try {
+            Snapshot.read(file, Long.MAX_VALUE);
+            fail("truncation not detected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Truncated"));
+        }
+    }
+}